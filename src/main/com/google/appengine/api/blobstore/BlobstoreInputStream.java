@@ -6,6 +6,10 @@ import com.google.common.base.Preconditions;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * BlobstoreInputStream provides an InputStream view of a blob in
@@ -40,15 +44,35 @@ public final class BlobstoreInputStream extends InputStream {
     }
   }
 
+  /**
+   * A fetch of the bytes of the blob from {@code start} to {@code end}
+   * exclusive.
+   */
+  private static final class Fetch {
+    final long start;
+    final long end;
+    final Future<byte[]> data;
+
+    Fetch(long start, long end, Future<byte[]> data) {
+      this.start = start;
+      this.end = end;
+      this.data = data;
+    }
+  }
+
   private final BlobKey blobKey;
 
   private final BlobInfo blobInfo;
 
+  private final int readAheadFetches;
+
+  private final LinkedList<Fetch> fetches = new LinkedList<Fetch>();
+
   private long blobOffset;
 
   private byte[] buffer;
 
-  private int bufferOffset;
+  private long bufferStart;
 
   private boolean markSet = false;
 
@@ -56,6 +80,14 @@ public final class BlobstoreInputStream extends InputStream {
 
   private final BlobstoreService blobstoreService;
 
+  private long bytesFetched;
+
+  private long fetchCount;
+
+  private long firstFetchNanos;
+
+  private long lastFetchNanos;
+
   /**
    * Creates a BlobstoreInputStream that reads data from the blob indicated by
    * blobKey, starting at offset.
@@ -67,7 +99,32 @@ public final class BlobstoreInputStream extends InputStream {
    * @throws IllegalArgumentException If {@code offset} &lt; 0.
    */
   public BlobstoreInputStream(BlobKey blobKey, long offset) throws IOException {
-    this(blobKey, offset, new BlobInfoFactory(), BlobstoreServiceFactory.getBlobstoreService());
+    this(blobKey, offset, 0);
+  }
+
+  /**
+   * Creates a BlobstoreInputStream that reads data from the blob indicated by
+   * blobKey, starting at offset, and keeps fetches of the data that follows
+   * the data being read in flight.
+   *
+   * Each fetch is of up to {@link BlobstoreService#MAX_BLOB_FETCH_SIZE}
+   * bytes, so up to {@code readAheadFetches + 1} times that many bytes are
+   * held in memory.  Reading a blob sequentially then waits for a fetch only
+   * when the data is read faster than it is fetched.
+   *
+   * @param blobKey A valid BlobKey indicating the blob to read from.
+   * @param offset An offset to start from.
+   * @param readAheadFetches The number of fetches to keep in flight beyond
+   *        the one being read.  {@code 0} fetches data when it is read.
+   *
+   * @throws BlobstoreIOException If the blobKey given is invalid.
+   * @throws IllegalArgumentException If {@code offset} &lt; 0 or
+   *         {@code readAheadFetches} &lt; 0.
+   */
+  public BlobstoreInputStream(BlobKey blobKey, long offset, int readAheadFetches)
+      throws IOException {
+    this(blobKey, offset, readAheadFetches, new BlobInfoFactory(),
+        BlobstoreServiceFactory.getBlobstoreService());
   }
 
   /**
@@ -86,12 +143,25 @@ public final class BlobstoreInputStream extends InputStream {
                        long offset,
                        BlobInfoFactory blobInfoFactory,
                        BlobstoreService blobstoreService) throws IOException {
+    this(blobKey, offset, 0, blobInfoFactory, blobstoreService);
+  }
+
+  BlobstoreInputStream(BlobKey blobKey,
+                       long offset,
+                       int readAheadFetches,
+                       BlobInfoFactory blobInfoFactory,
+                       BlobstoreService blobstoreService) throws IOException {
     if (offset < 0) {
       throw new IllegalArgumentException("Offset " + offset + " is less than 0");
     }
+    if (readAheadFetches < 0) {
+      throw new IllegalArgumentException("readAheadFetches " + readAheadFetches
+          + " is less than 0");
+    }
 
     this.blobKey = blobKey;
     this.blobOffset = offset;
+    this.readAheadFetches = readAheadFetches;
     this.blobstoreService = blobstoreService;
     blobInfo = blobInfoFactory.loadBlobInfo(blobKey);
     if (blobInfo == null) {
@@ -101,15 +171,14 @@ public final class BlobstoreInputStream extends InputStream {
   }
 
   /**
-   * Check if we have entirely consumed the last buffer read from the blob.
+   * Check if the last buffer read from the blob holds the byte at
+   * {@code blobOffset}.
    *
-   * @returns true if we have consumed the last buffer or if no buffer has
-   *          yet been read.
+   * @returns false if it does not or if no buffer has yet been read.
    */
-  private boolean atEndOfBuffer() {
-    Preconditions.checkState(buffer == null || bufferOffset <= buffer.length,
-        "Buffer offset is past the end of the buffer. This should never happen.");
-    return buffer == null || bufferOffset == buffer.length;
+  private boolean inBuffer() {
+    return buffer != null && blobOffset >= bufferStart
+        && blobOffset < bufferStart + buffer.length;
   }
 
   @Override
@@ -118,7 +187,7 @@ public final class BlobstoreInputStream extends InputStream {
       return -1;
     }
 
-    return buffer[bufferOffset++] & 0xff;
+    return buffer[(int) (blobOffset++ - bufferStart)] & 0xff;
   }
 
   @Override
@@ -134,12 +203,34 @@ public final class BlobstoreInputStream extends InputStream {
       return -1;
     }
 
+    int bufferOffset = (int) (blobOffset - bufferStart);
     int amountToCopy = Math.min(buffer.length - bufferOffset, len);
     System.arraycopy(buffer, bufferOffset, b, off, amountToCopy);
-    bufferOffset += amountToCopy;
+    blobOffset += amountToCopy;
     return amountToCopy;
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Skipping does not fetch any data, and fetches already in flight for
+   * data after the bytes skipped are kept.
+   */
+  @Override
+  public long skip(long n) throws IOException {
+    if (n <= 0) {
+      return 0;
+    }
+    long skipped = Math.max(0, Math.min(n, blobInfo.getSize() - blobOffset));
+    blobOffset += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return inBuffer() ? (int) (bufferStart + buffer.length - blobOffset) : 0;
+  }
+
   @Override
   public boolean markSupported() {
     return true;
@@ -149,22 +240,53 @@ public final class BlobstoreInputStream extends InputStream {
   public void mark(int readlimit) {
     markSet = true;
     markOffset = blobOffset;
-    if (buffer != null) {
-      markOffset += bufferOffset - buffer.length;
-    }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Data is only fetched again if the mark is before the last buffer read
+   * from the blob, and then only up to that buffer.
+   */
   @Override
   public void reset() throws IOException {
     if (!markSet) {
       throw new IOException("Attempted to reset on un-mark()ed BlobstoreInputStream");
     }
     blobOffset = markOffset;
-    buffer = null;
-    bufferOffset = 0;
     markSet = false;
   }
 
+  @Override
+  public void close() throws IOException {
+    fetches.clear();
+    buffer = null;
+  }
+
+  /**
+   * @return the number of bytes fetched from the blob so far.
+   */
+  public long getBytesFetched() {
+    return bytesFetched;
+  }
+
+  /**
+   * @return the number of fetches from the blob made so far.
+   */
+  public long getFetchCount() {
+    return fetchCount;
+  }
+
+  /**
+   * @return the number of bytes fetched per second, from the start of the
+   *         first fetch to the end of the last one, or 0 if nothing has been
+   *         fetched.
+   */
+  public double getBytesPerSecond() {
+    long elapsedNanos = lastFetchNanos - firstFetchNanos;
+    return elapsedNanos <= 0 ? 0 : bytesFetched * 1e9 / elapsedNanos;
+  }
+
   /**
    * Attempts to ensure that {@code buffer} contains unprocessed data from the
    * blob.
@@ -174,24 +296,71 @@ public final class BlobstoreInputStream extends InputStream {
    *         the blob.
    */
   private boolean ensureDataInBuffer() throws IOException {
-    if (!atEndOfBuffer()) {
+    if (inBuffer()) {
       return true;
     }
 
-    long fetchSize = Math.min(
-        blobInfo.getSize() - blobOffset,
-        BlobstoreService.MAX_BLOB_FETCH_SIZE);
-    if (fetchSize <= 0) {
-      buffer = null;
+    long blobSize = blobInfo.getSize();
+    if (blobOffset >= blobSize) {
       return false;
     }
+
+    while (!fetches.isEmpty() && fetches.getFirst().end <= blobOffset) {
+      fetches.removeFirst();
+    }
+    if (fetches.isEmpty() || fetches.getFirst().start > blobOffset) {
+      long end = fetches.isEmpty() ? blobSize : fetches.getFirst().start;
+      fetches.addFirst(startFetch(blobOffset, end));
+    }
+    while (fetches.size() <= readAheadFetches && fetches.getLast().end < blobSize) {
+      fetches.addLast(startFetch(fetches.getLast().end, blobSize));
+    }
+
+    Fetch fetch = fetches.removeFirst();
+    byte[] data = finishFetch(fetch);
+    if (data.length == 0) {
+      throw new BlobstoreIOException("Blobstore returned no data at offset " + fetch.start);
+    }
+    buffer = data;
+    bufferStart = fetch.start;
+    return inBuffer();
+  }
+
+  /**
+   * Starts fetching the data from {@code start} up to {@code limit}, or as
+   * much of it as fits in a fetch.
+   */
+  private Fetch startFetch(long start, long limit) {
+    long end = Math.min(limit, start + BlobstoreService.MAX_BLOB_FETCH_SIZE);
+    if (fetchCount++ == 0) {
+      firstFetchNanos = System.nanoTime();
+    }
+    return new Fetch(start, end, blobstoreService.fetchDataAsync(blobKey, start, end - 1));
+  }
+
+  private byte[] finishFetch(Fetch fetch) throws IOException {
+    byte[] data;
     try {
-      buffer = blobstoreService.fetchData(blobKey, blobOffset, blobOffset + fetchSize - 1);
-      blobOffset += buffer.length;
-      bufferOffset = 0;
-      return true;
-    } catch (BlobstoreFailureException bfe) {
-      throw new BlobstoreIOException("Error reading data from Blobstore", bfe);
+      data = fetch.data.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted =
+          new InterruptedIOException("Interrupted while reading data from Blobstore");
+      interrupted.initCause(e);
+      throw interrupted;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof BlobstoreFailureException) {
+        throw new BlobstoreIOException("Error reading data from Blobstore", cause);
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new BlobstoreIOException("Error reading data from Blobstore", cause);
     }
+    bytesFetched += data.length;
+    lastFetchNanos = System.nanoTime();
+    return data;
   }
 }
@@ -3,7 +3,10 @@
 package com.google.appengine.api.blobstore;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -154,4 +157,42 @@ public interface BlobstoreService {
    * with the blobstore.
    */
   byte[] fetchData(BlobKey blobKey, long startIndex, long endIndex);
+
+  /**
+   * Get fragment from specified blob without waiting for it.
+   *
+   * @param blobKey Blob-key from which to fetch data.
+   * @param startIndex Start index of data to fetch.
+   * @param endIndex End index (inclusive) of data to fetch.
+   * @return A future for the data.  The exceptions thrown by
+   * {@link #fetchData} for a failed fetch are the cause of the
+   * {@link java.util.concurrent.ExecutionException} thrown by its {@code get}
+   * methods.
+   *
+   * @throws IllegalArgumentException If indexes are negative, indexes are
+   * inverted or fetch size is too large.
+   */
+  Future<byte[]> fetchDataAsync(BlobKey blobKey, long startIndex, long endIndex);
+
+  /**
+   * Get several fragments from specified blob.  Overlapping and adjacent
+   * ranges are fetched together, ranges larger than
+   * {@link #MAX_BLOB_FETCH_SIZE} are fetched in parts, and a bounded number
+   * of fetches are made in parallel.
+   *
+   * @param blobKey Blob-key from which to fetch data.
+   * @param ranges The ranges to fetch.  Ranges without an end, or relative to
+   * the end of the blob, are resolved against the size of the blob, and
+   * ranges that end past the end of the blob are cut short at it.
+   * @return One buffer for each of {@code ranges}, in the same order, which
+   * can be written with a single call to
+   * {@link java.nio.channels.GatheringByteChannel#write(ByteBuffer[])}.  The
+   * buffers of ranges that were fetched together may share their content.
+   *
+   * @throws IllegalArgumentException If blob not found.
+   * @throws SecurityException If the application does not have acces to the blob.
+   * @throws BlobstoreFailureException If an error occurred while communicating
+   * with the blobstore.
+   */
+  ByteBuffer[] fetchRanges(BlobKey blobKey, List<ByteRange> ranges);
 }
@@ -8,11 +8,20 @@ import com.google.appengine.api.blobstore.BlobstoreServicePb.CreateUploadURLResp
 import com.google.appengine.api.blobstore.BlobstoreServicePb.DeleteBlobRequest;
 import com.google.appengine.api.blobstore.BlobstoreServicePb.FetchDataRequest;
 import com.google.appengine.api.blobstore.BlobstoreServicePb.FetchDataResponse;
+import com.google.appengine.api.utils.FutureWrapper;
 import com.google.apphosting.api.ApiProxy;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -28,6 +37,11 @@ class BlobstoreServiceImpl implements BlobstoreService {
   static final String UPLOADED_BLOBKEY_ATTR = "com.google.appengine.api.blobstore.upload.blobkeys";
   static final String BLOB_RANGE_HEADER = "X-AppEngine-BlobRange";
 
+  /**
+   * The most FetchData calls {@link #fetchRanges} keeps in flight at once.
+   */
+  static final int MAX_FETCHES_IN_FLIGHT = 8;
+
   public String createUploadUrl(String successPath) {
     return createUploadUrl(successPath, UploadOptions.Builder.withDefaults());
   }
@@ -140,6 +154,170 @@ class BlobstoreServiceImpl implements BlobstoreService {
   }
 
   public byte[] fetchData(BlobKey blobKey, long startIndex, long endIndex) {
+    FetchDataRequest request = newFetchDataRequest(blobKey, startIndex, endIndex);
+
+    byte[] responseBytes;
+    try {
+      responseBytes = ApiProxy.makeSyncCall(PACKAGE, "FetchData", request.toByteArray());
+    } catch (ApiProxy.ApplicationException ex) {
+      throw convertFetchDataException(ex);
+    }
+
+    FetchDataResponse response = new FetchDataResponse();
+    response.mergeFrom(responseBytes);
+    return response.getDataAsBytes();
+  }
+
+  public Future<byte[]> fetchDataAsync(BlobKey blobKey, long startIndex, long endIndex) {
+    FetchDataRequest request = newFetchDataRequest(blobKey, startIndex, endIndex);
+    Future<byte[]> responseBytes =
+        ApiProxy.makeAsyncCall(PACKAGE, "FetchData", request.toByteArray());
+    return new FutureWrapper<byte[], byte[]>(responseBytes) {
+      @Override
+      protected byte[] wrap(byte[] responseBytes) {
+        FetchDataResponse response = new FetchDataResponse();
+        response.mergeFrom(responseBytes);
+        return response.getDataAsBytes();
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        if (cause instanceof ApiProxy.ApplicationException) {
+          return convertFetchDataException((ApiProxy.ApplicationException) cause);
+        }
+        return cause;
+      }
+    };
+  }
+
+  public ByteBuffer[] fetchRanges(BlobKey blobKey, List<ByteRange> ranges) {
+    long[] starts = new long[ranges.size()];
+    long[] ends = new long[ranges.size()];
+    long size = -1;
+    for (ByteRange range : ranges) {
+      if (!range.hasEnd() || range.getEnd() - range.getStart() >= MAX_BLOB_FETCH_SIZE) {
+        BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
+        if (blobInfo == null) {
+          throw new IllegalArgumentException("Blob not found.");
+        }
+        size = blobInfo.getSize();
+        break;
+      }
+    }
+    for (int i = 0; i < ranges.size(); i++) {
+      ByteRange range = ranges.get(i);
+      if (range.hasEnd()) {
+        starts[i] = range.getStart();
+        ends[i] = size < 0 ? range.getEnd() : Math.min(range.getEnd(), size - 1);
+      } else {
+        starts[i] = range.getStart() < 0 ? Math.max(0, size + range.getStart()) : range.getStart();
+        ends[i] = size - 1;
+      }
+    }
+
+    Integer[] order = new Integer[ranges.size()];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    final long[] sortStarts = starts;
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return Long.valueOf(sortStarts[a]).compareTo(sortStarts[b]);
+      }
+    });
+
+    List<Long> fetchStarts = new ArrayList<Long>();
+    List<Long> fetchEnds = new ArrayList<Long>();
+    int next = 0;
+    while (next < order.length) {
+      long start = starts[order[next]];
+      long end = ends[order[next]];
+      for (next++; next < order.length && starts[order[next]] <= end + 1; next++) {
+        end = Math.max(end, ends[order[next]]);
+      }
+      if (end < start) {
+        continue;
+      }
+      for (long fetchStart = start; fetchStart <= end; fetchStart += MAX_BLOB_FETCH_SIZE) {
+        long fetchEnd = Math.min(end, fetchStart + MAX_BLOB_FETCH_SIZE - 1);
+        fetchStarts.add(fetchStart);
+        fetchEnds.add(fetchEnd);
+      }
+    }
+
+    byte[][] fetched = new byte[fetchStarts.size()][];
+    List<Future<byte[]>> fetches = new ArrayList<Future<byte[]>>(fetched.length);
+    for (int i = 0; i < fetched.length; i++) {
+      while (fetches.size() < fetched.length && fetches.size() < i + MAX_FETCHES_IN_FLIGHT) {
+        int fetch = fetches.size();
+        fetches.add(fetchDataAsync(blobKey, fetchStarts.get(fetch), fetchEnds.get(fetch)));
+      }
+      fetched[i] = getFetchedData(fetches.get(i));
+      fetches.set(i, null);
+    }
+
+    ByteBuffer[] buffers = new ByteBuffer[ranges.size()];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = sliceFetchedData(fetchStarts, fetched, starts[i], ends[i]);
+    }
+    return buffers;
+  }
+
+  private static byte[] getFetchedData(Future<byte[]> fetch) {
+    try {
+      return fetch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BlobstoreFailureException("Interrupted while fetching blob data.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new BlobstoreFailureException("An unexpected error occurred.", cause);
+    }
+  }
+
+  /**
+   * Returns the bytes from {@code start} to {@code end} inclusive out of the
+   * fetched data, without copying them if they were fetched together.  Fewer
+   * bytes are returned if fewer were fetched, as at the end of the blob.
+   *
+   * @param fetchStarts the start index of each fetch, in increasing order
+   */
+  private static ByteBuffer sliceFetchedData(List<Long> fetchStarts, byte[][] fetched,
+      long start, long end) {
+    int fetch = Collections.binarySearch(fetchStarts, start);
+    if (fetch < 0) {
+      fetch = -fetch - 2;
+    }
+    if (end < start || fetch < 0) {
+      return ByteBuffer.allocate(0);
+    }
+    int offset = (int) (start - fetchStarts.get(fetch));
+    int length = (int) Math.min(end - start + 1, Math.max(0, fetched[fetch].length - offset));
+    if (length == end - start + 1 || !continuesAt(fetchStarts, fetch + 1, start + length)) {
+      return ByteBuffer.wrap(fetched[fetch], offset, length).slice();
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate((int) (end - start + 1));
+    buffer.put(fetched[fetch], offset, length);
+    for (fetch++; buffer.hasRemaining() && continuesAt(fetchStarts, fetch, start + buffer.position());
+        fetch++) {
+      buffer.put(fetched[fetch], 0, Math.min(buffer.remaining(), fetched[fetch].length));
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static boolean continuesAt(List<Long> fetchStarts, int fetch, long index) {
+    return fetch < fetchStarts.size() && fetchStarts.get(fetch) == index;
+  }
+
+  private static FetchDataRequest newFetchDataRequest(BlobKey blobKey, long startIndex,
+      long endIndex) {
     if (startIndex < 0) {
       throw new IllegalArgumentException("Start index must be >= 0.");
     }
@@ -158,25 +336,19 @@ class BlobstoreServiceImpl implements BlobstoreService {
     request.setBlobKey(blobKey.getKeyString());
     request.setStartIndex(startIndex);
     request.setEndIndex(endIndex);
+    return request;
+  }
 
-    byte[] responseBytes;
-    try {
-      responseBytes = ApiProxy.makeSyncCall(PACKAGE, "FetchData", request.toByteArray());
-    } catch (ApiProxy.ApplicationException ex) {
-      switch (BlobstoreServiceError.ErrorCode.valueOf(ex.getApplicationError())) {
-        case PERMISSION_DENIED:
-          throw new SecurityException("This application does not have access to that blob.");
-        case BLOB_NOT_FOUND:
-          throw new IllegalArgumentException("Blob not found.");
-        case INTERNAL_ERROR:
-          throw new BlobstoreFailureException("An internal blobstore error occured.");
-        default:
-          throw new BlobstoreFailureException("An unexpected error occurred.", ex);
-      }
+  private static RuntimeException convertFetchDataException(ApiProxy.ApplicationException ex) {
+    switch (BlobstoreServiceError.ErrorCode.valueOf(ex.getApplicationError())) {
+      case PERMISSION_DENIED:
+        return new SecurityException("This application does not have access to that blob.");
+      case BLOB_NOT_FOUND:
+        return new IllegalArgumentException("Blob not found.");
+      case INTERNAL_ERROR:
+        return new BlobstoreFailureException("An internal blobstore error occured.");
+      default:
+        return new BlobstoreFailureException("An unexpected error occurred.", ex);
     }
-
-    FetchDataResponse response = new FetchDataResponse();
-    response.mergeFrom(responseBytes);
-    return response.getDataAsBytes();
   }
 }
@@ -195,10 +195,42 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
   };
 
   private DatastoreType datastoreType;
+
+  /**
+   * Coalesces non-transactional single entity gets. {@code null} if
+   * auto-batching is disabled.
+   */
+  private final AutoBatcher autoBatcher;
+
+  /**
+   * Limits the rpcs in flight for batch operations that are split by entity
+   * group. {@code null} if there is no limit.
+   */
+  private final RpcWindow rpcWindow;
+
+  /**
+   * Caches the results of non-transactional, eventually consistent gets.
+   * {@code null} if entity caching is disabled.
+   */
+  private final EntityCache entityCache;
   
   public AsyncDatastoreServiceImpl(
       DatastoreServiceConfig datastoreServiceConfig, TransactionStack defaultTxnProvider) {
     super(validateDatastoreServiceConfig(datastoreServiceConfig), defaultTxnProvider);
+    Integer autoBatchWindowMillis = datastoreServiceConfig.getAutoBatchWindowMillis();
+    if (autoBatchWindowMillis != null) {
+      autoBatcher = new AutoBatcher(this, autoBatchWindowMillis,
+          datastoreServiceConfig.getMaxBatchReadEntities());
+    } else {
+      autoBatcher = null;
+    }
+    Integer maxConcurrentRpcs = datastoreServiceConfig.getMaxConcurrentRpcs();
+    rpcWindow = maxConcurrentRpcs != null ? new RpcWindow(maxConcurrentRpcs) : null;
+    Integer entityCacheSize = datastoreServiceConfig.getEntityCacheSize();
+    entityCache = entityCacheSize != null ?
+        new EntityCache(entityCacheSize,
+            datastoreServiceConfig.getEntityCacheMemcacheExpirationSeconds()) :
+        null;
   }
 
   /**
@@ -225,6 +257,9 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
     if (key == null) {
       throw new NullPointerException("key cannot be null");
     }
+    if (txn == null && autoBatcher != null) {
+      return autoBatcher.get(key);
+    }
     Future<Map<Key, Entity>> entities = get(txn, Arrays.asList(key));
     return new FutureWrapper<Map<Key, Entity>, Entity>(entities) {
       @Override
@@ -254,6 +289,49 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
     if (keys == null) {
       throw new NullPointerException("keys cannot be null");
     }
+    flushAutoBatcher();
+    return doGet(txn, keys);
+  }
+
+  /**
+   * Executes a batch get without first sending operations buffered by the
+   * {@link AutoBatcher}.
+   */
+  Future<Map<Key, Entity>> doGet(Transaction txn, Iterable<Key> keys) {
+    if (txn == null && entityCache != null &&
+        datastoreServiceConfig.getReadPolicy().getConsistency() != STRONG) {
+      return doCachedGet(keys);
+    }
+    return doUncachedGet(txn, keys);
+  }
+
+  /**
+   * Executes a batch get, serving what it can from the {@link EntityCache}
+   * and adding what it fetches from the datastore to the cache.
+   */
+  private Future<Map<Key, Entity>> doCachedGet(Iterable<Key> keys) {
+    final long fetchGeneration = entityCache.getGeneration();
+    List<Key> misses = new ArrayList<Key>();
+    final Map<Key, Entity> hits = entityCache.getAll(keys, misses);
+    if (misses.isEmpty()) {
+      return new FutureHelper.FakeFuture<Map<Key, Entity>>(hits);
+    }
+    return new FutureWrapper<Map<Key, Entity>, Map<Key, Entity>>(doUncachedGet(null, misses)) {
+      @Override
+      protected Map<Key, Entity> wrap(Map<Key, Entity> entities) throws Exception {
+        entityCache.putAll(entities.values(), fetchGeneration);
+        entities.putAll(hits);
+        return entities;
+      }
+
+      @Override
+      protected Throwable convertException(Throwable cause) {
+        return cause;
+      }
+    };
+  }
+
+  private Future<Map<Key, Entity>> doUncachedGet(Transaction txn, Iterable<Key> keys) {
     if (txn == null && datastoreServiceConfig.getReadPolicy().getConsistency() == STRONG &&
         getDatastoreType() == HIGH_REPLICATION) {
       Collection<List<Key>> keysByEntityGroup = KEY_GROUPER.getItemsByEntityGroup(keys);
@@ -349,21 +427,22 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
    */
   private Future<Map<Key, Entity>> doBatchGetByEntityGroups(
       Collection<List<Key>> keysByEntityGroup) {
-    List<Future<Map<Key, Entity>>> subFutures = new ArrayList<Future<Map<Key, Entity>>>();
+    List<RpcWindow.Rpc<Map<Key, Entity>>> rpcs = new ArrayList<RpcWindow.Rpc<Map<Key, Entity>>>();
     List<Key> keysToGet = new ArrayList<Key>();
     int numEntityGroups = 0;
     for (List<Key> keysInGroup : keysByEntityGroup) {
       keysToGet.addAll(keysInGroup);
       numEntityGroups++;
       if (numEntityGroups == datastoreServiceConfig.getMaxEntityGroupsPerHighRepReadRpc()) {
-        subFutures.add(doBatchGetBySize(null, keysToGet));
+        rpcs.add(makeGetRpc(keysToGet));
         keysToGet = new ArrayList<Key>();
         numEntityGroups = 0;
       }
     }
     if (!keysToGet.isEmpty()) {
-      subFutures.add(doBatchGetBySize(null, keysToGet));
+      rpcs.add(makeGetRpc(keysToGet));
     }
+    List<Future<Map<Key, Entity>>> subFutures = scheduleRpcs(rpcs);
     return new CumulativeAggregateFuture<Map<Key, Entity>, Map<Key, Entity>, Map<Key, Entity>>(
         subFutures) {
       @Override
@@ -385,6 +464,20 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
     };
   }
 
+  private RpcWindow.Rpc<Map<Key, Entity>> makeGetRpc(final List<Key> keysToGet) {
+    return new RpcWindow.Rpc<Map<Key, Entity>>() {
+      @Override
+      public Future<Map<Key, Entity>> start() {
+        return doBatchGetBySize(null, keysToGet);
+      }
+
+      @Override
+      public int size() {
+        return keysToGet.size();
+      }
+    };
+  }
+
   @Override
   public Future<Key> put(Entity entity) {
     GetOrCreateTransactionResult result = getOrCreateTransaction();
@@ -414,8 +507,17 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
 
   @Override
   public Future<List<Key>> put( Transaction txn, Iterable<Entity> entities) {
+    flushAutoBatcher();
     List<Entity> entityList = List.class.isAssignableFrom(entities.getClass()) ?
                                     (List<Entity>) entities : Lists.newArrayList(entities);
+    List<Key> invalidatedKeys = null;
+    if (txn == null && entityCache != null) {
+      invalidatedKeys = new ArrayList<Key>(entityList.size());
+      for (Entity entity : entityList) {
+        invalidatedKeys.add(entity.getKey());
+      }
+      EntityCache.invalidate(invalidatedKeys);
+    }
     PutContext prePutContext = new PutContext(this, entityList);
     datastoreServiceConfig.getDatastoreCallbacks().executePrePutCallbacks(prePutContext);
     Future<List<Key>> result = null;
@@ -436,6 +538,9 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
     if (result == null) {
       result = doBatchPutBySize(txn, entityList);
     }
+    if (invalidatedKeys != null) {
+      EntityCache.invalidateOnCompletion(result, invalidatedKeys);
+    }
     if (txn == null) {
       result = new PostPutFuture(
           result, datastoreServiceConfig.getDatastoreCallbacks(), postPutContext);
@@ -519,55 +624,64 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
    */
   private Future<List<Key>> doBatchPutByEntityGroups(
       Collection<List<IndexedItem<Entity>>> entitiesByEntityGroup) {
-    List<Future<List<IndexedItem<Key>>>> subFutures =
-        new ArrayList<Future<List<IndexedItem<Key>>>>();
+    List<RpcWindow.Rpc<List<IndexedItem<Key>>>> rpcs =
+        new ArrayList<RpcWindow.Rpc<List<IndexedItem<Key>>>>();
     List<IndexedItem<Entity>> entitiesToPut = new ArrayList<IndexedItem<Entity>>();
     int numEntityGroups = 0;
     for (List<IndexedItem<Entity>> indexedEntitiesInGroup : entitiesByEntityGroup) {
       entitiesToPut.addAll(indexedEntitiesInGroup);
       numEntityGroups++;
       if (numEntityGroups == datastoreServiceConfig.getMaxEntityGroupsPerRpcInternal()) {
-        assemblePutFuture(entitiesToPut, subFutures);
+        assemblePutRpc(entitiesToPut, rpcs);
         numEntityGroups = 0;
       }
     }
     if (!entitiesToPut.isEmpty()) {
-      assemblePutFuture(entitiesToPut, subFutures);
+      assemblePutRpc(entitiesToPut, rpcs);
     }
-    return new SortingAggregateFuture(subFutures);
+    return new SortingAggregateFuture(startWriteRpcs(rpcs));
   }
 
   /**
-   * Assembles a {@link Future} that puts the provided entities and then adds
-   * that Future to the provided {@link List}.
+   * Assembles an {@link RpcWindow.Rpc} that puts the provided entities and
+   * then adds that Rpc to the provided {@link List}.
    *
    * @param entitiesToPut The entities to put.
-   * @param subFutures The list of Futures.
+   * @param rpcs The list of Rpcs.
    */
-  private void assemblePutFuture(List<IndexedItem<Entity>> entitiesToPut,
-      List<Future<List<IndexedItem<Key>>>> subFutures) {
+  private void assemblePutRpc(List<IndexedItem<Entity>> entitiesToPut,
+      List<RpcWindow.Rpc<List<IndexedItem<Key>>>> rpcs) {
     final List<IndexedItem<Entity>> entitiesToPutCopy =
         new ArrayList<IndexedItem<Entity>>(entitiesToPut);
-    Iterable<Entity> unwrappedEntitiesToPut = new UnwrappingIterable<Entity>(entitiesToPutCopy);
-    Future<List<Key>> future = doBatchPutBySize(null, unwrappedEntitiesToPut);
-    Future<List<IndexedItem<Key>>> indexedFuture =
-        new FutureWrapper<List<Key>, List<IndexedItem<Key>>>(future) {
+    rpcs.add(new RpcWindow.Rpc<List<IndexedItem<Key>>>() {
       @Override
-      protected List<IndexedItem<Key>> wrap(List<Key> keys) throws Exception {
-        List<IndexedItem<Key>> orderedKeys = new ArrayList<IndexedItem<Key>>(keys.size());
-        int keyIndex = 0;
-        for (Key key : keys) {
-          orderedKeys.add(new IndexedItem<Key>(key, entitiesToPutCopy.get(keyIndex++).index));
-        }
-        return orderedKeys;
+      public Future<List<IndexedItem<Key>>> start() {
+        Iterable<Entity> unwrappedEntitiesToPut =
+            new UnwrappingIterable<Entity>(entitiesToPutCopy);
+        Future<List<Key>> future = doBatchPutBySize(null, unwrappedEntitiesToPut);
+        return new FutureWrapper<List<Key>, List<IndexedItem<Key>>>(future) {
+          @Override
+          protected List<IndexedItem<Key>> wrap(List<Key> keys) throws Exception {
+            List<IndexedItem<Key>> orderedKeys = new ArrayList<IndexedItem<Key>>(keys.size());
+            int keyIndex = 0;
+            for (Key key : keys) {
+              orderedKeys.add(new IndexedItem<Key>(key, entitiesToPutCopy.get(keyIndex++).index));
+            }
+            return orderedKeys;
+          }
+
+          @Override
+          protected Throwable convertException(Throwable cause) {
+            return cause;
+          }
+        };
       }
 
       @Override
-      protected Throwable convertException(Throwable cause) {
-        return cause;
+      public int size() {
+        return entitiesToPutCopy.size();
       }
-    };
-    subFutures.add(indexedFuture);
+    });
     entitiesToPut.clear();
   }
 
@@ -625,8 +739,12 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
 
   @Override
   public Future<Void> delete(Transaction txn, Iterable<Key> keys) {
+    flushAutoBatcher();
     List<Key> keyList =
         List.class.isAssignableFrom(keys.getClass()) ? (List<Key>) keys : Lists.newArrayList(keys);
+    if (txn == null && entityCache != null) {
+      EntityCache.invalidate(keyList);
+    }
     DeleteContext preDeleteContext = new DeleteContext(this, keyList);
     datastoreServiceConfig.getDatastoreCallbacks().executePreDeleteCallbacks(preDeleteContext);
     Future<Void> result = null;
@@ -641,6 +759,9 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
     if (result == null) {
       result = doBatchDeleteBySize(txn, keyList);
     }
+    if (txn == null && entityCache != null) {
+      EntityCache.invalidateOnCompletion(result, keyList);
+    }
     if (txn == null) {
       result = new PostDeleteFuture(
           result, datastoreServiceConfig.getDatastoreCallbacks(), postDeleteContext);
@@ -723,22 +844,22 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
    * rpcs.
    */
   private Future<Void> doBatchDeleteByEntityGroups(Collection<List<Key>> keysByEntityGroup) {
-    List<Future<Void>> subFutures = new ArrayList<Future<Void>>();
+    List<RpcWindow.Rpc<Void>> rpcs = new ArrayList<RpcWindow.Rpc<Void>>();
     List<Key> keysToDelete = new ArrayList<Key>();
     int numEntityGroups = 0;
     for (List<Key> keysInGroup : keysByEntityGroup) {
       keysToDelete.addAll(keysInGroup);
       numEntityGroups++;
       if (numEntityGroups == datastoreServiceConfig.getMaxEntityGroupsPerRpcInternal()) {
-        subFutures.add(doBatchDeleteBySize(null, keysToDelete));
+        rpcs.add(makeDeleteRpc(keysToDelete));
         keysToDelete = new ArrayList<Key>();
         numEntityGroups = 0;
       }
     }
     if (!keysToDelete.isEmpty()) {
-      subFutures.add(doBatchDeleteBySize(null, keysToDelete));
+      rpcs.add(makeDeleteRpc(keysToDelete));
     }
-    return new CumulativeAggregateFuture<Void, Void, Void>(subFutures) {
+    return new CumulativeAggregateFuture<Void, Void, Void>(startWriteRpcs(rpcs)) {
       @Override
       protected Void initIntermediateResult() {
         return null;
@@ -756,6 +877,72 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
     };
   }
 
+  private RpcWindow.Rpc<Void> makeDeleteRpc(final List<Key> keysToDelete) {
+    return new RpcWindow.Rpc<Void>() {
+      @Override
+      public Future<Void> start() {
+        return doBatchDeleteBySize(null, keysToDelete);
+      }
+
+      @Override
+      public int size() {
+        return keysToDelete.size();
+      }
+    };
+  }
+
+  /**
+   * Starts the provided read rpcs, all at once if there is no
+   * {@link RpcWindow}, otherwise as the window allows.
+   *
+   * @return A {@link Future} for each rpc, in the same order.
+   */
+  private <T> List<Future<T>> scheduleRpcs(List<RpcWindow.Rpc<T>> rpcs) {
+    if (rpcWindow != null) {
+      return rpcWindow.schedule(rpcs);
+    }
+    return startRpcs(rpcs);
+  }
+
+  /**
+   * Starts the provided write rpcs before returning, all at once if there is
+   * no {@link RpcWindow}, otherwise blocking until the window has room for
+   * each one, so that they are sent even if their results are never
+   * retrieved.
+   *
+   * @return A {@link Future} for each rpc, in the same order.
+   */
+  private <T> List<Future<T>> startWriteRpcs(List<RpcWindow.Rpc<T>> rpcs) {
+    if (rpcWindow != null) {
+      return rpcWindow.startAll(rpcs);
+    }
+    return startRpcs(rpcs);
+  }
+
+  /**
+   * Starts all the provided rpcs at once.
+   *
+   * @return A {@link Future} for each rpc, in the same order.
+   */
+  private static <T> List<Future<T>> startRpcs(List<RpcWindow.Rpc<T>> rpcs) {
+    List<Future<T>> futures = new ArrayList<Future<T>>(rpcs.size());
+    for (RpcWindow.Rpc<T> rpc : rpcs) {
+      futures.add(rpc.start());
+    }
+    return futures;
+  }
+
+  /**
+   * Sends any single entity gets the current request has buffered in the
+   * {@link AutoBatcher}, so that they are issued before the operation that is
+   * about to be performed.
+   */
+  private void flushAutoBatcher() {
+    if (autoBatcher != null) {
+      autoBatcher.flush();
+    }
+  }
+
   public Collection<Transaction> getActiveTransactions() {
     return defaultTxnProvider.getAll();
   }
@@ -785,6 +972,7 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
 
   @Override
   public Future<Transaction> beginTransaction(TransactionOptions options) {
+    flushAutoBatcher();
     return new FutureHelper.FakeFuture<Transaction>(beginTransactionInternal(options));
   }
 
@@ -795,6 +983,7 @@ class AsyncDatastoreServiceImpl extends BaseDatastoreServiceImpl
 
   @Override
   public PreparedQuery prepare(Transaction txn, Query query) {
+    flushAutoBatcher();
     MultiQueryBuilder queriesToRun = QuerySplitHelper.splitQuery(query);
     if (queriesToRun != null) {
       return new PreparedMultiQuery(apiConfig, datastoreServiceConfig, queriesToRun, txn);
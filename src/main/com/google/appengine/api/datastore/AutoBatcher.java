@@ -0,0 +1,231 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.datastore;
+
+import com.google.appengine.api.utils.FutureWrapper;
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces single entity gets issued outside of a transaction into batch
+ * gets.
+ *
+ * Gets are buffered per request, in the attributes of the request's
+ * {@link ApiProxy.Environment}, and sent through
+ * {@link AsyncDatastoreServiceImpl#doGet(Transaction, Iterable)} when one of
+ * the following happens:
+ * <ul>
+ * <li>{@link Future#get()} or {@link Future#isDone()} is called on a
+ * {@link Future} returned by this class,
+ * <li>the buffer holds {@code maxBatchReadEntities} gets,
+ * <li>a get is added more than {@code windowMillis} after the first get in
+ * the buffer, or
+ * <li>{@link #flush()} is called.
+ * </ul>
+ *
+ * Only reads are buffered: a read whose result is never requested can be
+ * dropped without harm, while a write must always be sent.  As the buffer
+ * belongs to the request, gets left in it when the request ends are
+ * discarded with the request rather than sent during a later one.  Gets are
+ * not buffered when there is no current request or when {@code windowMillis}
+ * is 0.
+ *
+ * This class is thread-safe.
+ *
+ */
+final class AutoBatcher {
+
+  private static final AtomicLong nextId = new AtomicLong();
+
+  private final String batchKey = AutoBatcher.class.getName() + "@" + nextId.incrementAndGet();
+  private final AsyncDatastoreServiceImpl datastore;
+  private final long windowMillis;
+  private final int maxBatchReadEntities;
+
+  /**
+   * @param datastore The service used to send batches.
+   * @param windowMillis The maximum time a get waits for other gets to join
+   * its batch.
+   * @param maxBatchReadEntities The maximum number of gets in one batch.
+   */
+  AutoBatcher(AsyncDatastoreServiceImpl datastore, long windowMillis, int maxBatchReadEntities) {
+    this.datastore = datastore;
+    this.windowMillis = windowMillis;
+    this.maxBatchReadEntities = maxBatchReadEntities;
+  }
+
+  Future<Entity> get(Key key) {
+    if (!key.isComplete()) {
+      throw new IllegalArgumentException(key + " is incomplete.");
+    }
+    long now = System.currentTimeMillis();
+    Map<String, Object> attributes = getRequestAttributes();
+    Batch batch;
+    if (attributes == null || windowMillis == 0) {
+      batch = new Batch(now);
+      batch.add(key);
+      batch.dispatch();
+      return new GetFuture(batch, key);
+    }
+    while (true) {
+      Batch expired = null;
+      synchronized (attributes) {
+        batch = (Batch) attributes.get(batchKey);
+        if (batch != null && now - batch.startTimeMillis >= windowMillis) {
+          attributes.remove(batchKey);
+          expired = batch;
+          batch = null;
+        }
+        if (batch == null) {
+          batch = new Batch(now);
+          attributes.put(batchKey, batch);
+        }
+      }
+      if (expired != null) {
+        expired.dispatch();
+      }
+      int size = batch.add(key);
+      if (size < 0 || size >= maxBatchReadEntities) {
+        synchronized (attributes) {
+          if (attributes.get(batchKey) == batch) {
+            attributes.remove(batchKey);
+          }
+        }
+      }
+      if (size >= maxBatchReadEntities) {
+        batch.dispatch();
+      }
+      if (size >= 0) {
+        return new GetFuture(batch, key);
+      }
+    }
+  }
+
+  /**
+   * Sends all gets buffered by the current request.
+   */
+  void flush() {
+    Map<String, Object> attributes = getRequestAttributes();
+    if (attributes == null) {
+      return;
+    }
+    Batch batch;
+    synchronized (attributes) {
+      batch = (Batch) attributes.remove(batchKey);
+    }
+    if (batch != null) {
+      batch.dispatch();
+    }
+  }
+
+  /**
+   * @return The attributes of the current request, or {@code null} if there
+   * is no current request.
+   */
+  private static Map<String, Object> getRequestAttributes() {
+    ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    return env != null ? env.getAttributes() : null;
+  }
+
+  /**
+   * The gets buffered by a single request.
+   */
+  private final class Batch {
+    final long startTimeMillis;
+    private final List<Key> keys = new ArrayList<Key>();
+    private Future<Map<Key, Entity>> result;
+
+    Batch(long startTimeMillis) {
+      this.startTimeMillis = startTimeMillis;
+    }
+
+    /**
+     * @return The number of gets in this batch after adding {@code key}, or
+     * -1 if this batch has already been sent.
+     */
+    synchronized int add(Key key) {
+      if (result != null) {
+        return -1;
+      }
+      keys.add(key);
+      return keys.size();
+    }
+
+    /**
+     * Sends this batch if it has not been sent yet.
+     *
+     * @return The result of the batch get.
+     */
+    synchronized Future<Map<Key, Entity>> dispatch() {
+      if (result == null) {
+        try {
+          result = datastore.doGet(null, keys);
+        } catch (RuntimeException e) {
+          result = new FutureHelper.FailedFuture<Map<Key, Entity>>(e);
+        }
+      }
+      return result;
+    }
+  }
+
+  /**
+   * The {@link Future} handed out for a buffered get. Accessing it sends the
+   * batch the get belongs to.
+   */
+  private static final class GetFuture extends FutureWrapper<Map<Key, Entity>, Entity> {
+    private final Key key;
+
+    GetFuture(final Batch batch, Key key) {
+      super(new Future<Map<Key, Entity>>() {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+          return batch.dispatch().cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+          return batch.dispatch().isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+          return batch.dispatch().isDone();
+        }
+
+        @Override
+        public Map<Key, Entity> get() throws InterruptedException, ExecutionException {
+          return batch.dispatch().get();
+        }
+
+        @Override
+        public Map<Key, Entity> get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+          return batch.dispatch().get(timeout, unit);
+        }
+      });
+      this.key = key;
+    }
+
+    @Override
+    protected Entity wrap(Map<Key, Entity> entities) throws Exception {
+      Entity entity = entities.get(key);
+      if (entity == null) {
+        throw new EntityNotFoundException(key);
+      }
+      return entity;
+    }
+
+    @Override
+    protected Throwable convertException(Throwable cause) {
+      return cause;
+    }
+  }
+}
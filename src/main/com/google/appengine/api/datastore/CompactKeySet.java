@@ -0,0 +1,87 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.datastore;
+
+import java.util.Arrays;
+
+/**
+ * A set of {@link Key Keys} that only retains the encoded form of each key.
+ *
+ * {@link PreparedMultiQuery} needs to remember every key it has returned so
+ * it can drop duplicates, which with a {@link java.util.HashSet} keeps the
+ * full object graph of every {@link Key} (parents, {@link AppIdNamespace} and
+ * all) alive for the life of the iterator. Instead we store the serialized
+ * {@code Reference} of each key in an open addressing table indexed by a
+ * 64-bit hash of those bytes. Hashes are compared first and the bytes are
+ * only compared when the hashes match, so collisions never cause a key to be
+ * dropped.
+ *
+ * Note: this class is not thread-safe.
+ *
+ */
+final class CompactKeySet {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private long[] hashes = new long[INITIAL_CAPACITY];
+  private byte[][] encodedKeys = new byte[INITIAL_CAPACITY][];
+  private int size = 0;
+
+  /**
+   * Adds the given key to the set.
+   *
+   * @return {@code true} if the set did not already contain the key
+   */
+  boolean add(Key key) {
+    byte[] encodedKey = KeyTranslator.convertToPb(key).toByteArray();
+    long hash = hash(encodedKey);
+    int mask = encodedKeys.length - 1;
+    int i = (int) (hash ^ (hash >>> 32)) & mask;
+    while (encodedKeys[i] != null) {
+      if (hashes[i] == hash && Arrays.equals(encodedKeys[i], encodedKey)) {
+        return false;
+      }
+      i = (i + 1) & mask;
+    }
+    hashes[i] = hash;
+    encodedKeys[i] = encodedKey;
+    if (++size * 2 > encodedKeys.length) {
+      resize();
+    }
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void resize() {
+    long[] oldHashes = hashes;
+    byte[][] oldEncodedKeys = encodedKeys;
+    hashes = new long[oldHashes.length * 2];
+    encodedKeys = new byte[oldEncodedKeys.length * 2][];
+    int mask = encodedKeys.length - 1;
+    for (int j = 0; j < oldEncodedKeys.length; ++j) {
+      if (oldEncodedKeys[j] != null) {
+        long hash = oldHashes[j];
+        int i = (int) (hash ^ (hash >>> 32)) & mask;
+        while (encodedKeys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        hashes[i] = hash;
+        encodedKeys[i] = oldEncodedKeys[j];
+      }
+    }
+  }
+
+  /**
+   * 64-bit FNV-1a hash of the given bytes.
+   */
+  private static long hash(byte[] bytes) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : bytes) {
+      hash ^= b & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+}
@@ -14,14 +14,17 @@ import com.google.storage.onestore.v3.OnestoreEntity.PropertyValue.ReferenceValu
 import com.google.storage.onestore.v3.OnestoreEntity.PropertyValue.ReferenceValuePathElement;
 import com.google.storage.onestore.v3.OnestoreEntity.PropertyValue.UserValue;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * {@code DataTypeTranslator} is a utility class for converting
@@ -33,6 +36,8 @@ public final class DataTypeTranslator  {
 
   private static final StringType STRING_TYPE = new StringType();
 
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
   /**
    * The list of supported types.
    *
@@ -75,6 +80,33 @@ public final class DataTypeTranslator  {
         DataTypeUtils.getSupportedTypes();
   }
 
+  /**
+   * The types in {@link #typeMap}, grouped by their {@link Property.Meaning
+   * Meaning}, so that decoding a property only considers the handful of types
+   * that could have produced it.  Types that have no meaning are stored under
+   * the {@code null} key.
+   */
+  private static final Map<Property.Meaning, Type<?>[]> typesByMeaning =
+      new HashMap<Property.Meaning, Type<?>[]>();
+  static {
+    Map<Property.Meaning, List<Type<?>>> grouped = new HashMap<Property.Meaning, List<Type<?>>>();
+    Set<Class<?>> typeClasses = new HashSet<Class<?>>();
+    for (Type<?> type : typeMap.values()) {
+      if (!typeClasses.add(type.getClass())) {
+        continue;
+      }
+      List<Type<?>> types = grouped.get(type.getMeaning());
+      if (types == null) {
+        types = new ArrayList<Type<?>>();
+        grouped.put(type.getMeaning(), types);
+      }
+      types.add(type);
+    }
+    for (Map.Entry<Property.Meaning, List<Type<?>>> entry : grouped.entrySet()) {
+      typesByMeaning.put(entry.getKey(), entry.getValue().toArray(new Type<?>[0]));
+    }
+  }
+
   /**
    * A map with the {@link Comparable} classes returned by all the instances of
    * {@link AsComparableFunction} as keys and the pb code point as the value.
@@ -141,9 +173,8 @@ public final class DataTypeTranslator  {
    */
   private static void addProperty(EntityProto entity, String name, Object value,
                                   boolean indexed, boolean multiple) {
-    Pair<Type<?>, Property> pair = createProperty(name, value, multiple);
-    Type<?> type = pair.first();
-    Property property = pair.second();
+    Type<?> type = (value == null) ? null : getType(value.getClass());
+    Property property = createProperty(name, value, type, multiple);
 
     if (!indexed || (type != null && type.getComparableFunction() == null)) {
       entity.addRawProperty(property);
@@ -158,39 +189,28 @@ public final class DataTypeTranslator  {
    *
    * @param name The name used as a key
    * @param value The value for the Property
+   * @param type The {@code Type} of {@code value}, {@code null} iff
+   * {@code value} is null
    * @param multiple true iff there are also other Properties with the same name
    *
-   * @return a not {@code null} Pair<Type, Property>. The {@code Type} will be null
-   * iff {@code value} is null. {@code Property} will not be null.
+   * @return a not {@code null} {@code Property}
    */
-  private static Pair<Type<?>, Property> createProperty(String name, Object value,
+  private static Property createProperty(String name, Object value, Type<?> type,
       boolean multiple) {
     Property property = new Property();
     property.setName(name);
     property.setMultiple(multiple);
 
     if (value == null) {
-      return Pair.of(null, property);
+      return property;
     }
 
-    Pair<Type<?>, PropertyValue> newValue = createPropertyValue(value);
-    Type<?> type = newValue.first;
     Property.Meaning meaning = type.getMeaning();
     if (meaning != null) {
       property.setMeaning(meaning);
     }
-    property.setValue(newValue.second);
-    return new Pair<Type<?>, Property>(type, property);
-  }
-
-  private static Pair<Type<?>, PropertyValue> createPropertyValue(Object value) {
-    if (value == null) {
-      return Pair.of(null, null);
-    }
-    PropertyValue newValue = new PropertyValue();
-    Type<?> type = getType(value.getClass());
-    type.setPropertyValue(newValue, value);
-    return new Pair<Type<?>, PropertyValue>(type, newValue);
+    type.setPropertyValue(property.getMutableValue(), value);
+    return property;
   }
 
   /**
@@ -222,6 +242,27 @@ public final class DataTypeTranslator  {
     extractUnindexedPropertiesFromPb(proto, map);
   }
 
+  /**
+   * Copy the values of the property named {@code propertyName}, if it is
+   * present on {@code proto}, into {@code map}.  Property names are compared
+   * in their encoded form so that the names of the other properties are not
+   * decoded.
+   */
+  static void extractPropertyFromPb(EntityProto proto, String propertyName,
+      Map<String, Object> map) {
+    byte[] encodedName = propertyName.getBytes(UTF_8);
+    for (Property property : proto.propertys()) {
+      if (Arrays.equals(property.getNameAsBytes(), encodedName)) {
+        addPropertyValueToMap(property, map, true);
+      }
+    }
+    for (Property property : proto.rawPropertys()) {
+      if (Arrays.equals(property.getNameAsBytes(), encodedName)) {
+        addPropertyValueToMap(property, map, false);
+      }
+    }
+  }
+
   /**
    * Copy all of the implicit properties present on {@code proto}
    * into {@code map}.
@@ -311,10 +352,13 @@ public final class DataTypeTranslator  {
    * @return {@code null} if no value was set for {@code property}
    */
   public static Object getPropertyValue(Property property) {
-    PropertyValue value = property.getValue();
-    for (Type<?> type : typeMap.values()) {
-      if (type.hasPropertyValue(value) && type.getMeaning() == property.getMeaningEnum()) {
-        return type.getPropertyValue(value);
+    Type<?>[] types = typesByMeaning.get(property.getMeaningEnum());
+    if (types != null) {
+      PropertyValue value = property.getValue();
+      for (Type<?> type : types) {
+        if (type.hasPropertyValue(value)) {
+          return type.getPropertyValue(value);
+        }
       }
     }
     return null;
@@ -327,13 +371,13 @@ public final class DataTypeTranslator  {
    * @return {@code null} if no value was set for {@code property}
    */
   public static Comparable<Object> getComparablePropertyValue(Property property) {
-    PropertyValue value = property.getValue();
-    for (Type<?> type : typeMap.values()) {
-      if (type.hasPropertyValue(value) &&
-          type.getMeaning() == property.getMeaningEnum() &&
-          type.getComparableFunction() != null) {
-        return toComparableObject(
-            type.getComparableFunction().asComparable(value));
+    Type<?>[] types = typesByMeaning.get(property.getMeaningEnum());
+    if (types != null) {
+      PropertyValue value = property.getValue();
+      for (Type<?> type : types) {
+        if (type.hasPropertyValue(value) && type.getComparableFunction() != null) {
+          return toComparableObject(type.getComparableFunction().asComparable(value));
+        }
       }
     }
     return null;
@@ -348,12 +392,13 @@ public final class DataTypeTranslator  {
    * @throws UnsupportedOperationException if value is not supported
    */
   static Comparable<Object> getComparablePropertyValue(Object value) {
-    Pair<Type<?>, PropertyValue> newValue = createPropertyValue(value);
-    if (newValue.first != null) {
-        return toComparableObject(
-            newValue.first.getComparableFunction().asComparable(newValue.second));
+    if (value == null) {
+      return null;
     }
-    return null;
+    Type<?> type = getType(value.getClass());
+    PropertyValue propertyValue = new PropertyValue();
+    type.setPropertyValue(propertyValue, value);
+    return toComparableObject(type.getComparableFunction().asComparable(propertyValue));
   }
 
   /**
@@ -378,7 +423,8 @@ public final class DataTypeTranslator  {
    * and {@code value}.
    */
   static Property toProperty(String propertyName, Object value) {
-    return createProperty(propertyName, value, false).second();
+    Type<?> type = (value == null) ? null : getType(value.getClass());
+    return createProperty(propertyName, value, type, false);
   }
 
   /**
@@ -389,11 +435,11 @@ public final class DataTypeTranslator  {
    */
   @SuppressWarnings("unchecked")
   private static <T> Type<T> getType(Class<T> clazz) {
-    if (typeMap.containsKey(clazz)) {
-      return (Type<T>) typeMap.get(clazz);
-    } else {
+    Type<T> type = (Type<T>) typeMap.get(clazz);
+    if (type == null) {
       throw new UnsupportedOperationException("Unsupported data type: " + clazz.getName());
     }
+    return type;
   }
 
   /**
@@ -1101,30 +1147,6 @@ public final class DataTypeTranslator  {
     }
   }
 
-  private static class Pair<T, U> {
-
-    private final T first;
-
-    private final U second;
-
-    Pair(T t, U u) {
-      first = t;
-      second = u;
-    }
-
-    T first() {
-      return first;
-    }
-
-    U second() {
-      return second;
-    }
-
-    public static <T, U> Pair<T, U> of(T t, U u) {
-      return new Pair<T, U>(t, u);
-    }
-  }
-
   static Map<Class<?>, Type<?>> getTypeMap() {
     return typeMap;
   }
@@ -123,6 +123,10 @@ public final class DatastoreServiceConfig {
   private int maxBatchReadEntities = DEFAULT_MAX_BATCH_GET_KEYS;
   private int maxEntityGroupsPerRpc = DEFAULT_MAX_ENTITY_GROUPS_PER_RPC;
   private int maxEntityGroupsPerHighRepReadRpc = DEFAULT_MAX_ENTITY_GROUPS_PER_HIGH_REP_READ_RPC;
+  private Integer autoBatchWindowMillis;
+  private Integer maxConcurrentRpcs;
+  private Integer entityCacheSize;
+  private Integer entityCacheMemcacheExpirationSeconds;
 
   /**
    * Cannot be directly instantiated, use {@link Builder} instead.
@@ -141,6 +145,10 @@ public final class DatastoreServiceConfig {
     maxBatchReadEntities = config.maxBatchReadEntities;
     maxEntityGroupsPerRpc = config.maxEntityGroupsPerRpc;
     maxEntityGroupsPerHighRepReadRpc = config.maxEntityGroupsPerHighRepReadRpc;
+    autoBatchWindowMillis = config.autoBatchWindowMillis;
+    maxConcurrentRpcs = config.maxConcurrentRpcs;
+    entityCacheSize = config.entityCacheSize;
+    entityCacheMemcacheExpirationSeconds = config.entityCacheMemcacheExpirationSeconds;
   }
 
   /**
@@ -266,6 +274,124 @@ public final class DatastoreServiceConfig {
     return this;
   }
 
+  /**
+   * Sets the maximum number of rpcs a single non-transactional batch get,
+   * put or delete keeps in flight when it is split into multiple rpcs by
+   * entity group (see {@link #maxEntityGroupsPerRpc(int)}).
+   *
+   * The remaining rpcs of a get are started as the earlier ones complete
+   * while the result of the get is being retrieved.  A put or delete instead
+   * blocks the caller until the window has room for each of its rpcs, and
+   * returns once all of them have been started, so that writes are sent even
+   * if their results are never retrieved.  Within this maximum, the number of
+   * rpcs in flight adapts to the observed rpc latency: it shrinks when rpcs
+   * slow down and grows back when they speed up.  By default all rpcs are
+   * started at once.
+   *
+   * @param maxConcurrentRpcs the maximum number of rpcs in flight
+   * @throws IllegalArgumentException if maxConcurrentRpcs is not greater
+   * than zero
+   * @return {@code this} (for chaining)
+   */
+  public DatastoreServiceConfig maxConcurrentRpcs(int maxConcurrentRpcs) {
+    if (maxConcurrentRpcs <= 0) {
+      throw new IllegalArgumentException("maxConcurrentRpcs must be > 0, got "
+          + maxConcurrentRpcs);
+    }
+    this.maxConcurrentRpcs = maxConcurrentRpcs;
+    return this;
+  }
+
+  /**
+   * Enables the entity cache of the {@link DatastoreService} or
+   * {@link AsyncDatastoreService} with which this config is associated.
+   *
+   * Gets that are not part of a transaction and that use a read policy
+   * other than {@link Consistency#STRONG} are first looked up in a cache
+   * that lives for the duration of the request, then in a cache of at most
+   * {@code entityCacheSize} entities shared by all requests served by the
+   * instance and finally, if enabled with
+   * {@link #entityCacheMemcacheExpirationSeconds(int)}, in memcache.  The
+   * first two levels are shared by every service in the instance that has an
+   * entity cache, and entities expire from the instance level after a
+   * minute.  Entities are removed from the cache when any of those services
+   * puts or deletes them, but writes made by other instances or through
+   * services without an entity cache are not seen until the cached entities
+   * expire.  Hit and miss counts for the current request are available from
+   * {@link EntityCacheStats}.
+   *
+   * @param entityCacheSize the maximum number of entities kept in the
+   * per-instance cache; the cache holds the largest size configured by any
+   * service
+   * @throws IllegalArgumentException if entityCacheSize is not greater than
+   * zero
+   * @return {@code this} (for chaining)
+   */
+  public DatastoreServiceConfig entityCacheSize(int entityCacheSize) {
+    if (entityCacheSize <= 0) {
+      throw new IllegalArgumentException("entityCacheSize must be > 0, got "
+          + entityCacheSize);
+    }
+    this.entityCacheSize = entityCacheSize;
+    return this;
+  }
+
+  /**
+   * Adds memcache as the last level of the entity cache enabled with
+   * {@link #entityCacheSize(int)}.
+   *
+   * @param entityCacheMemcacheExpirationSeconds the number of seconds
+   * entities are kept in memcache
+   * @throws IllegalArgumentException if entityCacheMemcacheExpirationSeconds
+   * is not greater than zero
+   * @return {@code this} (for chaining)
+   */
+  public DatastoreServiceConfig entityCacheMemcacheExpirationSeconds(
+      int entityCacheMemcacheExpirationSeconds) {
+    if (entityCacheMemcacheExpirationSeconds <= 0) {
+      throw new IllegalArgumentException("entityCacheMemcacheExpirationSeconds must be > 0, got "
+          + entityCacheMemcacheExpirationSeconds);
+    }
+    this.entityCacheMemcacheExpirationSeconds = entityCacheMemcacheExpirationSeconds;
+    return this;
+  }
+
+  /**
+   * Enables auto-batching in the {@link AsyncDatastoreService} with which
+   * this config is associated.
+   *
+   * When auto-batching is enabled, single entity gets that are not part of
+   * a transaction are buffered and sent together as batch gets.  Buffered
+   * gets are sent when the result of one of them is requested or checked
+   * with {@link java.util.concurrent.Future#isDone()}, when the buffer
+   * reaches the maximum batch size, when a new get is issued more than
+   * {@code autoBatchWindowMillis} after the first buffered get, or when any
+   * other operation is performed with the same service.  Gets are buffered
+   * per request, and gets whose results are never requested may not be sent
+   * at all.  Puts and deletes are always sent immediately.  An
+   * {@code autoBatchWindowMillis} of 0 sends every get immediately.
+   *
+   * Auto-batching has no effect on the synchronous {@link DatastoreService}.
+   *
+   * @param autoBatchWindowMillis the maximum time, in milliseconds, an
+   * operation waits for other operations to join its batch.
+   * @throws IllegalArgumentException if autoBatchWindowMillis is negative
+   * @return {@code this} (for chaining)
+   */
+  public DatastoreServiceConfig autoBatchWindowMillis(int autoBatchWindowMillis) {
+    if (autoBatchWindowMillis < 0) {
+      throw new IllegalArgumentException("autoBatchWindowMillis must be >= 0, got "
+          + autoBatchWindowMillis);
+    }
+    this.autoBatchWindowMillis = autoBatchWindowMillis;
+    return this;
+  }
+
+  DatastoreServiceConfig clearAutoBatchWindowMillis() {
+    autoBatchWindowMillis = null;
+    return this;
+  }
+
   /**
    * @return The {@code ImplicitTransactionManagementPolicy} to use.
    */
@@ -295,6 +421,42 @@ public final class DatastoreServiceConfig {
     return maxEntityGroupsPerHighRepReadRpc;
   }
 
+  int getMaxBatchReadEntities() {
+    return maxBatchReadEntities;
+  }
+
+  /**
+   * @return The maximum number of rpcs in flight per batch operation, or
+   * {@code null} if there is no maximum.
+   */
+  public Integer getMaxConcurrentRpcs() {
+    return maxConcurrentRpcs;
+  }
+
+  /**
+   * @return The maximum number of entities in the per-instance entity
+   * cache, or {@code null} if the entity cache is disabled.
+   */
+  public Integer getEntityCacheSize() {
+    return entityCacheSize;
+  }
+
+  /**
+   * @return The number of seconds the entity cache keeps entities in
+   * memcache, or {@code null} if the entity cache does not use memcache.
+   */
+  public Integer getEntityCacheMemcacheExpirationSeconds() {
+    return entityCacheMemcacheExpirationSeconds;
+  }
+
+  /**
+   * @return The auto-batching window, in milliseconds, or {@code null} if
+   * auto-batching is disabled.
+   */
+  public Integer getAutoBatchWindowMillis() {
+    return autoBatchWindowMillis;
+  }
+
   /**
    * @return The deadline to use.  Can be {@code null}.
    */
@@ -384,6 +546,41 @@ public final class DatastoreServiceConfig {
     public static DatastoreServiceConfig withMaxEntityGroupsPerRpc(int maxEntityGroupsPerRpc) {
       return withDefaults().maxEntityGroupsPerRpc(maxEntityGroupsPerRpc);
     }
+
+    /**
+     * Create a {@link DatastoreServiceConfig} with the given maximum number
+     * of rpcs in flight per batch operation.
+     * @param maxConcurrentRpcs the maximum number of rpcs in flight.
+     * @return The newly created DatastoreServiceConfig instance.
+     *
+     * @see {@link DatastoreServiceConfig#maxConcurrentRpcs(int)}
+     */
+    public static DatastoreServiceConfig withMaxConcurrentRpcs(int maxConcurrentRpcs) {
+      return withDefaults().maxConcurrentRpcs(maxConcurrentRpcs);
+    }
+
+    /**
+     * Create a {@link DatastoreServiceConfig} with the entity cache enabled.
+     * @param entityCacheSize the maximum number of entities kept in the
+     * per-instance cache.
+     * @return The newly created DatastoreServiceConfig instance.
+     *
+     * @see {@link DatastoreServiceConfig#entityCacheSize(int)}
+     */
+    public static DatastoreServiceConfig withEntityCacheSize(int entityCacheSize) {
+      return withDefaults().entityCacheSize(entityCacheSize);
+    }
+
+    /**
+     * Create a {@link DatastoreServiceConfig} with auto-batching enabled.
+     * @param autoBatchWindowMillis the auto-batching window, in milliseconds.
+     * @return The newly created DatastoreServiceConfig instance.
+     *
+     * @see {@link DatastoreServiceConfig#autoBatchWindowMillis(int)}
+     */
+    public static DatastoreServiceConfig withAutoBatchWindowMillis(int autoBatchWindowMillis) {
+      return withDefaults().autoBatchWindowMillis(autoBatchWindowMillis);
+    }
     /**
      * Helper method for creating a {@link DatastoreServiceConfig}
      * instance with default values: Implicit transactions are disabled, reads
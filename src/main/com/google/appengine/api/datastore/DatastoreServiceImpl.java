@@ -26,7 +26,22 @@ final class DatastoreServiceImpl extends BaseDatastoreServiceImpl implements Dat
       DatastoreServiceConfig datastoreServiceConfig, TransactionStack defaultTxnProvider) {
     super(datastoreServiceConfig, defaultTxnProvider);
     async = new AsyncDatastoreServiceImpl(
-        disableAutoTxnCreation(datastoreServiceConfig), defaultTxnProvider);
+        disableAutoBatching(disableAutoTxnCreation(datastoreServiceConfig)),
+        defaultTxnProvider);
+  }
+
+  /**
+   * Every operation of the synchronous service waits for its result right
+   * away, so there is nothing for the async service to batch.
+   * @param datastoreServiceConfig Config that may have auto-batching enabled.
+   * @return A config with auto-batching disabled.
+   */
+  private static DatastoreServiceConfig disableAutoBatching(
+      DatastoreServiceConfig datastoreServiceConfig) {
+    if (datastoreServiceConfig.getAutoBatchWindowMillis() == null) {
+      return datastoreServiceConfig;
+    }
+    return new DatastoreServiceConfig(datastoreServiceConfig).clearAutoBatchWindowMillis();
   }
 
   /**
@@ -4,6 +4,8 @@ package com.google.appengine.api.datastore;
 
 import com.google.storage.onestore.v3.OnestoreEntity;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -43,6 +45,14 @@ public final class Entity implements Cloneable, Serializable {
 
   private transient OnestoreEntity.EntityProto entityProto;
 
+  /**
+   * The proto this entity was read from, as long as some of its properties
+   * may not have been decoded into {@code propertyMap} yet.  While this is
+   * set, {@code propertyMap} is only accessed while holding the lock on this
+   * entity, since reads may add to it.
+   */
+  private transient volatile OnestoreEntity.EntityProto undecodedProto;
+
   static final class UnindexedValue implements Serializable {
     private final Object value;
 
@@ -221,6 +231,12 @@ public final class Entity implements Cloneable, Serializable {
    * @return the property corresponding to {@code propertyName}.
    */
   public Object getProperty(String propertyName) {
+    if (undecodedProto != null) {
+      synchronized (this) {
+        decodeProperty(propertyName);
+        return unwrapValue(propertyMap.get(propertyName));
+      }
+    }
     return unwrapValue(propertyMap.get(propertyName));
   }
 
@@ -230,6 +246,7 @@ public final class Entity implements Cloneable, Serializable {
    * @return an unmodifiable {@code Map} of properties.
    */
   public Map<String, Object> getProperties() {
+    decodeAllProperties();
     Map<String, Object> properties = new HashMap<String, Object>(propertyMap.size());
 
     for (Map.Entry<String, Object> entry : propertyMap.entrySet()) {
@@ -252,6 +269,12 @@ public final class Entity implements Cloneable, Serializable {
    * @return true iff the property named {@code propertyName} exists.
    */
   public boolean hasProperty(String propertyName) {
+    if (undecodedProto != null) {
+      synchronized (this) {
+        decodeProperty(propertyName);
+        return propertyMap.containsKey(propertyName);
+      }
+    }
     return propertyMap.containsKey(propertyName);
   }
 
@@ -262,6 +285,7 @@ public final class Entity implements Cloneable, Serializable {
    * @throws NullPointerException If {@code propertyName} is null.
    */
   public void removeProperty(String propertyName) {
+    decodeAllProperties();
     propertyMap.remove(propertyName);
   }
 
@@ -295,6 +319,7 @@ public final class Entity implements Cloneable, Serializable {
    */
   public void setProperty(String propertyName, Object value) {
     DataTypeUtils.checkSupportedValue(propertyName, value);
+    decodeAllProperties();
     propertyMap.put(propertyName, value);
   }
 
@@ -315,6 +340,7 @@ public final class Entity implements Cloneable, Serializable {
    */
   public void setUnindexedProperty(String propertyName, Object value) {
     DataTypeUtils.checkSupportedValue(propertyName, value);
+    decodeAllProperties();
     propertyMap.put(propertyName, new UnindexedValue(value));
   }
 
@@ -324,13 +350,22 @@ public final class Entity implements Cloneable, Serializable {
    * added using {@link #setUnindexedProperty}.
    */
   public boolean isUnindexedProperty(String propertyName) {
-    Object value = propertyMap.get(propertyName);
+    Object value;
+    if (undecodedProto != null) {
+      synchronized (this) {
+        decodeProperty(propertyName);
+        value = propertyMap.get(propertyName);
+      }
+    } else {
+      value = propertyMap.get(propertyName);
+    }
     return (value instanceof UnindexedValue) || (value instanceof Text) ||
           (value instanceof Blob);
   }
 
   @Override
   public String toString() {
+    decodeAllProperties();
     StringBuffer buffer = new StringBuffer();
     buffer.append("<Entity [" + key + "]:\n");
     for (Map.Entry<String, Object> entry : propertyMap.entrySet()) {
@@ -390,6 +425,8 @@ public final class Entity implements Cloneable, Serializable {
    * @param src The entity from which we will populate ourself.
    */
   public void setPropertiesFrom(Entity src) {
+    src.decodeAllProperties();
+    decodeAllProperties();
     for (Map.Entry<String, Object> entry : src.propertyMap.entrySet()) {
       String name = entry.getKey();
       Object entryValue = entry.getValue();
@@ -442,9 +479,63 @@ public final class Entity implements Cloneable, Serializable {
   }
 
   Map<String, Object> getPropertyMap() {
+    decodeAllProperties();
     return propertyMap;
   }
 
+  /**
+   * Makes this entity decode its properties from {@code proto} as they are
+   * accessed rather than up front.  Must be called before any property is
+   * set, and {@code proto} must not be modified afterwards.
+   */
+  void setUndecodedProto(OnestoreEntity.EntityProto proto) {
+    if (proto.propertySize() > 0 || proto.rawPropertySize() > 0) {
+      this.undecodedProto = proto;
+    }
+  }
+
+  /**
+   * Decodes the values of {@code propertyName} from {@link #undecodedProto}
+   * unless that has already happened.  Must be called while holding the lock
+   * on this entity.
+   */
+  private void decodeProperty(String propertyName) {
+    OnestoreEntity.EntityProto proto = undecodedProto;
+    if (proto != null && !propertyMap.containsKey(propertyName)) {
+      DataTypeTranslator.extractPropertyFromPb(proto, propertyName, propertyMap);
+    }
+  }
+
+  /**
+   * Decodes all the properties that have not been decoded yet, after which
+   * {@code propertyMap} can be accessed without holding the lock on this
+   * entity.
+   */
+  private void decodeAllProperties() {
+    if (undecodedProto == null) {
+      return;
+    }
+    synchronized (this) {
+      OnestoreEntity.EntityProto proto = undecodedProto;
+      if (proto == null) {
+        return;
+      }
+      Map<String, Object> decoded = new HashMap<String, Object>();
+      DataTypeTranslator.extractPropertiesFromPb(proto, decoded);
+      for (Map.Entry<String, Object> entry : decoded.entrySet()) {
+        if (!propertyMap.containsKey(entry.getKey())) {
+          propertyMap.put(entry.getKey(), entry.getValue());
+        }
+      }
+      undecodedProto = null;
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    decodeAllProperties();
+    out.defaultWriteObject();
+  }
+
   void setEntityProto(OnestoreEntity.EntityProto entityProto) {
     this.entityProto = entityProto;
   }
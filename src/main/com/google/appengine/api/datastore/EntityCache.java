@@ -0,0 +1,443 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.datastore;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A read-through cache of {@link Entity Entities} used by
+ * {@link AsyncDatastoreServiceImpl} for non-transactional, eventually
+ * consistent gets.
+ *
+ * Lookups go through up to three levels:
+ * <ol>
+ * <li>a map that lives for the duration of the current request, stored in
+ * the attributes of the request's {@link ApiProxy.Environment},
+ * <li>a size-bounded LRU map shared by all requests served by this instance,
+ * in which entries expire after {@link #INSTANCE_EXPIRATION_MILLIS},
+ * <li>optionally, memcache.
+ * </ol>
+ * A hit at one level populates the levels above it.  The first two levels
+ * are shared by every entity cache in the process, and the instance level
+ * holds as many entities as the largest cache that was created.  Entries are
+ * removed from all levels when a datastore service with an entity cache puts
+ * or deletes the corresponding entity, both before the write is sent and once
+ * it has completed, and no entity is added to the cache while a write to it
+ * is in flight.  Writes made in a transaction are handled the same way when
+ * the transaction is committed or rolled back.  The rpcs of writes cannot
+ * notify us when they complete, so writes in flight are checked for
+ * completion whenever the cache is used.  Writes made by other instances (or
+ * by services without an entity cache) are only seen once the entries are
+ * gone from memcache and have expired locally, which is why the cache is
+ * never used for strongly consistent reads.
+ *
+ * Cached entities are cloned on the way in and on the way out, so callers
+ * are free to modify the entities they get back.
+ *
+ * This class is thread-safe.
+ *
+ */
+final class EntityCache {
+  private static final Logger logger = Logger.getLogger(EntityCache.class.getName());
+
+  /**
+   * The memcache namespace in which entities are cached.
+   */
+  static final String MEMCACHE_NAMESPACE = "_ah_entity_cache";
+
+  /**
+   * The number of milliseconds an entity is kept in the instance level.
+   */
+  static final long INSTANCE_EXPIRATION_MILLIS = 60 * 1000;
+
+  private static final String REQUEST_CACHE_KEY = EntityCache.class.getName();
+
+  /**
+   * The maximum number of entities in {@link #instanceCache}.  Guarded by
+   * {@code instanceCache}.
+   */
+  private static int instanceCacheSize = 0;
+
+  private static final Map<Key, CachedEntity> instanceCache =
+      new LinkedHashMap<Key, CachedEntity>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, CachedEntity> eldest) {
+          return size() > instanceCacheSize;
+        }
+      };
+
+  /**
+   * Incremented on every invalidation so that results of gets that were in
+   * flight during an invalidation are not added to the cache.
+   */
+  private static final AtomicLong generation = new AtomicLong();
+
+  /**
+   * Whether any entity cache in the process uses memcache, in which case
+   * every invalidation removes entities from memcache.
+   */
+  private static volatile boolean memcacheInUse = false;
+
+  /**
+   * Whether any entity cache has been created in the process.  Until then
+   * invalidations are skipped.
+   */
+  private static volatile boolean inUse = false;
+
+  /**
+   * The writes that have been sent but not yet seen to complete.  Guarded by
+   * {@code pendingWrites}.
+   */
+  private static final List<PendingWrite> pendingWrites = new ArrayList<PendingWrite>();
+
+  /**
+   * The number of writes in {@link #pendingWrites} for each key.  Guarded by
+   * {@code pendingWrites}.
+   */
+  private static final Map<Key, Integer> pendingWriteCounts = new HashMap<Key, Integer>();
+
+  private final AsyncMemcacheService memcache;
+  private final Expiration memcacheExpiration;
+
+  /**
+   * A write that is in flight and the keys it writes.
+   */
+  private static final class PendingWrite {
+    final Future<?> write;
+    final List<Key> keys;
+
+    PendingWrite(Future<?> write, List<Key> keys) {
+      this.write = write;
+      this.keys = keys;
+    }
+  }
+
+  /**
+   * An entity in the instance level and the time at which it expires.
+   */
+  private static final class CachedEntity {
+    final Entity entity;
+    final long expiresAt;
+
+    CachedEntity(Entity entity, long expiresAt) {
+      this.entity = entity;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * @param maxEntities The maximum number of entities kept in the
+   * per-instance cache.  The cache is shared, so it keeps the largest number
+   * any entity cache asked for.
+   * @param memcacheExpirationSeconds The number of seconds entities are kept
+   * in memcache, or {@code null} to not use memcache.
+   */
+  EntityCache(int maxEntities, Integer memcacheExpirationSeconds) {
+    synchronized (instanceCache) {
+      instanceCacheSize = Math.max(instanceCacheSize, maxEntities);
+    }
+    inUse = true;
+    if (memcacheExpirationSeconds != null) {
+      this.memcache = MemcacheServiceFactory.getAsyncMemcacheService(MEMCACHE_NAMESPACE);
+      this.memcacheExpiration = Expiration.byDeltaSeconds(memcacheExpirationSeconds);
+      memcacheInUse = true;
+    } else {
+      this.memcache = null;
+      this.memcacheExpiration = null;
+    }
+  }
+
+  /**
+   * Looks up the given keys.
+   *
+   * @param keys The keys to look up.
+   * @param misses An out parameter to which the keys that were not found are
+   * added.
+   * @return The entities that were found.
+   */
+  Map<Key, Entity> getAll(Iterable<Key> keys, List<Key> misses) {
+    invalidateCompletedWrites();
+    Map<Key, Entity> hits = new HashMap<Key, Entity>();
+    Map<Key, Entity> requestCache = getRequestCache();
+    EntityCacheStats stats = getStats();
+    List<Key> instanceMisses = new ArrayList<Key>();
+    for (Key key : keys) {
+      Entity entity = requestCache != null ? requestCache.get(key) : null;
+      if (entity != null) {
+        hits.put(key, entity.clone());
+        if (stats != null) {
+          stats.recordRequestHit();
+        }
+        continue;
+      }
+      entity = getFromInstanceCache(key);
+      if (entity != null) {
+        hits.put(key, entity.clone());
+        if (requestCache != null) {
+          requestCache.put(key, entity);
+        }
+        if (stats != null) {
+          stats.recordInstanceHit();
+        }
+      } else {
+        instanceMisses.add(key);
+      }
+    }
+
+    if (memcache != null && !instanceMisses.isEmpty()) {
+      Map<Key, Object> memcacheHits = getFromMemcache(instanceMisses);
+      for (Key key : instanceMisses) {
+        Object value = memcacheHits.get(key);
+        if (value instanceof Entity) {
+          Entity entity = (Entity) value;
+          hits.put(key, entity.clone());
+          putLocally(requestCache, key, entity);
+          if (stats != null) {
+            stats.recordMemcacheHit();
+          }
+        } else {
+          misses.add(key);
+        }
+      }
+    } else {
+      misses.addAll(instanceMisses);
+    }
+    if (stats != null) {
+      stats.recordMisses(misses.size());
+    }
+    return hits;
+  }
+
+  /**
+   * @return A token to pass to {@link #putAll(Collection, long)}, taken
+   * before fetching entities from the datastore.
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Adds entities that were fetched from the datastore to the cache, unless
+   * an invalidation has happened since {@code fetchGeneration} was taken.
+   * Entities with a write in flight are not added.
+   */
+  void putAll(Collection<Entity> entities, long fetchGeneration) {
+    invalidateCompletedWrites();
+    if (entities.isEmpty() || generation.get() != fetchGeneration) {
+      return;
+    }
+    Map<Key, Entity> requestCache = getRequestCache();
+    Map<Key, Entity> toMemcache = new HashMap<Key, Entity>();
+    for (Entity entity : entities) {
+      if (hasPendingWrite(entity.getKey())) {
+        continue;
+      }
+      Entity copy = entity.clone();
+      putLocally(requestCache, copy.getKey(), copy);
+      toMemcache.put(copy.getKey(), copy);
+    }
+    if (memcache != null && !toMemcache.isEmpty()) {
+      try {
+        memcache.putAll(toMemcache, memcacheExpiration);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to add entities to memcache", e);
+      }
+    }
+  }
+
+  /**
+   * Removes the entities with the given keys from every level of the cache.
+   * Incomplete keys are ignored.
+   */
+  static void invalidate(Iterable<Key> keys) {
+    if (!inUse) {
+      return;
+    }
+    invalidateCompletedWrites();
+    invalidateNow(completeKeys(keys));
+  }
+
+  /**
+   * Keeps the entities with the given keys out of the cache until
+   * {@code write} is done, and then removes them from every level of the
+   * cache.  Incomplete keys are ignored.
+   */
+  static void invalidateOnCompletion(Future<?> write, Iterable<Key> keys) {
+    if (!inUse) {
+      return;
+    }
+    List<Key> completeKeys = completeKeys(keys);
+    if (completeKeys.isEmpty()) {
+      return;
+    }
+    synchronized (pendingWrites) {
+      pendingWrites.add(new PendingWrite(write, completeKeys));
+      for (Key key : completeKeys) {
+        Integer count = pendingWriteCounts.get(key);
+        pendingWriteCounts.put(key, count == null ? 1 : count + 1);
+      }
+    }
+    invalidateCompletedWrites();
+  }
+
+  /**
+   * Removes the keys of the writes in flight that are now done from every
+   * level of the cache.
+   */
+  private static void invalidateCompletedWrites() {
+    List<PendingWrite> candidates;
+    synchronized (pendingWrites) {
+      if (pendingWrites.isEmpty()) {
+        return;
+      }
+      candidates = new ArrayList<PendingWrite>(pendingWrites);
+    }
+    List<PendingWrite> completed = new ArrayList<PendingWrite>();
+    for (PendingWrite pending : candidates) {
+      if (pending.write.isDone()) {
+        completed.add(pending);
+      }
+    }
+    if (completed.isEmpty()) {
+      return;
+    }
+    List<Key> completedKeys = new ArrayList<Key>();
+    synchronized (pendingWrites) {
+      for (PendingWrite pending : completed) {
+        if (!pendingWrites.remove(pending)) {
+          continue;
+        }
+        for (Key key : pending.keys) {
+          int count = pendingWriteCounts.get(key);
+          if (count == 1) {
+            pendingWriteCounts.remove(key);
+          } else {
+            pendingWriteCounts.put(key, count - 1);
+          }
+        }
+        completedKeys.addAll(pending.keys);
+      }
+    }
+    invalidateNow(completedKeys);
+  }
+
+  private static boolean hasPendingWrite(Key key) {
+    synchronized (pendingWrites) {
+      return pendingWriteCounts.containsKey(key);
+    }
+  }
+
+  private static List<Key> completeKeys(Iterable<Key> keys) {
+    List<Key> completeKeys = new ArrayList<Key>();
+    for (Key key : keys) {
+      if (key.isComplete()) {
+        completeKeys.add(key);
+      }
+    }
+    return completeKeys;
+  }
+
+  private static void invalidateNow(List<Key> completeKeys) {
+    if (completeKeys.isEmpty()) {
+      return;
+    }
+    Map<Key, Entity> requestCache = getRequestCache();
+    generation.incrementAndGet();
+    synchronized (instanceCache) {
+      for (Key key : completeKeys) {
+        instanceCache.remove(key);
+      }
+    }
+    if (requestCache != null) {
+      for (Key key : completeKeys) {
+        requestCache.remove(key);
+      }
+    }
+    if (memcacheInUse) {
+      try {
+        MemcacheServiceFactory.getAsyncMemcacheService(MEMCACHE_NAMESPACE)
+            .deleteAll(completeKeys);
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Unable to remove entities from memcache", e);
+      }
+    }
+  }
+
+  private void putLocally(Map<Key, Entity> requestCache, Key key, Entity entity) {
+    if (requestCache != null) {
+      requestCache.put(key, entity);
+    }
+    synchronized (instanceCache) {
+      instanceCache.put(
+          key, new CachedEntity(entity, System.currentTimeMillis() + INSTANCE_EXPIRATION_MILLIS));
+    }
+  }
+
+  /**
+   * @return The entity cached in the instance level for {@code key}, or
+   * {@code null} if there is none or it has expired.
+   */
+  private static Entity getFromInstanceCache(Key key) {
+    synchronized (instanceCache) {
+      CachedEntity cached = instanceCache.get(key);
+      if (cached == null) {
+        return null;
+      }
+      if (cached.expiresAt <= System.currentTimeMillis()) {
+        instanceCache.remove(key);
+        return null;
+      }
+      return cached.entity;
+    }
+  }
+
+  private Map<Key, Object> getFromMemcache(List<Key> keys) {
+    try {
+      return FutureHelper.quietGet(memcache.getAll(keys));
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Unable to get entities from memcache", e);
+      return new HashMap<Key, Object>();
+    }
+  }
+
+  /**
+   * Returns the per-request cache of the current request, or {@code null}
+   * if there is no current request.
+   */
+  @SuppressWarnings("unchecked")
+  private static Map<Key, Entity> getRequestCache() {
+    ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    if (env == null) {
+      return null;
+    }
+    Map<String, Object> attributes = env.getAttributes();
+    synchronized (attributes) {
+      Map<Key, Entity> requestCache = (Map<Key, Entity>) attributes.get(REQUEST_CACHE_KEY);
+      if (requestCache == null) {
+        requestCache = Collections.synchronizedMap(new HashMap<Key, Entity>());
+        attributes.put(REQUEST_CACHE_KEY, requestCache);
+      }
+      return requestCache;
+    }
+  }
+
+  private static EntityCacheStats getStats() {
+    ApiProxy.Environment env = ApiProxy.getCurrentEnvironment();
+    return env != null ? EntityCacheStats.getOrCreate(env) : null;
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.datastore;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hit and miss counts of the entity cache enabled with
+ * {@link DatastoreServiceConfig#entityCacheSize(int)}, collected for the
+ * duration of a request.  Like {@link com.google.apphosting.api.ApiStats},
+ * this object is stored in the attributes of the request's
+ * {@link ApiProxy.Environment}.
+ *
+ */
+public final class EntityCacheStats {
+
+  /**
+   * The name that this object is stored in.
+   */
+  private static final String KEY = EntityCacheStats.class.getName();
+
+  private final AtomicLong requestHits = new AtomicLong();
+  private final AtomicLong instanceHits = new AtomicLong();
+  private final AtomicLong memcacheHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private EntityCacheStats() {
+  }
+
+  /**
+   * For a given environment, return the corresponding EntityCacheStats
+   * object.  If no entity cache lookups have been made in the environment,
+   * null will be returned.
+   */
+  public static EntityCacheStats get(ApiProxy.Environment env) {
+    return (EntityCacheStats) env.getAttributes().get(KEY);
+  }
+
+  /**
+   * Returns the EntityCacheStats object of the given environment, creating
+   * it if needed.
+   */
+  static EntityCacheStats getOrCreate(ApiProxy.Environment env) {
+    synchronized (env.getAttributes()) {
+      EntityCacheStats stats = get(env);
+      if (stats == null) {
+        stats = new EntityCacheStats();
+        env.getAttributes().put(KEY, stats);
+      }
+      return stats;
+    }
+  }
+
+  /**
+   * @return the number of lookups served by the per-request cache.
+   */
+  public long getRequestHits() {
+    return requestHits.get();
+  }
+
+  /**
+   * @return the number of lookups served by the per-instance cache.
+   */
+  public long getInstanceHits() {
+    return instanceHits.get();
+  }
+
+  /**
+   * @return the number of lookups served by memcache.
+   */
+  public long getMemcacheHits() {
+    return memcacheHits.get();
+  }
+
+  /**
+   * @return the number of lookups that had to go to the datastore.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  void recordRequestHit() {
+    requestHits.incrementAndGet();
+  }
+
+  void recordInstanceHit() {
+    instanceHits.incrementAndGet();
+  }
+
+  void recordMemcacheHit() {
+    memcacheHits.incrementAndGet();
+  }
+
+  void recordMisses(int count) {
+    misses.addAndGet(count);
+  }
+
+  @Override
+  public String toString() {
+    return "EntityCacheStats [requestHits=" + requestHits + ", instanceHits=" + instanceHits
+        + ", memcacheHits=" + memcacheHits + ", misses=" + misses + "]";
+  }
+}
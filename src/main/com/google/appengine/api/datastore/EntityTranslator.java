@@ -19,7 +19,7 @@ public class EntityTranslator {
 
     Entity entity = new Entity(key);
     entity.setEntityProto(proto);
-    DataTypeTranslator.extractPropertiesFromPb(proto, entity.getPropertyMap());
+    entity.setUndecodedProto(proto);
     return entity;
   }
 
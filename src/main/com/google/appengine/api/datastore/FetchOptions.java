@@ -27,8 +27,25 @@ import java.util.List;
  * and the {@link Iterable} returned by
  * {@link PreparedQuery#asIterable(FetchOptions)}.
  * <p>
+ * {@code maxConcurrentQueries} is the maximum number of sub-queries that
+ * will be run at the same time when a query must be split into several
+ * queries whose results are merged in memory (for example queries with
+ * {@code IN} or {@code NOT_EQUAL} filters).
+ * <p>
+ * {@code maxRetainedResults} bounds the memory used by the {@link List}
+ * returned by {@link PreparedQuery#asList(FetchOptions)} and
+ * {@link PreparedQuery#asQueryResultList(FetchOptions)}.  Such a list only
+ * keeps (at least) the given number of most recently fetched results, so
+ * iterating over it once runs in constant memory no matter how large the
+ * result set is.  Accessing a result that is no longer retained throws an
+ * {@link IllegalStateException}.  The cursor of a
+ * {@link QueryResultList} remains available.  This has no effect on queries
+ * that must be split into several queries, whose results are always fetched
+ * up front.
+ * <p>
  * Note that unlike {@code limit}, {@code offset} and {@code cursor},
- * {@code prefetchSize} and {@code chunkSize} have no impact on the result of
+ * {@code prefetchSize}, {@code chunkSize} and {@code maxConcurrentQueries}
+ * have no impact on the result of
  * the {@link PreparedQuery}, but rather only the performance of the
  * {@link PreparedQuery}.
  * <p>
@@ -63,6 +80,8 @@ public final class FetchOptions {
   private Integer offset;
   private Integer prefetchSize;
   private Integer chunkSize;
+  private Integer maxConcurrentQueries;
+  private Integer maxRetainedResults;
   private Cursor startCursor;
   private Cursor endCursor;
   private Boolean compile;
@@ -75,6 +94,8 @@ public final class FetchOptions {
     this.offset = original.offset;
     this.prefetchSize = original.prefetchSize;
     this.chunkSize = original.chunkSize;
+    this.maxConcurrentQueries = original.maxConcurrentQueries;
+    this.maxRetainedResults = original.maxRetainedResults;
     this.startCursor = original.startCursor;
     this.endCursor = original.endCursor;
     this.compile = original.compile;
@@ -137,6 +158,36 @@ public final class FetchOptions {
     return this;
   }
 
+  /**
+   * Sets the maximum number of sub-queries to run concurrently.  Please read
+   * the class javadoc for an explanation of how this is used.
+   * @param maxConcurrentQueries The maximum number of concurrent sub-queries.
+   * Must be greater than 0.
+   * @return {@code this} (for chaining)
+   */
+  public FetchOptions maxConcurrentQueries(int maxConcurrentQueries) {
+    if (maxConcurrentQueries < 1) {
+      throw new IllegalArgumentException("Max concurrent queries must be greater than 0.");
+    }
+    this.maxConcurrentQueries = maxConcurrentQueries;
+    return this;
+  }
+
+  /**
+   * Sets the number of results a lazily fetched result list must retain.
+   * Please read the class javadoc for an explanation of how this is used.
+   * @param maxRetainedResults The number of results to retain.  Must be
+   * greater than 0.
+   * @return {@code this} (for chaining)
+   */
+  public FetchOptions maxRetainedResults(int maxRetainedResults) {
+    if (maxRetainedResults < 1) {
+      throw new IllegalArgumentException("Max retained results must be greater than 0.");
+    }
+    this.maxRetainedResults = maxRetainedResults;
+    return this;
+  }
+
   /**
    * Sets the number of entities to prefetch.
    * @param prefetchSize The prefetch size to set.  Must be >= 0.
@@ -235,6 +286,22 @@ public final class FetchOptions {
     return chunkSize;
   }
 
+  /**
+   * @return The maximum number of concurrent sub-queries, or {@code null} if
+   * no maximum was provided.
+   */
+  public Integer getMaxConcurrentQueries() {
+    return maxConcurrentQueries;
+  }
+
+  /**
+   * @return The number of results a result list must retain, or {@code null}
+   * if the list retains all of them.
+   */
+  public Integer getMaxRetainedResults() {
+    return maxRetainedResults;
+  }
+
   /**
    * @return The prefetch size, or {@code null} if no prefetch size was
    * provided.
@@ -282,6 +349,14 @@ public final class FetchOptions {
       result = result * 31 + chunkSize.hashCode();
     }
 
+    if (maxConcurrentQueries != null) {
+      result = result * 31 + maxConcurrentQueries.hashCode();
+    }
+
+    if (maxRetainedResults != null) {
+      result = result * 31 + maxRetainedResults.hashCode();
+    }
+
     if (limit != null) {
       result = result * 31 + limit.hashCode();
     }
@@ -333,6 +408,22 @@ public final class FetchOptions {
       return false;
     }
 
+    if (maxConcurrentQueries != null) {
+      if (!maxConcurrentQueries.equals(that.maxConcurrentQueries)) {
+        return false;
+      }
+    } else if (that.maxConcurrentQueries != null) {
+      return false;
+    }
+
+    if (maxRetainedResults != null) {
+      if (!maxRetainedResults.equals(that.maxRetainedResults)) {
+        return false;
+      }
+    } else if (that.maxRetainedResults != null) {
+      return false;
+    }
+
     if (limit != null) {
       if (!limit.equals(that.limit)) {
         return false;
@@ -388,6 +479,14 @@ public final class FetchOptions {
       result.add("chunkSize=" + chunkSize);
     }
 
+    if (maxConcurrentQueries != null) {
+      result.add("maxConcurrentQueries=" + maxConcurrentQueries);
+    }
+
+    if (maxRetainedResults != null) {
+      result.add("maxRetainedResults=" + maxRetainedResults);
+    }
+
     if (limit != null) {
       result.add("limit=" + limit);
     }
@@ -451,6 +550,32 @@ public final class FetchOptions {
       return withDefaults().chunkSize(chunkSize);
     }
 
+    /**
+     * Create a {@link FetchOptions} with the given maximum number of
+     * concurrent sub-queries.  Shorthand for
+     * <code>FetchOptions.withDefaults().maxConcurrentQueries(...);</code>
+     * Please read the {@link FetchOptions} class javadoc for an explanation
+     * of how this is used.
+     * @param maxConcurrentQueries the maxConcurrentQueries to set.
+     * @return The newly created FetchOptions instance.
+     */
+    public static FetchOptions withMaxConcurrentQueries(int maxConcurrentQueries) {
+      return withDefaults().maxConcurrentQueries(maxConcurrentQueries);
+    }
+
+    /**
+     * Create a {@link FetchOptions} with the given number of results to
+     * retain.  Shorthand for
+     * <code>FetchOptions.withDefaults().maxRetainedResults(...);</code>
+     * Please read the {@link FetchOptions} class javadoc for an explanation
+     * of how this is used.
+     * @param maxRetainedResults the maxRetainedResults to set.
+     * @return The newly created FetchOptions instance.
+     */
+    public static FetchOptions withMaxRetainedResults(int maxRetainedResults) {
+      return withDefaults().maxRetainedResults(maxRetainedResults);
+    }
+
     /**
      * Create a {@link FetchOptions} with the given prefetch size.
      * Shorthand for <code>FetchOptions.withDefaults().prefetchSize(...);</code>.
@@ -262,4 +262,41 @@ final class FutureHelper {
       return result;
     }
   }
+
+  /**
+   * Wraps an already-thrown exception in a {@link Future}.
+   * @param <T> The type of the Future.
+   */
+  static class FailedFuture<T> implements Future<T> {
+    private final Throwable cause;
+
+    FailedFuture(Throwable cause) {
+      this.cause = cause;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return true;
+    }
+
+    @Override
+    public T get() throws ExecutionException {
+      throw new ExecutionException(cause);
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws ExecutionException {
+      throw new ExecutionException(cause);
+    }
+  }
 }
@@ -2,6 +2,7 @@
 package com.google.appengine.api.datastore;
 
 import java.io.IOException;
+import java.io.NotSerializableException;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.AbstractList;
@@ -23,16 +24,32 @@ import java.util.NoSuchElementException;
  * entire result set back from the server.  We provide more efficient
  * implementations wherever possible (which is most places).
  *
+ * If {@link FetchOptions#getMaxRetainedResults()} is set, results that are
+ * far enough behind the most recently fetched one are released, so the list
+ * only holds a sliding window of the result set.  Indexes keep referring to
+ * positions in the full result set; accessing a position that has been
+ * released throws an {@link IllegalStateException}.  Results are released
+ * in batches, once twice the number to retain have accumulated, so that
+ * fetching one result at a time does not shift the window on every fetch.
+ * Operations that need the whole result set, such as {@link #size()}, read
+ * the rest of it without releasing anything, so the window then extends to
+ * the end.  {@link #getCursor()} points after the last result fetched so
+ * far, and a list that has released results cannot be serialized.
+ *
  */
 class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>, Serializable {
  private final transient QueryResultIteratorImpl resultIterator;
   private final List<Entity> results = new ArrayList<Entity>();
+  private final int maxRetainedResults;
+  private int numReleased = 0;
   private boolean endOfData = false;
   private boolean cleared = false;
  private Cursor cursor = null;
 
-  LazyList(QueryResultIteratorImpl resultIterator) {
+  LazyList(QueryResultIteratorImpl resultIterator, FetchOptions fetchOptions) {
     this.resultIterator = resultIterator;
+    Integer maxRetained = fetchOptions.getMaxRetainedResults();
+    this.maxRetainedResults = maxRetained == null ? Integer.MAX_VALUE : maxRetained;
   }
 
   /**
@@ -80,20 +97,54 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
     if (endOfData) {
       return;
     }
-    if (fetchAll || results.size() <= index) {
+    if (fetchAll || numFetched() <= index) {
       int numToFetch;
       if (fetchAll) {
         numToFetch = Integer.MAX_VALUE;
       } else {
-        numToFetch = (index - results.size()) + 1;
+        numToFetch = (index - numFetched()) + 1;
       }
+      fetch(numToFetch, !fetchAll);
+    }
+  }
 
-      List<Entity> nextBatch = resultIterator.nextList(numToFetch);
-      results.addAll(nextBatch);
-      if (nextBatch.size() < numToFetch) {
-        endOfData = true;
-      }
+  /**
+   * @param release If {@code true}, releases results that are outside the
+   * window once enough have accumulated.
+   */
+  private void fetch(int numToFetch, boolean release) {
+    List<Entity> nextBatch = resultIterator.nextList(numToFetch);
+    results.addAll(nextBatch);
+    if (nextBatch.size() < numToFetch) {
+      endOfData = true;
+    }
+    if (release && results.size() - maxRetainedResults >= maxRetainedResults) {
+      int numToRelease = results.size() - maxRetainedResults;
+      results.subList(0, numToRelease).clear();
+      numReleased += numToRelease;
+    }
+  }
+
+  /**
+   * @return The number of results fetched so far, including released ones.
+   */
+  private int numFetched() {
+    return numReleased + results.size();
+  }
+
+  /**
+   * Converts an index into the full result set into an index into
+   * {@link #results}.
+   *
+   * @throws IllegalStateException If the result at {@code index} has been
+   * released.
+   */
+  private int toResultsIndex(int index) {
+    if (index >= 0 && index < numReleased) {
+      throw new IllegalStateException("The result at index " + index
+          + " is no longer retained (maxRetainedResults=" + maxRetainedResults + ").");
     }
+    return index - numReleased;
   }
 
   /**
@@ -103,7 +154,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   @Override
   public Entity get(int i) {
     resolveToIndex(i);
-    return results.get(i);
+    return results.get(toResultsIndex(i));
   }
 
   /**
@@ -113,7 +164,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   @Override
   public int size() {
     resolveAllData();
-    return results.size();
+    return numFetched();
   }
 
   /**
@@ -123,7 +174,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   @Override
   public Entity set(int i, Entity entity) {
     resolveToIndex(i);
-    return results.set(i, entity);
+    return results.set(toResultsIndex(i), entity);
   }
 
   /**
@@ -133,7 +184,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   @Override
   public void add(int i, Entity entity) {
     resolveToIndex(i);
-    results.add(i, entity);
+    results.add(toResultsIndex(i), entity);
   }
 
   /**
@@ -143,7 +194,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   @Override
   public Entity remove(int i) {
     resolveToIndex(i);
-    return results.remove(i);
+    return results.remove(toResultsIndex(i));
   }
 
   /**
@@ -170,7 +221,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
       @Override
       public boolean hasNext() {
         resolveToIndex(currentIndex);
-        return currentIndex < results.size();
+        return currentIndex < numFetched();
       }
 
       @Override
@@ -179,7 +230,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
           elementReturned = true;
           addOrRemoveCalledSinceElementReturned = false;
           indexOfLastElementReturned = currentIndex++;
-          return results.get(indexOfLastElementReturned);
+          return results.get(toResultsIndex(indexOfLastElementReturned));
         }
         throw new NoSuchElementException();
       }
@@ -192,10 +243,11 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
       @Override
       public Entity previous() {
         if (hasPrevious()) {
+          Entity entity = results.get(toResultsIndex(currentIndex - 1));
           elementReturned = true;
           addOrRemoveCalledSinceElementReturned = false;
           indexOfLastElementReturned = --currentIndex;
-          return results.get(indexOfLastElementReturned);
+          return entity;
         }
         throw new NoSuchElementException();
       }
@@ -256,7 +308,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   @Override
   public boolean isEmpty() {
     resolveToIndex(0);
-    return results.isEmpty();
+    return numFetched() == 0;
   }
 
   /**
@@ -265,7 +317,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   @Override
   public List<Entity> subList(int from, int to) {
     resolveToIndex(to);
-    return results.subList(from, to);
+    return results.subList(toResultsIndex(from), to - numReleased);
   }
 
   /**
@@ -274,6 +326,7 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   @Override
   public void clear() {
     results.clear();
+    numReleased = 0;
     cleared = true;
   }
 
@@ -296,8 +349,17 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
     return -1;
   }
 
+  /**
+   * If results are released (see {@link FetchOptions#getMaxRetainedResults()})
+   * the cursor points after the last result fetched so far, so that reading
+   * it does not move the window.  Otherwise the entire result set is read
+   * and the cursor points after its end.
+   */
   public Cursor getCursor() {
     if (cursor == null && resultIterator != null) {
+      if (maxRetainedResults != Integer.MAX_VALUE && !endOfData) {
+        return resultIterator.getCursor();
+      }
       forceResolveToIndex(-1, true);
       cursor = resultIterator.getCursor();
     }
@@ -307,8 +369,15 @@ class LazyList extends AbstractList<Entity> implements QueryResultList<Entity>,
   /**
    * Custom serialization logic to ensure that we read the entire result set
    * before we serialize.
+   *
+   * @throws NotSerializableException If results have been released, since
+   * they could not be restored.
    */
   private void writeObject(ObjectOutputStream out) throws IOException {
+    if (numReleased > 0) {
+      throw new NotSerializableException("Cannot serialize a " + getClass().getName()
+          + " that has released results (maxRetainedResults=" + maxRetainedResults + ").");
+    }
     resolveAllData();
     cursor = getCursor();
     out.defaultWriteObject();
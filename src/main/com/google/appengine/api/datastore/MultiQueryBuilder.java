@@ -6,6 +6,7 @@ import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.datastore.Query.SortPredicate;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -54,6 +55,7 @@ class MultiQueryBuilder implements Iterable<List<Query>> {
   final List<MultiQueryComponent> components;
   final Set<EntityFilter> entityFilters;
   final boolean hasParallelQueries;
+  final boolean isDisjoint;
 
   public MultiQueryBuilder(Query query,
                            List<FilterPredicate> remainingFilters,
@@ -74,6 +76,34 @@ class MultiQueryBuilder implements Iterable<List<Query>> {
       }
     }
     this.hasParallelQueries = hasParallelComponents;
+    this.isDisjoint = computeIsDisjoint(components);
+  }
+
+  /**
+   * Determines if the generated queries can never return the same entity.
+   *
+   * Every generated query differs from every other generated query in the
+   * filters taken from at least one component. If each component only
+   * filters on {@link Entity#KEY_RESERVED_PROPERTY} (which, unlike other
+   * properties, can only have a single value) and no two of its filter lists
+   * are the same, then no entity can match more than one of those filter
+   * lists, so no entity can be returned by more than one query.
+   */
+  private static boolean computeIsDisjoint(List<MultiQueryComponent> components) {
+    for (MultiQueryComponent component : components) {
+      Set<List<FilterPredicate>> seenFilters = new HashSet<List<FilterPredicate>>();
+      for (List<FilterPredicate> filters : component.getFilters()) {
+        for (FilterPredicate filter : filters) {
+          if (!filter.getPropertyName().equals(Entity.KEY_RESERVED_PROPERTY)) {
+            return false;
+          }
+        }
+        if (!seenFilters.add(filters)) {
+          return false;
+        }
+      }
+    }
+    return true;
   }
 
   static Query cloneQueryWithFilters(Query query, List<FilterPredicate> filters) {
@@ -100,6 +130,14 @@ class MultiQueryBuilder implements Iterable<List<Query>> {
     return hasParallelQueries;
   }
 
+  /**
+   * Returns {@code true} if no entity can be returned by more than one of the
+   * generated queries, in which case results do not need to be de-duplicated.
+   */
+  public boolean isDisjoint() {
+    return isDisjoint;
+  }
+
   public Set<EntityFilter> getEntityFilters() {
     return entityFilters;
   }
@@ -28,7 +28,8 @@ import java.util.Set;
  * results that contains the results from each sub-query. As each sub-query
  * produces results that are already sorted we simply use a
  * {@link PriorityQueue} to merge the results from the sub-query as new results
- * are requested.
+ * are requested. The sub-queries are started concurrently, bounded by
+ * {@link FetchOptions#getMaxConcurrentQueries()}.
  *
  */
 class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
@@ -94,8 +95,9 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
   private class FilteredMultiQueryIterator extends AbstractIterator<Entity> {
     private final Iterator<List<Query>> multiQueryIterator;
     private final FetchOptions baseFetchOptions;
-    private final Set<Key> returnedKeys = new HashSet<Key>();
+    private final CompactKeySet returnedKeys;
     private final Set<EntityFilter> entityFilters;
+    private int numReturned = 0;
 
     private Iterator<Entity> currentIterator = new Iterator<Entity>() {
         @Override
@@ -117,12 +119,17 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
       this.baseFetchOptions = fetchOptions;
       this.entityFilters = new HashSet<EntityFilter>(queryBuilder.getEntityFilters());
 
-      this.entityFilters.add(new EntityFilter() {
-        @Override
-        public boolean apply(Entity entity) {
-          return returnedKeys.add(entity.getKey());
-        }
-      });
+      if (queryBuilder.isDisjoint()) {
+        this.returnedKeys = null;
+      } else {
+        this.returnedKeys = new CompactKeySet();
+        this.entityFilters.add(new EntityFilter() {
+          @Override
+          public boolean apply(Entity entity) {
+            return returnedKeys.add(entity.getKey());
+          }
+        });
+      }
     }
 
     /**
@@ -130,7 +137,7 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
      */
     private FetchOptions getFetchOptions() {
       if (baseFetchOptions.getLimit() != null) {
-        int limit = baseFetchOptions.getLimit() - returnedKeys.size();
+        int limit = baseFetchOptions.getLimit() - numReturned;
         if (limit > 0) {
           return new FetchOptions(baseFetchOptions).clearLimit().limit(limit);
         } else {
@@ -177,6 +184,7 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
         }
         result = currentIterator.next();
       } while (!passesFilters(result));
+      ++numReturned;
       return result;
     }
 
@@ -208,11 +216,36 @@ class PreparedMultiQuery extends BasePreparedQuery.UncompilablePreparedQuery {
     }
   }
 
+  /**
+   * Builds a {@link HeapIterator} over the results of the given queries.
+   *
+   * {@link PreparedQuery#asIterator(FetchOptions)} issues its first RPC
+   * asynchronously, so we start up to
+   * {@link FetchOptions#getMaxConcurrentQueries()} sub-queries (all of them if
+   * no maximum is set) before blocking on the first result of any of them.
+   * Each time we block on a sub-query we start the next pending one, keeping
+   * the window full. Once a sub-query has produced its first batch it keeps
+   * the following batch in flight while the current one is consumed, so the
+   * merge costs roughly one round trip instead of one per sub-query.
+   */
   Iterator<Entity> makeHeapIterator(List<PreparedQuery> preparedQueries,
                                               FetchOptions fetchOptions) {
     final PriorityQueue<EntitySource> heap = new PriorityQueue<EntitySource>();
-    for (PreparedQuery pq : preparedQueries) {
-      Iterator<Entity> iter = pq.asIterator(fetchOptions);
+    int numQueries = preparedQueries.size();
+    int window = numQueries;
+    if (fetchOptions.getMaxConcurrentQueries() != null) {
+      window = Math.min(window, fetchOptions.getMaxConcurrentQueries());
+    }
+
+    List<Iterator<Entity>> iterators = new ArrayList<Iterator<Entity>>(numQueries);
+    while (iterators.size() < window) {
+      iterators.add(preparedQueries.get(iterators.size()).asIterator(fetchOptions));
+    }
+    for (int i = 0; i < numQueries; ++i) {
+      Iterator<Entity> iter = iterators.get(i);
+      if (iterators.size() < numQueries) {
+        iterators.add(preparedQueries.get(iterators.size()).asIterator(fetchOptions));
+      }
       if (iter.hasNext()) {
         heap.add(new EntitySource(entityComparator, iter));
       }
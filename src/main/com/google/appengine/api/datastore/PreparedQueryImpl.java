@@ -42,7 +42,7 @@ class PreparedQueryImpl extends BasePreparedQuery {
 
   @Override
   public List<Entity> asList(FetchOptions fetchOptions) {
-    return new LazyList(runQuery(query, fetchOptions));
+    return new LazyList(runQuery(query, fetchOptions), fetchOptions);
   }
 
   @Override
@@ -51,7 +51,7 @@ class PreparedQueryImpl extends BasePreparedQuery {
     if (override.getCompile() == null) {
       override.compile(true);
     }
-    final LazyList lazyList = new LazyList(runQuery(query, override));
+    final LazyList lazyList = new LazyList(runQuery(query, override), override);
     QueryResultListImpl.CursorProvider cursorProvider = new QueryResultListImpl.CursorProvider() {
       @Override
       public Cursor get() {
@@ -17,18 +17,32 @@ import java.util.logging.Logger;
  * make callbacks back into the datastore to retrieve more entities
  * for the specified cursor.
  *
+ * When no chunk size is provided and the
+ * {@value #ADAPTIVE_CHUNK_SIZE_SYS_PROP} system property is set to
+ * {@code true}, the number of entities requested by each {@code Next} call
+ * adapts to the caller: every time the caller has to wait
+ * for the prefetched batch it doubles, up to {@link #MAX_ADAPTIVE_CHUNK_SIZE}
+ * entities and to as many entities as fit in
+ * {@link #MAX_ADAPTIVE_RESPONSE_BYTES} at the size of the entities seen so
+ * far.  A caller that consumes entities more slowly than they are fetched
+ * never waits and keeps getting batches of the size the backend picks.
+ *
  */
 class QueryResultsSourceImpl implements QueryResultsSource {
   static Logger logger = Logger.getLogger(QueryResultsSourceImpl.class.getName());
   private static final int AT_LEAST_ONE = -1;
+  static final String ADAPTIVE_CHUNK_SIZE_SYS_PROP = "appengine.datastore.adaptiveChunkSize";
   private static final String DISABLE_CHUNK_SIZE_WARNING_SYS_PROP =
       "appengine.datastore.disableChunkSizeWarning";
   private static final int CHUNK_SIZE_WARNING_RESULT_SET_SIZE_THRESHOLD = 1000;
   private static final long MAX_CHUNK_SIZE_WARNING_FREQUENCY_MS = 1000 * 60 * 5;
   static final AtomicLong lastChunkSizeWarning = new AtomicLong(0);
+  static final int MAX_ADAPTIVE_CHUNK_SIZE = 1000;
+  static final int MAX_ADAPTIVE_RESPONSE_BYTES = 1024 * 1024;
 
   private final ApiConfig apiConfig;
   private final int chunkSize;
+  private final boolean adaptive;
   private final int offset;
   private final Transaction txn;
 
@@ -36,11 +50,25 @@ class QueryResultsSourceImpl implements QueryResultsSource {
   private int skippedResults;
   private int totalResults = 0;
 
+  /**
+   * The count to request when no chunk size was provided, or 0 to let the
+   * backend decide.
+   */
+  private int adaptiveChunkSize = 0;
+
+  /**
+   * The number and total encoded size of the entities received so far, for
+   * the average entity size that caps {@link #adaptiveChunkSize}.
+   */
+  private long resultsReceived = 0;
+  private long resultBytesReceived = 0;
+
   public QueryResultsSourceImpl(ApiConfig apiConfig, FetchOptions fetchOptions, Transaction txn,
       Future<QueryResult> firstResult) {
     this.apiConfig = apiConfig;
     this.chunkSize = fetchOptions.getChunkSize() != null ?
         fetchOptions.getChunkSize() : AT_LEAST_ONE;
+    this.adaptive = chunkSize == AT_LEAST_ONE && Boolean.getBoolean(ADAPTIVE_CHUNK_SIZE_SYS_PROP);
     this.offset = fetchOptions.getOffset() != null ?
         fetchOptions.getOffset() : 0;
     this.txn = txn;
@@ -73,9 +101,13 @@ class QueryResultsSourceImpl implements QueryResultsSource {
       }
 
       int previousSize = buffer.size();
+      boolean waited = !nextResult.isDone();
       QueryResult res = FutureHelper.quietGet(nextResult);
       nextResult = null;
       processQueryResult(res, buffer);
+      if (adaptive) {
+        adaptChunkSize(res, waited);
+      }
 
       if (res.isMoreResults()) {
         NextRequest req = new NextRequest();
@@ -87,8 +119,8 @@ class QueryResultsSourceImpl implements QueryResultsSource {
         boolean setCount = true;
         if (numberToLoad <= 0) {
           setCount = false;
-          if (chunkSize != AT_LEAST_ONE) {
-            req.setCount(chunkSize);
+          if (getChunkSize() > 0) {
+            req.setCount(getChunkSize());
           }
           if (numberToLoad == AT_LEAST_ONE) {
             numberToLoad = 1;
@@ -105,7 +137,7 @@ class QueryResultsSourceImpl implements QueryResultsSource {
             req.clearOffset();
           }
           if (setCount) {
-            req.setCount(Math.max(chunkSize, numberToLoad - buffer.size() + previousSize));
+            req.setCount(Math.max(getChunkSize(), numberToLoad - buffer.size() + previousSize));
           }
           res = new QueryResult();
           DatastoreApiHelper.makeSyncCall(apiConfig, "Next", req, res);
@@ -113,8 +145,8 @@ class QueryResultsSourceImpl implements QueryResultsSource {
         }
 
         if (res.isMoreResults()) {
-          if (chunkSize != AT_LEAST_ONE) {
-            req.setCount(chunkSize);
+          if (getChunkSize() > 0) {
+            req.setCount(getChunkSize());
           } else {
             req.clearCount();
           }
@@ -142,7 +174,8 @@ class QueryResultsSourceImpl implements QueryResultsSource {
       buffer.add(EntityTranslator.createFromPb(entityProto));
     }
     totalResults += res.resultSize();
-    if (chunkSize == AT_LEAST_ONE && totalResults > CHUNK_SIZE_WARNING_RESULT_SET_SIZE_THRESHOLD &&
+    if (chunkSize == AT_LEAST_ONE && !adaptive &&
+        totalResults > CHUNK_SIZE_WARNING_RESULT_SET_SIZE_THRESHOLD &&
         System.getProperty(DISABLE_CHUNK_SIZE_WARNING_SYS_PROP) == null) {
       logChunkSizeWarning();
     }
@@ -162,4 +195,35 @@ class QueryResultsSourceImpl implements QueryResultsSource {
             + DISABLE_CHUNK_SIZE_WARNING_SYS_PROP + "'");
     lastChunkSizeWarning.set(now);
   }
+
+  /**
+   * @return The count to request, or a value <= 0 to let the backend decide.
+   */
+  private int getChunkSize() {
+    return chunkSize != AT_LEAST_ONE ? chunkSize : adaptiveChunkSize;
+  }
+
+  /**
+   * Updates {@link #adaptiveChunkSize} after a batch has been received.
+   *
+   * @param res The batch that was received
+   * @param waited Whether the caller had to wait for the batch
+   */
+  private void adaptChunkSize(QueryResult res, boolean waited) {
+    int numResults = res.resultSize();
+    if (numResults == 0) {
+      return;
+    }
+    resultsReceived += numResults;
+    resultBytesReceived += res.encodingSize();
+    if (waited) {
+      adaptiveChunkSize = Math.min(MAX_ADAPTIVE_CHUNK_SIZE,
+          2 * Math.max(adaptiveChunkSize, numResults));
+    }
+    if (adaptiveChunkSize > 0) {
+      long bytesPerResult = Math.max(1, resultBytesReceived / resultsReceived);
+      adaptiveChunkSize = (int) Math.max(1,
+          Math.min(adaptiveChunkSize, MAX_ADAPTIVE_RESPONSE_BYTES / bytesPerResult));
+    }
+  }
 }
@@ -0,0 +1,360 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.datastore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Limits the number of rpcs a batch operation keeps in flight.
+ *
+ * A batch get that is split into several rpcs hands them to
+ * {@link #schedule(List)}, which starts as many as the current window allows
+ * and returns a {@link Future} for each. The remaining rpcs are started as
+ * the earlier ones are waited on, polled with {@link Future#isDone()} or
+ * found complete, so the caller must retrieve the results (in order, as
+ * {@link FutureHelper.CumulativeAggregateFuture} does). A write whose future
+ * is never retrieved must still be sent, so batch puts and deletes use
+ * {@link #startAll(List)} instead, which waits for room in the window before
+ * starting each rpc and returns once all of them have been started.
+ *
+ * The window adapts to the observed rpc latency. Rpcs are grouped by the
+ * number of keys they carry, rounded down to a power of two, and each group
+ * keeps a baseline latency that drops to any faster rpc and otherwise drifts
+ * slowly towards the latest ones, so that it recovers from a single
+ * unusually fast rpc. The window grows by one after every rpc that completes
+ * within twice the baseline of its group and is halved after every rpc that
+ * takes longer, always staying between 1 and the configured maximum. At a
+ * window of 1 every rpc grows the window, so it keeps probing for more
+ * capacity. Latency is only measured for rpcs we had to block on; an rpc that
+ * was already done when we got to it counts as fast. A single instance is
+ * shared by all batch operations of a datastore service so what is learned
+ * about the backend carries over from one operation to the next.
+ *
+ * This class is thread-safe.
+ *
+ */
+final class RpcWindow {
+
+  /**
+   * An rpc that has not been started yet.
+   *
+   * @param <T> The type returned by the rpc.
+   */
+  interface Rpc<T> {
+    Future<T> start();
+
+    /**
+     * @return The number of keys the rpc carries.
+     */
+    int size();
+  }
+
+  /**
+   * The fraction of the difference to a slower rpc by which a baseline moves
+   * towards it.
+   */
+  private static final double BASELINE_DECAY = 1.0 / 16;
+
+  /**
+   * The deadline of a wait that has none.
+   */
+  private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+  private final int maxSize;
+  private int size;
+
+  /**
+   * The baseline latency of each group of rpcs, keyed by
+   * {@link #sizeBucket(int)}.
+   */
+  private final Map<Integer, Double> baselineMillis = new HashMap<Integer, Double>();
+
+  /**
+   * @param maxSize The maximum number of rpcs a batch operation may keep in
+   * flight.
+   */
+  RpcWindow(int maxSize) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("maxSize must be > 0, got " + maxSize);
+    }
+    this.maxSize = maxSize;
+    this.size = maxSize;
+  }
+
+  synchronized int getSize() {
+    return size;
+  }
+
+  /**
+   * Records the latency of an rpc of {@code rpcSize} keys we blocked on and
+   * resizes the window.
+   */
+  synchronized void recordLatency(int rpcSize, long latencyMillis) {
+    Integer bucket = sizeBucket(rpcSize);
+    Double baseline = baselineMillis.get(bucket);
+    if (baseline == null || latencyMillis < baseline) {
+      baselineMillis.put(bucket, (double) latencyMillis);
+    } else {
+      baselineMillis.put(bucket, baseline + (latencyMillis - baseline) * BASELINE_DECAY);
+    }
+    if (baseline != null && latencyMillis > 2 * baseline && size > 1) {
+      size = Math.max(1, size / 2);
+    } else {
+      recordFastRpc();
+    }
+  }
+
+  /**
+   * @return The group of rpcs of {@code rpcSize} keys, which is the position
+   * of its highest bit.
+   */
+  private static int sizeBucket(int rpcSize) {
+    return 32 - Integer.numberOfLeadingZeros(rpcSize);
+  }
+
+  /**
+   * Records an rpc that completed before anyone had to block on it.
+   */
+  synchronized void recordFastRpc() {
+    if (size < maxSize) {
+      ++size;
+    }
+  }
+
+  /**
+   * Starts as many of the given reads as the window allows.
+   *
+   * @return A {@link Future} for each rpc, in the same order.
+   */
+  <T> List<Future<T>> schedule(List<Rpc<T>> rpcs) {
+    Schedule<T> schedule = new Schedule<T>(rpcs);
+    schedule.fill();
+    return schedule.futures();
+  }
+
+  /**
+   * Starts all the given writes before returning, blocking until the window
+   * has room for each one.
+   *
+   * @return A {@link Future} for each rpc, in the same order.
+   */
+  <T> List<Future<T>> startAll(List<Rpc<T>> rpcs) {
+    Schedule<T> schedule = new Schedule<T>(rpcs);
+    if (rpcs.isEmpty()) {
+      return schedule.futures();
+    }
+    try {
+      schedule.ensureStarted(rpcs.size() - 1, NO_DEADLINE);
+    } catch (InterruptedException e) {
+      // Writes must not be deferred, so start the rest without waiting.
+      Thread.currentThread().interrupt();
+      schedule.startRemaining();
+    } catch (TimeoutException e) {
+      throw new AssertionError(e);
+    }
+    return schedule.futures();
+  }
+
+  /**
+   * The rpcs of a single batch operation.
+   */
+  private final class Schedule<T> {
+    private final List<Rpc<T>> rpcs;
+    private final List<Future<T>> started;
+    private final long[] startTimes;
+    private final boolean[] completed;
+    private int numInFlight = 0;
+
+    Schedule(List<Rpc<T>> rpcs) {
+      this.rpcs = rpcs;
+      this.started = new ArrayList<Future<T>>(rpcs.size());
+      this.startTimes = new long[rpcs.size()];
+      this.completed = new boolean[rpcs.size()];
+    }
+
+    List<Future<T>> futures() {
+      List<Future<T>> futures = new ArrayList<Future<T>>(rpcs.size());
+      for (int i = 0; i < rpcs.size(); ++i) {
+        futures.add(new ScheduledFuture(i));
+      }
+      return futures;
+    }
+
+    /**
+     * Starts rpcs until the window is full or there are none left, after
+     * counting the rpcs that are already done as completed.
+     */
+    synchronized void fill() {
+      for (int i = 0; i < started.size(); ++i) {
+        if (!completed[i] && started.get(i).isDone()) {
+          markCompleted(i, true);
+        }
+      }
+      while (started.size() < rpcs.size() && numInFlight < getSize()) {
+        startNext();
+      }
+    }
+
+    /**
+     * Starts all the rpcs that have not been started, ignoring the window.
+     */
+    synchronized void startRemaining() {
+      while (started.size() < rpcs.size()) {
+        startNext();
+      }
+    }
+
+    /**
+     * Starts rpcs up to and including the given one, first waiting for
+     * earlier rpcs to complete if the window is full. The lock is not held
+     * while waiting.
+     *
+     * @param deadlineNanos The {@link System#nanoTime()} by which the rpc
+     * must have been started, or {@link #NO_DEADLINE}.
+     * @throws TimeoutException If the deadline passes before the rpc can be
+     * started.
+     */
+    Future<T> ensureStarted(int index, long deadlineNanos)
+        throws InterruptedException, TimeoutException {
+      while (true) {
+        int oldest;
+        Future<T> oldestFuture;
+        synchronized (this) {
+          fill();
+          if (started.size() > index) {
+            return started.get(index);
+          }
+          oldest = oldestInFlight();
+          oldestFuture = started.get(oldest);
+        }
+        try {
+          if (deadlineNanos == NO_DEADLINE) {
+            oldestFuture.get();
+          } else {
+            oldestFuture.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+          }
+        } catch (ExecutionException e) {
+        }
+        markCompleted(oldest, false);
+      }
+    }
+
+    private void startNext() {
+      int index = started.size();
+      Future<T> future;
+      try {
+        future = rpcs.get(index).start();
+      } catch (RuntimeException e) {
+        future = new FutureHelper.FailedFuture<T>(e);
+      }
+      started.add(future);
+      startTimes[index] = System.currentTimeMillis();
+      ++numInFlight;
+    }
+
+    /**
+     * @return The index of the earliest started rpc that has not been marked
+     * completed. Must only be called while an rpc is in flight.
+     */
+    private int oldestInFlight() {
+      for (int i = 0; i < started.size(); ++i) {
+        if (!completed[i]) {
+          return i;
+        }
+      }
+      throw new IllegalStateException("No rpc in flight");
+    }
+
+    synchronized void markCompleted(int index, boolean wasDone) {
+      if (!completed[index]) {
+        completed[index] = true;
+        --numInFlight;
+        if (wasDone) {
+          recordFastRpc();
+        } else {
+          recordLatency(rpcs.get(index).size(), System.currentTimeMillis() - startTimes[index]);
+        }
+      }
+    }
+
+    /**
+     * The {@link Future} of a single rpc. Waiting on it or checking whether
+     * it is done starts the rpc if the window has room for it.
+     */
+    private final class ScheduledFuture implements Future<T> {
+      private final int index;
+
+      ScheduledFuture(int index) {
+        this.index = index;
+      }
+
+      @Override
+      public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (Schedule.this) {
+          if (index < started.size()) {
+            return started.get(index).cancel(mayInterruptIfRunning);
+          }
+          return false;
+        }
+      }
+
+      @Override
+      public boolean isCancelled() {
+        synchronized (Schedule.this) {
+          return index < started.size() && started.get(index).isCancelled();
+        }
+      }
+
+      @Override
+      public boolean isDone() {
+        synchronized (Schedule.this) {
+          fill();
+          return index < started.size() && started.get(index).isDone();
+        }
+      }
+
+      @Override
+      public T get() throws InterruptedException, ExecutionException {
+        Future<T> future;
+        try {
+          future = ensureStarted(index, NO_DEADLINE);
+        } catch (TimeoutException e) {
+          throw new AssertionError(e);
+        }
+        boolean wasDone = future.isDone();
+        try {
+          return future.get();
+        } finally {
+          onGet(future, wasDone);
+        }
+      }
+
+      @Override
+      public T get(long timeout, TimeUnit unit)
+          throws InterruptedException, ExecutionException, TimeoutException {
+        long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+        Future<T> future = ensureStarted(index, deadlineNanos);
+        boolean wasDone = future.isDone();
+        try {
+          return future.get(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } finally {
+          onGet(future, wasDone);
+        }
+      }
+
+      private void onGet(Future<T> future, boolean wasDone) {
+        if (future.isDone()) {
+          markCompleted(index, wasDone);
+          fill();
+        }
+      }
+    }
+  }
+}
@@ -9,6 +9,7 @@ import com.google.apphosting.api.DatastorePb;
 import com.google.apphosting.api.DatastorePb.CommitResponse;
 import com.google.io.protocol.ProtocolMessage;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Future;
 
@@ -108,7 +109,10 @@ class TransactionImpl implements Transaction, CurrentTransactionProvider {
       for (Future<?> f : txnStack.getFutures(this)) {
         FutureHelper.quietGet(f);
       }
+      List<Key> writtenKeys = getWrittenKeys();
+      EntityCache.invalidate(writtenKeys);
       Future<CommitResponse> future = makeAsyncCall("Commit", new CommitResponse());
+      EntityCache.invalidateOnCompletion(future, writtenKeys);
       return new PostCommitFuture(txnStack.getPutEntities(this), txnStack.getDeletedKeys(this),
           new FutureWrapper<CommitResponse, Void>(future) {
         @Override
@@ -140,7 +144,10 @@ class TransactionImpl implements Transaction, CurrentTransactionProvider {
       for (Future<?> f : txnStack.getFutures(this)) {
         FutureHelper.quietGet(f);
       }
+      List<Key> writtenKeys = getWrittenKeys();
+      EntityCache.invalidate(writtenKeys);
       Future<ApiBasePb.VoidProto> future = makeAsyncCall("Rollback", new ApiBasePb.VoidProto());
+      EntityCache.invalidateOnCompletion(future, writtenKeys);
       return new FutureWrapper<ApiBasePb.VoidProto, Void>(future) {
         @Override
         protected Void wrap(ApiBasePb.VoidProto ignore) throws Exception {
@@ -159,6 +166,21 @@ class TransactionImpl implements Transaction, CurrentTransactionProvider {
     }
   }
 
+  /**
+   * @return The keys of the entities put and deleted in this transaction,
+   * which are removed from the {@link EntityCache} when it completes.
+   */
+  private List<Key> getWrittenKeys() {
+    List<Entity> putEntities = txnStack.getPutEntities(this);
+    List<Key> deletedKeys = txnStack.getDeletedKeys(this);
+    List<Key> keys = new ArrayList<Key>(putEntities.size() + deletedKeys.size());
+    for (Entity entity : putEntities) {
+      keys.add(entity.getKey());
+    }
+    keys.addAll(deletedKeys);
+    return keys;
+  }
+
   @Override
   public String getApp() {
     return app;
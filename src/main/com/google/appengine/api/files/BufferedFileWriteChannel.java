@@ -0,0 +1,56 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link FileWriteChannel} that buffers writes and sends them to the back
+ * end in appends of the largest size it accepts, while the next append is
+ * being buffered.  This makes writing large files limited by bandwidth rather
+ * than by the latency of each append.
+ * <p>
+ * Unlike with an unbuffered {@code FileWriteChannel}, bytes accepted by
+ * {@link #write(ByteBuffer)} may not have reached the back end yet, and a
+ * failure to append them is thrown from a later {@code write}, from
+ * {@link #flush()} or from one of the {@code close()} methods.  A write with a
+ * non-{@code null} sequence key is not buffered: it flushes the buffer and
+ * returns once its bytes have been appended, so that a
+ * {@link KeyOrderingException} is thrown from the write it concerns.
+ * <p>
+ * An instance of {@code BufferedFileWriteChannel} is obtained from the method
+ * {@link FileService#openBufferedWriteChannel(AppEngineFile, boolean)}.
+ *
+ */
+public interface BufferedFileWriteChannel extends FileWriteChannel {
+
+  /**
+   * Sends all buffered bytes to the back end and waits until they have been
+   * appended.
+   *
+   * @throws IOException if any of the bytes could not be appended
+   */
+  public void flush() throws IOException;
+
+  /**
+   * @return the number of bytes accepted by {@code write} so far
+   */
+  public long getBytesWritten();
+
+  /**
+   * @return the number of bytes the back end has confirmed it appended so far
+   */
+  public long getBytesAppended();
+
+  /**
+   * @return the number of append calls made to the back end so far
+   */
+  public long getAppendCount();
+
+  /**
+   * @return the average number of bytes appended per second since the channel
+   *         was opened
+   */
+  public double getBytesPerSecond();
+}
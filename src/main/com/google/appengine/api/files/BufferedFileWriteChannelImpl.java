@@ -0,0 +1,207 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.files;
+
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.Future;
+
+/**
+ * An implementation of {@code BufferedFileWriteChannel}.
+ *
+ * Appends to a file must reach the back end in order, so at most one append
+ * is in flight at a time; the next one is buffered meanwhile.
+ *
+ */
+class BufferedFileWriteChannelImpl implements BufferedFileWriteChannel {
+
+  private final FileServiceImpl fileService;
+  private final AppEngineFile file;
+  private final boolean lockHeld;
+  private boolean isOpen;
+
+  private final byte[] buffer;
+  private int bufferedBytes;
+
+  private Future<byte[]> appendInFlight;
+  private int bytesInFlight;
+
+  private final long openedAtNanos;
+  private long bytesWritten;
+  private long bytesAppended;
+  private long appendCount;
+
+  BufferedFileWriteChannelImpl(AppEngineFile f, boolean lock, FileServiceImpl fs) {
+    this(f, lock, fs, FileServiceImpl.MAX_APPEND_SIZE);
+  }
+
+  BufferedFileWriteChannelImpl(AppEngineFile f, boolean lock, FileServiceImpl fs,
+      int bufferSize) {
+    this.file = f;
+    this.lockHeld = lock;
+    this.fileService = fs;
+    isOpen = true;
+    if (null == file) {
+      throw new NullPointerException("file is null");
+    }
+    if (!f.isWritable()) {
+      throw new IllegalArgumentException("file is not writable");
+    }
+    if (bufferSize <= 0 || bufferSize > FileServiceImpl.MAX_APPEND_SIZE) {
+      throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+    }
+    buffer = new byte[bufferSize];
+    openedAtNanos = System.nanoTime();
+  }
+
+  private void checkOpen() throws ClosedChannelException {
+    if (!isOpen) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public int write(ByteBuffer src) throws IOException {
+    return write(src, null);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public int write(ByteBuffer buffer, String sequenceKey) throws IOException {
+    checkOpen();
+    if (null == buffer) {
+      throw new NullPointerException("buffer is null");
+    }
+    if (null != sequenceKey) {
+      flush();
+      int written = fileService.append(file, buffer, sequenceKey);
+      bytesWritten += written;
+      bytesAppended += written;
+      appendCount++;
+      return written;
+    }
+    int written = buffer.remaining();
+    while (buffer.hasRemaining()) {
+      int count = Math.min(buffer.remaining(), this.buffer.length - bufferedBytes);
+      buffer.get(this.buffer, bufferedBytes, count);
+      bufferedBytes += count;
+      bytesWritten += count;
+      if (bufferedBytes == this.buffer.length) {
+        sendBuffer();
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Starts appending the buffered bytes once the previous append is
+   * complete.
+   */
+  private void sendBuffer() throws IOException {
+    waitForAppend();
+    appendInFlight = fileService.appendAsync(file, ByteString.copyFrom(buffer, 0, bufferedBytes));
+    bytesInFlight = bufferedBytes;
+    bufferedBytes = 0;
+    appendCount++;
+  }
+
+  private void waitForAppend() throws IOException {
+    if (appendInFlight == null) {
+      return;
+    }
+    Future<byte[]> append = appendInFlight;
+    appendInFlight = null;
+    FileServiceImpl.waitForAppend(append);
+    bytesAppended += bytesInFlight;
+    bytesInFlight = 0;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void flush() throws IOException {
+    checkOpen();
+    if (bufferedBytes > 0) {
+      sendBuffer();
+    }
+    waitForAppend();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getBytesAppended() {
+    return bytesAppended;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long getAppendCount() {
+    return appendCount;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public double getBytesPerSecond() {
+    long elapsedNanos = System.nanoTime() - openedAtNanos;
+    return elapsedNanos <= 0 ? 0 : bytesAppended * 1e9 / elapsedNanos;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void close() throws IOException {
+    if (!isOpen) {
+      return;
+    }
+    try {
+      flush();
+    } finally {
+      fileService.close(file, false);
+      isOpen = false;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void closeFinally() throws IllegalStateException, IOException {
+    if (!lockHeld) {
+      throw new IllegalStateException("The lock for this file is not held by the current request");
+    }
+    if (isOpen) {
+      flush();
+      fileService.close(file, true);
+    } else {
+      try {
+        fileService.openForAppend(file, true);
+        fileService.close(file, true);
+      } catch (FinalizationException e) {
+      }
+    }
+    isOpen = false;
+  }
+
+}
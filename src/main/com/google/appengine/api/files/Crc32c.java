@@ -2,6 +2,8 @@
 
 package com.google.appengine.api.files;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.zip.Checksum;
 
 /**
@@ -81,6 +83,25 @@ public final class Crc32c implements Checksum {
   private static final long LONG_MASK = 0xffffffffL;
   private static final long BYTE_MASK = 0xff;
 
+  /**
+   * Tables for processing 8 bytes at a time ("slicing-by-8"). Entry {@code i}
+   * of table {@code k} is the crc of byte {@code i} followed by {@code k} zero
+   * bytes, so table 0 is {@link #CRC_TABLE}.
+   */
+  private static final int[][] SLICING_TABLES = new int[8][256];
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      SLICING_TABLES[0][i] = (int) CRC_TABLE[i];
+    }
+    for (int k = 1; k < 8; k++) {
+      for (int i = 0; i < 256; i++) {
+        int previous = SLICING_TABLES[k - 1][i];
+        SLICING_TABLES[k][i] = (previous >>> 8) ^ SLICING_TABLES[0][previous & 0xff];
+      }
+    }
+  }
+
   private long crc;
 
   public Crc32c() {
@@ -106,11 +127,51 @@ public final class Crc32c implements Checksum {
    */
   @Override
   public void update(byte[] bArray, int off, int len) {
-    long newCrc = crc ^ LONG_MASK;
-    for (int i = off; i < off + len; i++) {
-      newCrc = updateByte(bArray[i], newCrc);
+    int newCrc = (int) (crc ^ LONG_MASK);
+    int end = off + len;
+    int i = off;
+    int[] t0 = SLICING_TABLES[0];
+    for (; i + 8 <= end; i += 8) {
+      int low = newCrc ^ ((bArray[i] & 0xff) | (bArray[i + 1] & 0xff) << 8
+          | (bArray[i + 2] & 0xff) << 16 | (bArray[i + 3] & 0xff) << 24);
+      int high = (bArray[i + 4] & 0xff) | (bArray[i + 5] & 0xff) << 8
+          | (bArray[i + 6] & 0xff) << 16 | (bArray[i + 7] & 0xff) << 24;
+      newCrc = slice(low, high);
+    }
+    for (; i < end; i++) {
+      newCrc = (newCrc >>> 8) ^ t0[(newCrc ^ bArray[i]) & 0xff];
+    }
+    crc = (newCrc ^ LONG_MASK) & LONG_MASK;
+  }
+
+  /**
+   * Updates the checksum with the remaining bytes of a buffer, and advances
+   * its position to its limit. Buffers backed by an array are not copied, and
+   * direct buffers are read eight bytes at a time.
+   * @param buffer the buffer of bytes.
+   */
+  public void update(ByteBuffer buffer) {
+    if (buffer.hasArray()) {
+      update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      buffer.position(buffer.limit());
+      return;
+    }
+    ByteOrder order = buffer.order();
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+    try {
+      int newCrc = (int) (crc ^ LONG_MASK);
+      int[] t0 = SLICING_TABLES[0];
+      while (buffer.remaining() >= 8) {
+        long bytes = buffer.getLong();
+        newCrc = slice(newCrc ^ (int) bytes, (int) (bytes >>> 32));
+      }
+      while (buffer.hasRemaining()) {
+        newCrc = (newCrc >>> 8) ^ t0[(newCrc ^ buffer.get()) & 0xff];
+      }
+      crc = (newCrc ^ LONG_MASK) & LONG_MASK;
+    } finally {
+      buffer.order(order);
     }
-    crc = newCrc ^ LONG_MASK;
   }
 
   /**
@@ -135,4 +196,19 @@ public final class Crc32c implements Checksum {
     int index = (int) ((crc ^ b) & BYTE_MASK);
     return (CRC_TABLE[index] ^ (crc >> 8)) & LONG_MASK;
   }
+
+  /**
+   * Returns the crc after eight bytes, given the first four bytes in little
+   * endian order xored with the crc before them, and the last four bytes.
+   */
+  private static int slice(int low, int high) {
+    return SLICING_TABLES[7][low & 0xff]
+        ^ SLICING_TABLES[6][(low >>> 8) & 0xff]
+        ^ SLICING_TABLES[5][(low >>> 16) & 0xff]
+        ^ SLICING_TABLES[4][low >>> 24]
+        ^ SLICING_TABLES[3][high & 0xff]
+        ^ SLICING_TABLES[2][(high >>> 8) & 0xff]
+        ^ SLICING_TABLES[1][(high >>> 16) & 0xff]
+        ^ SLICING_TABLES[0][high >>> 24];
+  }
 }
@@ -167,6 +167,29 @@ public interface FileService {
   FileWriteChannel openWriteChannel(AppEngineFile file, boolean lock)
       throws FileNotFoundException, FinalizationException, LockException, IOException;
 
+  /**
+   * Given an {@code AppEngineFile}, returns a {@code BufferedFileWriteChannel}
+   * that may be used for appending bytes to the file. Writes are buffered and
+   * appended in large chunks, the next of which is buffered while the previous
+   * one is being appended, so this is the faster way to write large files.
+   *
+   * @param file the file to which to append bytes. The file must exist and it
+   *        must not yet have been finalized. Furthermore, if the file is a
+   *        {@link com.google.appengine.api.files.AppEngineFile.FileSystem#GS GS}
+   *        file then it must be {@link AppEngineFile#isWritable() writable}.
+   * @param lock should the file be locked for exclusive access?
+   * @throws FileNotFoundException if the file does not exist in the backend
+   *         repository.
+   * @throws FinalizationException if the file has already been finalized. The
+   *         file may have been finalized by another request.
+   * @throws LockException if the file is locked in a different App Engine
+   *         request, or if {@code lock = true} and the file is opened in a
+   *         different App Engine request
+   * @throws IOException if any other unexpected problem occurs
+   */
+  BufferedFileWriteChannel openBufferedWriteChannel(AppEngineFile file, boolean lock)
+      throws FileNotFoundException, FinalizationException, LockException, IOException;
+
   /**
    * Given an {@code AppEngineFile}, returns a {@code FileReadChannel} that may
    * be used for reading bytes from the file.
@@ -262,4 +285,28 @@ public interface FileService {
   RecordReadChannel openRecordReadChannel(AppEngineFile file, boolean lock)
       throws FileNotFoundException, LockException, IOException;
 
+  /**
+   * Given an {@link AppEngineFile}, returns a {@link RecordReadChannel} that
+   * reads ahead of the records being returned. While records are read from one
+   * block of the file, the following {@code readAheadBlocks} blocks are being
+   * fetched from the backend system in parallel, so that sequential scans of
+   * large files are not limited by the latency of each read.
+   *
+   * @param file The file from which to read records. The file must exist, be closed, and it
+   *        must have been finalized.
+   * @param lock Should the file be locked for exclusive access?
+   * @param readAheadBlocks the number of blocks to fetch ahead of the block
+   *        being read. {@code 0} fetches each block when it is needed.
+   * @throws FileNotFoundException if the file does not exist in the backend
+   *         repository.
+   * @throws FinalizationException if the file has not yet been finalized
+   * @throws LockException if the file is locked in a different App Engine
+   *         request, or if {@code lock = true} and the file is opened in a
+   *         different App Engine request
+   * @throws IOException if any other problem occurs contacting the backend
+   *         system
+   */
+  RecordReadChannel openRecordReadChannel(AppEngineFile file, boolean lock, int readAheadBlocks)
+      throws FileNotFoundException, LockException, IOException;
+
 }
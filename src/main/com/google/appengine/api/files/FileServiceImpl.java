@@ -35,9 +35,12 @@ import com.google.protobuf.Message;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * Implements {@link FileService} by using {@link ApiProxy} to make RPC calls to
@@ -69,6 +72,12 @@ class FileServiceImpl implements FileService {
   static final String GS_CREATION_HANDLE_PREFIX = "writable:";
   static final String CREATION_HANDLE_PREFIX = "writable:";
 
+  /**
+   * The largest number of bytes sent in one 'Append' call, below the 1MB
+   * limit of an API call to leave room for the rest of the request.
+   */
+  static final int MAX_APPEND_SIZE = 1024 * 1024 - 64 * 1024;
+
   /**
    * {@inheritDoc}
    */
@@ -156,6 +165,17 @@ class FileServiceImpl implements FileService {
     return channel;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public BufferedFileWriteChannel openBufferedWriteChannel(AppEngineFile file, boolean lock)
+      throws FileNotFoundException, FinalizationException, LockException, IOException {
+    BufferedFileWriteChannel channel = new BufferedFileWriteChannelImpl(file, lock, this);
+    openForAppend(file, lock);
+    return channel;
+  }
+
   /**
    * Open the given file for append and optionally lock it.
    *
@@ -195,6 +215,19 @@ class FileServiceImpl implements FileService {
     return channel;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public RecordReadChannel openRecordReadChannel(AppEngineFile file, boolean lock,
+      int readAheadBlocks) throws FileNotFoundException, LockException, IOException {
+    FileReadChannel input =
+        new ReadAheadFileReadChannel(file, this, RecordConstants.BLOCK_SIZE, readAheadBlocks);
+    openForRead(file, lock);
+    RecordReadChannel channel = new RecordReadChannelImpl(input);
+    return channel;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -461,6 +494,97 @@ class FileServiceImpl implements FileService {
     makeSyncCall("Append", appendRequest, appendResponse);
   }
 
+  /**
+   * Starts an 'Append' RPC call without waiting for it to complete.  The
+   * returned future must be passed to {@link #waitForAppend}.
+   *
+   * @param file the file to which to append bytes. Must be opened for append in
+   *        the current request
+   * @param data no more than {@link #MAX_APPEND_SIZE} bytes to append
+   */
+  Future<byte[]> appendAsync(AppEngineFile file, ByteString data) {
+    if (null == file) {
+      throw new NullPointerException("file is null");
+    }
+    AppendRequest.Builder appendRequest = AppendRequest.newBuilder();
+    appendRequest.setFilename(file.getFullPath());
+    appendRequest.setData(data);
+    return ApiProxy.makeAsyncCall(PACKAGE, "Append", appendRequest.build().toByteArray());
+  }
+
+  /**
+   * Waits for an 'Append' RPC call started by {@link #appendAsync} to complete.
+   *
+   * @throws IOException if the bytes could not be appended
+   */
+  static void waitForAppend(Future<byte[]> append) throws IOException {
+    waitForCall(append, "Append");
+  }
+
+  /**
+   * Starts a 'Read' RPC call without waiting for it to complete.  The returned
+   * future must be passed to {@link #waitForRead}.
+   *
+   * @param file the file from which to read bytes. Must be opened for read in
+   *        the current request
+   * @param startingPos the position of the first byte to read
+   * @param maxBytes the largest number of bytes to read
+   */
+  Future<byte[]> readAsync(AppEngineFile file, long startingPos, long maxBytes) {
+    if (null == file) {
+      throw new NullPointerException("file is null");
+    }
+    if (startingPos < 0) {
+      throw new IllegalArgumentException("startingPos is negative: " + startingPos);
+    }
+    ReadRequest.Builder readRequest = ReadRequest.newBuilder();
+    readRequest.setFilename(file.getFullPath());
+    readRequest.setMaxBytes(maxBytes);
+    readRequest.setPos(startingPos);
+    return ApiProxy.makeAsyncCall(PACKAGE, "Read", readRequest.build().toByteArray());
+  }
+
+  /**
+   * Waits for a 'Read' RPC call started by {@link #readAsync} to complete.
+   *
+   * @return the bytes read, which are empty at the end of the file
+   * @throws IOException if the bytes could not be read
+   */
+  static ByteString waitForRead(Future<byte[]> read) throws IOException {
+    byte[] responseBytes = waitForCall(read, "Read");
+    try {
+      return ReadResponse.newBuilder().mergeFrom(responseBytes).build().getData();
+    } catch (InvalidProtocolBufferException e) {
+      throw new RuntimeException("Internal logic error: Response PB could not be parsed.", e);
+    }
+  }
+
+  /**
+   * Waits for an asynchronous RPC call to complete, translating its failure
+   * like {@link #makeSyncCall} does.
+   */
+  private static byte[] waitForCall(Future<byte[]> call, String callName) throws IOException {
+    try {
+      return call.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException interrupted =
+          new InterruptedIOException("Interrupted while waiting for " + callName);
+      interrupted.initCause(e);
+      throw interrupted;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof ApiProxy.ApplicationException) {
+        throw translateException((ApiProxy.ApplicationException) cause, null);
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(null, cause);
+    }
+  }
+
   /**
    * Makes the "Read" RPC call
    */
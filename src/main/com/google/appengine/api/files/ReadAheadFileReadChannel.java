@@ -0,0 +1,179 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.files;
+
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+
+/**
+ * A {@code FileReadChannel} that reads a file in chunks aligned to a fixed
+ * size and keeps reads of the chunks that follow the one being read in
+ * flight, so that reading a file sequentially does not wait for each read in
+ * turn.
+ *
+ * Reading from a position other than the one following the previous read
+ * discards the chunks read ahead.
+ *
+ */
+class ReadAheadFileReadChannel implements FileReadChannel {
+
+  /**
+   * A chunk whose read is in flight.
+   */
+  private static final class Chunk {
+    final long start;
+    final long end;
+    final Future<byte[]> read;
+
+    Chunk(long start, long end, Future<byte[]> read) {
+      this.start = start;
+      this.end = end;
+      this.read = read;
+    }
+  }
+
+  private final FileServiceImpl fileService;
+  private final AppEngineFile file;
+  private final int chunkSize;
+  private final int chunksAhead;
+  private final LinkedList<Chunk> chunks = new LinkedList<Chunk>();
+  private long position;
+  private boolean isOpen;
+
+  private ByteBuffer current;
+  private long currentStart;
+
+  /**
+   * @param chunkSize the number of bytes read by each call, and their alignment
+   * @param chunksAhead the number of chunks to read ahead of the one being
+   *        read
+   */
+  ReadAheadFileReadChannel(AppEngineFile f, FileServiceImpl fs, int chunkSize, int chunksAhead) {
+    this.file = f;
+    this.fileService = fs;
+    this.chunkSize = chunkSize;
+    this.chunksAhead = chunksAhead;
+    isOpen = true;
+    if (null == file) {
+      throw new NullPointerException("file is null");
+    }
+    if (null == fs) {
+      throw new NullPointerException("fs is null");
+    }
+    if (!f.isReadable()) {
+      throw new IllegalArgumentException("file is not readable");
+    }
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+    }
+    if (chunksAhead < 0) {
+      throw new IllegalArgumentException("chunksAhead may not be negative: " + chunksAhead);
+    }
+  }
+
+  private void checkOpen() throws ClosedChannelException {
+    if (!isOpen) {
+      throw new ClosedChannelException();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public long position() throws IOException {
+    checkOpen();
+    return position;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public FileReadChannel position(long newPosition) throws IOException {
+    if (newPosition < 0) {
+      throw new IllegalArgumentException("newPosition may not be negative");
+    }
+    checkOpen();
+    position = newPosition;
+    return this;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * Fills {@code dst} unless the end of the file is reached first.
+   */
+  public int read(ByteBuffer dst) throws IOException {
+    checkOpen();
+    int bytesRead = 0;
+    while (dst.hasRemaining()) {
+      if (current == null || position < currentStart
+          || position >= currentStart + current.limit()) {
+        if (!readChunk()) {
+          break;
+        }
+      }
+      int offset = (int) (position - currentStart);
+      int count = Math.min(dst.remaining(), current.limit() - offset);
+      ByteBuffer src = current.duplicate();
+      src.position(offset);
+      src.limit(offset + count);
+      dst.put(src);
+      position += count;
+      bytesRead += count;
+    }
+    return bytesRead == 0 && dst.hasRemaining() ? -1 : bytesRead;
+  }
+
+  /**
+   * Makes the chunk that starts at {@code position} current, and starts the
+   * reads of the chunks that follow it.
+   *
+   * @return {@code false} at the end of the file
+   */
+  private boolean readChunk() throws IOException {
+    if (!chunks.isEmpty() && chunks.getFirst().start != position) {
+      chunks.clear();
+    }
+    long next = chunks.isEmpty() ? position : chunks.getLast().end;
+    while (chunks.size() <= chunksAhead) {
+      long end = next - next % chunkSize + chunkSize;
+      chunks.add(new Chunk(next, end, fileService.readAsync(file, next, end - next)));
+      next = end;
+    }
+    Chunk chunk = chunks.removeFirst();
+    ByteString data = FileServiceImpl.waitForRead(chunk.read);
+    if (data.isEmpty()) {
+      chunks.clear();
+      current = null;
+      return false;
+    }
+    current = data.asReadOnlyByteBuffer();
+    currentStart = chunk.start;
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public boolean isOpen() {
+    return isOpen;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  public void close() throws IOException {
+    if (!isOpen) {
+      return;
+    }
+    chunks.clear();
+    current = null;
+    fileService.close(file, false);
+    isOpen = false;
+  }
+}
@@ -4,6 +4,7 @@ package com.google.appengine.api.files;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * A channel for reading records from a {@link FileReadChannel}.
@@ -28,6 +29,15 @@ public interface RecordReadChannel {
    */
   ByteBuffer readRecord() throws IOException;
 
+  /**
+   * Reads up to {@code max} records from the file. Unlike the result of
+   * {@link #readRecord()}, the returned {@link ByteBuffer}s are not reused by later reads.
+   * @param max the largest number of records to read.
+   * @return the records read, which are fewer than {@code max} only at the end of the file.
+   * @throws IOException
+   */
+  List<ByteBuffer> readRecords(int max) throws IOException;
+
   /**
    * Returns the position in the underlying {@link FileReadChannel}.
    * @return the position.
@@ -9,6 +9,8 @@ import com.google.appengine.api.files.RecordConstants.RecordType;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 final class RecordReadChannelImpl implements RecordReadChannel {
@@ -40,13 +42,28 @@ final class RecordReadChannelImpl implements RecordReadChannel {
   private ByteBuffer blockBuffer;
   private ByteBuffer finalRecord;
 
+  /**
+   * The position in {@code input} of the start of {@code blockBuffer}, which
+   * holds the bytes from there to the end of their block.
+   */
+  private long blockStart;
+
+  /**
+   * Whether records returned by {@link #readRecords} are slices of
+   * {@code blockBuffer}, so that it cannot be reused for the next block.
+   */
+  private boolean blockBufferShared;
+
+  /**
+   * Whether the last record read is {@code finalRecord}.
+   */
+  private boolean finalRecordRead;
+
   /**
    * @param input a {@link FileReadChannel} that holds Records to read from.
    */
   RecordReadChannelImpl(FileReadChannel input) {
     this.input = input;
-    blockBuffer = ByteBuffer.allocate(RecordConstants.BLOCK_SIZE);
-    blockBuffer.order(ByteOrder.LITTLE_ENDIAN);
     finalRecord = ByteBuffer.allocate(RecordConstants.BLOCK_SIZE);
     finalRecord.order(ByteOrder.LITTLE_ENDIAN);
   }
@@ -57,11 +74,11 @@ final class RecordReadChannelImpl implements RecordReadChannel {
   @Override
   public ByteBuffer readRecord() throws IOException {
     finalRecord.clear();
+    finalRecordRead = false;
     RecordType lastRead = RecordType.NONE;
     while (true) {
       try {
         Record record = readPhysicalRecord();
-        System.out.println("Record: " + record);
         if (record == null) {
           return null;
         }
@@ -74,10 +91,7 @@ final class RecordReadChannelImpl implements RecordReadChannel {
               throw new RecordReadException("Invalid RecordType: "
                 + record.type);
             }
-            System.out.println("Record position: " + record.data().position());
-            System.out.println("Record limit   : " + record.data().limit());
-            System.out.println("Record capacity: " + record.data().capacity());
-            return record.data().slice();
+            return record.data();
           case FIRST:
             if (lastRead != RecordType.NONE) {
               throw new RecordReadException("Invalid RecordType: "
@@ -99,6 +113,7 @@ final class RecordReadChannelImpl implements RecordReadChannel {
             }
             finalRecord = appendToBuffer(finalRecord, record.data());
             finalRecord.flip();
+            finalRecordRead = true;
             return finalRecord.slice();
           default:
             throw new RecordReadException("Invalid RecordType: " + record.type.value());
@@ -112,12 +127,42 @@ final class RecordReadChannelImpl implements RecordReadChannel {
     }
   }
 
+  /**
+   * {@inheritDoc}
+   *
+   * Records that lie within a single block are returned as slices of the
+   * block they were read from rather than copied.
+   */
+  @Override
+  public List<ByteBuffer> readRecords(int max) throws IOException {
+    if (max < 0) {
+      throw new IllegalArgumentException("max may not be negative: " + max);
+    }
+    List<ByteBuffer> records = new ArrayList<ByteBuffer>(Math.min(max, 64));
+    while (records.size() < max) {
+      blockBufferShared = true;
+      ByteBuffer record = readRecord();
+      if (record == null) {
+        break;
+      }
+      records.add(record);
+      if (finalRecordRead) {
+        finalRecord = ByteBuffer.allocate(RecordConstants.BLOCK_SIZE);
+        finalRecord.order(ByteOrder.LITTLE_ENDIAN);
+      }
+    }
+    return records;
+  }
+
   /**
    * {@inheritDoc}
    */
   @Override
   public long position() throws IOException {
-    return input.position();
+    if (blockBuffer == null) {
+      return input.position();
+    }
+    return blockStart + blockBuffer.position();
   }
 
   /**
@@ -125,6 +170,7 @@ final class RecordReadChannelImpl implements RecordReadChannel {
    */
   @Override
   public void position(long newPosition) throws IOException {
+    blockBuffer = null;
     input.position(newPosition);
   }
 
@@ -136,49 +182,74 @@ final class RecordReadChannelImpl implements RecordReadChannel {
    */
   private Record readPhysicalRecord()
           throws IOException, RecordReadException {
+    if (blockBuffer == null || !blockBuffer.hasRemaining()) {
+      if (!readBlock()) {
+        return null;
+      }
+    }
     int bytesToBlockEnd = (int) (RecordConstants.BLOCK_SIZE -
-        (input.position() % RecordConstants.BLOCK_SIZE));
+        (position() % RecordConstants.BLOCK_SIZE));
 
     if (bytesToBlockEnd < RecordConstants.HEADER_LENGTH) {
       return new Record(RecordType.NONE, null);
     }
 
-    blockBuffer.clear();
-    blockBuffer.limit(RecordConstants.HEADER_LENGTH);
-    int bytesRead = input.read(blockBuffer);
-    if (bytesRead != RecordConstants.HEADER_LENGTH) {
+    if (blockBuffer.remaining() < RecordConstants.HEADER_LENGTH) {
+      blockBuffer.position(blockBuffer.limit());
       return null;
     }
-    blockBuffer.flip();
     int checksum = blockBuffer.getInt();
     short length = blockBuffer.getShort();
     RecordType type = RecordType.get(blockBuffer.get());
-    if (length > bytesToBlockEnd || length < 0) {
+    if (length > bytesToBlockEnd - RecordConstants.HEADER_LENGTH || length < 0) {
       throw new RecordReadException("Length is too large:" + length);
     }
 
-    blockBuffer.clear();
-    blockBuffer.limit(length);
-    bytesRead = input.read(blockBuffer);
-    if (bytesRead != length) {
+    if (blockBuffer.remaining() < length) {
+      blockBuffer.position(blockBuffer.limit());
       return null;
     }
-    if (!isValidCrc(checksum, blockBuffer, type.value())) {
+    ByteBuffer data = blockBuffer.slice();
+    data.limit(length);
+    blockBuffer.position(blockBuffer.position() + length);
+    if (!isValidCrc(checksum, data, type.value())) {
       throw new RecordReadException("Checksum doesn't validate.");
     }
 
+    return new Record(type, data);
+  }
+
+  /**
+   * Reads the bytes from the current position to the end of its block, or of
+   * the file, with a single read of {@code input}.
+   *
+   * @return false if there are no bytes left in the file.
+   * @throws IOException
+   */
+  private boolean readBlock() throws IOException {
+    long start = blockBuffer == null ? input.position() : blockStart + blockBuffer.limit();
+    if (blockBuffer == null || blockBufferShared) {
+      blockBuffer = ByteBuffer.allocate(RecordConstants.BLOCK_SIZE);
+      blockBuffer.order(ByteOrder.LITTLE_ENDIAN);
+      blockBufferShared = false;
+    }
+    input.position(start);
+    blockBuffer.clear();
+    blockBuffer.limit(RecordConstants.BLOCK_SIZE - (int) (start % RecordConstants.BLOCK_SIZE));
+    int bytesRead = 0;
+    while (blockBuffer.hasRemaining() && bytesRead >= 0) {
+      bytesRead = input.read(blockBuffer);
+    }
     blockBuffer.flip();
-    return new Record(type, blockBuffer);
+    blockStart = start;
+    return blockBuffer.hasRemaining();
   }
 
   /**
    * Moves to the start of the next block.
-   * @throws IOException
    */
-  private void sync() throws IOException {
-    long padLength = RecordConstants.BLOCK_SIZE -
-        (input.position() % RecordConstants.BLOCK_SIZE);
-    input.position(input.position() + padLength);
+  private void sync() {
+    blockBuffer.position(blockBuffer.limit());
   }
 
   /**
@@ -191,7 +262,7 @@ final class RecordReadChannelImpl implements RecordReadChannel {
   private static boolean isValidCrc(int checksum, ByteBuffer data, byte type) {
     Crc32c crc = new Crc32c();
     crc.update(type);
-    crc.update(data.array(), 0, data.limit());
+    crc.update(data.duplicate());
 
     return unmaskCrc(checksum) == crc.getValue();
   }
@@ -3,6 +3,7 @@
 package com.google.appengine.api.images;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -53,6 +54,13 @@ public class CompositeTransform extends Transform {
     return this;
   }
 
+  /**
+   * @return the transforms executed in series, in order
+   */
+  List<Transform> getTransforms() {
+    return Collections.unmodifiableList(transforms);
+  }
+
   /** {@inheritDoc} */
   @Override
   void apply(ImagesServicePb.ImagesTransformRequest.Builder request) {
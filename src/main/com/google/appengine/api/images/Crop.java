@@ -42,6 +42,13 @@ final class Crop extends Transform {
 
   }
 
+  /**
+   * @return whether this crop keeps the whole image
+   */
+  boolean isFullFrame() {
+    return leftX == 0 && topY == 0 && rightX == 1 && bottomY == 1;
+  }
+
   /** {@inheritDoc} */
   @Override
   void apply(ImagesServicePb.ImagesTransformRequest.Builder request) {
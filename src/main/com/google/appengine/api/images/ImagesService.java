@@ -291,4 +291,13 @@ public interface ImagesService {
    * @see ImagesService#getServingUrl(BlobKey)
    */
   public String getServingUrl(BlobKey blobKey, int imageSize, boolean crop);
+
+  /**
+   * Returns counts of the work saved so far by simplifying transforms before
+   * sending them.  Transforms that would not change the image are removed,
+   * and requests that would return the image unchanged are not sent.
+   *
+   * @return a snapshot of the counts for this instance of the application
+   */
+  public TransformPlanStatistics getTransformPlanStatistics();
 }
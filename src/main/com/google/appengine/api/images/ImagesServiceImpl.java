@@ -25,7 +25,9 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of the ImagesService interface.
@@ -71,6 +73,10 @@ final class ImagesServiceImpl implements ImagesService {
   /** {@inheritDoc} */
   public Image applyTransform(Transform transform, Image image,
                               InputSettings inputSettings, OutputSettings outputSettings) {
+    transform = TransformPlanner.plan(transform, image, inputSettings, outputSettings);
+    if (transform == null) {
+      return image;
+    }
     ImagesTransformRequest.Builder request =
       generateImagesTransformRequest(transform, image, inputSettings, outputSettings);
 
@@ -91,6 +97,10 @@ final class ImagesServiceImpl implements ImagesService {
   /** {@inheritDoc} */
   public Future<Image> applyTransformAsync(Transform transform, final Image image,
       InputSettings inputSettings, OutputSettings outputSettings) {
+    transform = TransformPlanner.plan(transform, image, inputSettings, outputSettings);
+    if (transform == null) {
+      return new ImmediateFuture<Image>(image);
+    }
     final ImagesTransformRequest.Builder request =
       generateImagesTransformRequest(transform, image, inputSettings, outputSettings);
 
@@ -267,6 +277,11 @@ final class ImagesServiceImpl implements ImagesService {
     return builder.build();
   }
 
+  /** {@inheritDoc} */
+  public TransformPlanStatistics getTransformPlanStatistics() {
+    return TransformPlanner.getStatistics();
+  }
+
   private ImagesTransformRequest.Builder generateImagesTransformRequest(
       Transform transform, Image image, InputSettings inputSettings, OutputSettings outputSettings)
       throws IllegalArgumentException{
@@ -333,4 +348,35 @@ final class ImagesServiceImpl implements ImagesService {
       return new ImagesServiceFailureException(ex.getErrorDetail());
     }
   }
+
+  /**
+   * A {@code Future} for a transform that did not need to be sent.
+   */
+  private static final class ImmediateFuture<T> implements Future<T> {
+    private final T result;
+
+    ImmediateFuture(T result) {
+      this.result = result;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    public boolean isCancelled() {
+      return false;
+    }
+
+    public boolean isDone() {
+      return true;
+    }
+
+    public T get() throws ExecutionException {
+      return result;
+    }
+
+    public T get(long timeout, TimeUnit unit) throws ExecutionException {
+      return result;
+    }
+  }
 }
@@ -59,6 +59,18 @@ final class Resize extends Transform {
     this.cropOffsetY = cropOffsetY;
   }
 
+  int getWidth() {
+    return width;
+  }
+
+  int getHeight() {
+    return height;
+  }
+
+  boolean isCropToFit() {
+    return cropToFit;
+  }
+
   /** {@inheritDoc} */
   @Override
   void apply(ImagesServicePb.ImagesTransformRequest.Builder request) {
@@ -24,6 +24,13 @@ final class Rotate extends Transform {
     this.degrees = ((degrees % 360) + 360) % 360;
   }
 
+  /**
+   * @return the clockwise rotation in degrees, between 0 and 270
+   */
+  int getDegrees() {
+    return degrees;
+  }
+
   /** {@inheritDoc} */
   @Override
   void apply(ImagesServicePb.ImagesTransformRequest.Builder request) {
@@ -0,0 +1,65 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.images;
+
+/**
+ * Counts of the work saved by simplifying transforms before sending them to
+ * the images service, since this instance of the application started.
+ * Instances are snapshots obtained from
+ * {@link ImagesService#getTransformPlanStatistics()}.
+ *
+ */
+public final class TransformPlanStatistics {
+
+  private final long plannedRequestCount;
+  private final long skippedRequestCount;
+  private final long removedTransformCount;
+  private final long savedRequestBytes;
+
+  TransformPlanStatistics(long plannedRequestCount, long skippedRequestCount,
+      long removedTransformCount, long savedRequestBytes) {
+    this.plannedRequestCount = plannedRequestCount;
+    this.skippedRequestCount = skippedRequestCount;
+    this.removedTransformCount = removedTransformCount;
+    this.savedRequestBytes = savedRequestBytes;
+  }
+
+  /**
+   * @return the number of transform requests that were planned
+   */
+  public long getPlannedRequestCount() {
+    return plannedRequestCount;
+  }
+
+  /**
+   * @return the number of transform requests that were not sent because they
+   * would have returned the image unchanged
+   */
+  public long getSkippedRequestCount() {
+    return skippedRequestCount;
+  }
+
+  /**
+   * @return the number of basic transforms that were removed or merged into
+   * others
+   */
+  public long getRemovedTransformCount() {
+    return removedTransformCount;
+  }
+
+  /**
+   * @return an estimate of the number of bytes not sent to or received from
+   * the images service, counting the image both ways for skipped requests
+   */
+  public long getSavedRequestBytes() {
+    return savedRequestBytes;
+  }
+
+  @Override
+  public String toString() {
+    return "TransformPlanStatistics{planned=" + plannedRequestCount
+        + ", skipped=" + skippedRequestCount
+        + ", removedTransforms=" + removedTransformCount
+        + ", savedBytes=" + savedRequestBytes + "}";
+  }
+}
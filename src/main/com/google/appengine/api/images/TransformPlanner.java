@@ -0,0 +1,284 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.images;
+
+import com.google.appengine.api.images.ImagesServicePb.ImagesTransformRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simplifies transforms before they are sent to the images service.
+ *
+ * Transforms that do not change the image are removed: rotations by 0
+ * degrees, crops of the whole image and resizes to the size the image already
+ * has.  Flips that cancel each other out and consecutive rotations are merged,
+ * also across resizes they commute with.  A resize that is followed by a
+ * smaller one is dropped when both give the same size, so that the image is
+ * resampled once.  When nothing is left and the image would be returned in
+ * its own format, no request is needed at all.
+ *
+ * Sizes are known from the header of the image when its data is available,
+ * and resized sizes are predicted by rounding to the nearest pixel.  After a
+ * crop or an unknown transform the size is no longer known, and only the
+ * simplifications that do not depend on it are made.
+ *
+ */
+final class TransformPlanner {
+
+  private static final AtomicLong plannedRequestCount = new AtomicLong();
+  private static final AtomicLong skippedRequestCount = new AtomicLong();
+  private static final AtomicLong removedTransformCount = new AtomicLong();
+  private static final AtomicLong savedRequestBytes = new AtomicLong();
+
+  private TransformPlanner() {
+  }
+
+  /**
+   * @return the transform to send for {@code transform}, which may be
+   * {@code transform} itself, or {@code null} if the image would be returned
+   * unchanged
+   */
+  static Transform plan(Transform transform, Image image, InputSettings inputSettings,
+      OutputSettings outputSettings) {
+    List<Transform> transforms = new ArrayList<Transform>();
+    flatten(transform, transforms);
+    if (transforms.size() > ImagesService.MAX_TRANSFORMS_PER_REQUEST) {
+      return transform;
+    }
+    plannedRequestCount.incrementAndGet();
+
+    int[] size = null;
+    if (inputSettings.getOrientationCorrection()
+        == InputSettings.OrientationCorrection.UNCHANGED_ORIENTATION) {
+      size = sizeOf(image);
+    }
+    List<Transform> planned = simplify(transforms, size);
+    if (planned.size() == transforms.size()) {
+      return transform;
+    }
+    if (planned.isEmpty()) {
+      if (!canSkip(image, inputSettings, outputSettings)) {
+        return transform;
+      }
+      skippedRequestCount.incrementAndGet();
+      removedTransformCount.addAndGet(transforms.size());
+      savedRequestBytes.addAndGet(serializedSize(transform) + 2L * image.getImageData().length);
+      return null;
+    }
+    Transform result = new CompositeTransform(planned);
+    removedTransformCount.addAndGet(transforms.size() - planned.size());
+    savedRequestBytes.addAndGet(serializedSize(transform) - serializedSize(result));
+    return result;
+  }
+
+  static TransformPlanStatistics getStatistics() {
+    return new TransformPlanStatistics(plannedRequestCount.get(), skippedRequestCount.get(),
+        removedTransformCount.get(), savedRequestBytes.get());
+  }
+
+  private static void flatten(Transform transform, List<Transform> transforms) {
+    if (transform instanceof CompositeTransform) {
+      for (Transform child : ((CompositeTransform) transform).getTransforms()) {
+        flatten(child, transforms);
+      }
+    } else {
+      transforms.add(transform);
+    }
+  }
+
+  /**
+   * @param size the width and height of the image, or {@code null} if unknown
+   */
+  private static List<Transform> simplify(List<Transform> transforms, int[] size) {
+    List<Transform> planned = new ArrayList<Transform>(transforms.size());
+    Resize lastResize = null;
+    int[] sizeBeforeLastResize = null;
+    for (Transform transform : transforms) {
+      if (transform instanceof Rotate) {
+        int degrees = ((Rotate) transform).getDegrees();
+        if (degrees == 0) {
+          continue;
+        }
+        if (size != null && degrees % 180 != 0) {
+          size = new int[] {size[1], size[0]};
+        }
+        int previous = indexOfMergeable(planned, transform);
+        if (previous < 0) {
+          planned.add(transform);
+        } else {
+          int merged = (((Rotate) planned.get(previous)).getDegrees() + degrees) % 360;
+          if (merged == 0) {
+            planned.remove(previous);
+          } else {
+            planned.set(previous, new Rotate(merged));
+          }
+        }
+      } else if (transform instanceof HorizontalFlip || transform instanceof VerticalFlip) {
+        int previous = indexOfMergeable(planned, transform);
+        if (previous < 0) {
+          planned.add(transform);
+        } else {
+          planned.remove(previous);
+        }
+      } else if (transform instanceof Crop) {
+        if (!((Crop) transform).isFullFrame()) {
+          planned.add(transform);
+          size = null;
+        }
+      } else if (transform instanceof Resize) {
+        Resize resize = (Resize) transform;
+        if (size != null && isUnscaled(resize, size)) {
+          continue;
+        }
+        int last = planned.size() - 1;
+        if (!resize.isCropToFit() && size != null && sizeBeforeLastResize != null
+            && last >= 0 && planned.get(last) == lastResize) {
+          int[] direct = resizedSize(resize, sizeBeforeLastResize);
+          if (Arrays.equals(direct, resizedSize(resize, size))
+              && direct[0] <= size[0] && direct[1] <= size[1]) {
+            planned.set(last, resize);
+            lastResize = resize;
+            size = direct;
+            continue;
+          }
+        }
+        planned.add(resize);
+        lastResize = resize.isCropToFit() ? null : resize;
+        sizeBeforeLastResize = size;
+        size = size == null ? null : resizedSize(resize, size);
+      } else {
+        planned.add(transform);
+        if (!(transform instanceof ImFeelingLucky)) {
+          size = null;
+        }
+      }
+    }
+    return planned;
+  }
+
+  /**
+   * @return the index of the last transform in {@code planned} that
+   * {@code transform} can be merged with, if all the transforms after it
+   * commute with {@code transform}, or -1
+   */
+  private static int indexOfMergeable(List<Transform> planned, Transform transform) {
+    for (int i = planned.size() - 1; i >= 0; i--) {
+      Transform previous = planned.get(i);
+      if (previous.getClass() == transform.getClass()) {
+        return i;
+      }
+      if (!commute(previous, transform)) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return whether applying {@code a} then {@code b} gives the same image as
+   * applying {@code b} then {@code a}, for the cases the planner uses
+   */
+  private static boolean commute(Transform a, Transform b) {
+    if (a instanceof Resize) {
+      return !((Resize) a).isCropToFit() && isFlipOrHalfTurn(b);
+    }
+    if (b instanceof Resize) {
+      return commute(b, a);
+    }
+    return isFlipOrHalfTurn(a) && isFlipOrHalfTurn(b);
+  }
+
+  private static boolean isFlipOrHalfTurn(Transform transform) {
+    return transform instanceof HorizontalFlip || transform instanceof VerticalFlip
+        || (transform instanceof Rotate && ((Rotate) transform).getDegrees() == 180);
+  }
+
+  /**
+   * @return whether {@code resize} leaves an image of {@code size} at scale 1
+   */
+  private static boolean isUnscaled(Resize resize, int[] size) {
+    int width = resize.getWidth();
+    int height = resize.getHeight();
+    if (resize.isCropToFit()) {
+      return width == size[0] && height == size[1];
+    }
+    return (width == 0 || width >= size[0]) && (height == 0 || height >= size[1])
+        && (width == size[0] || height == size[1]);
+  }
+
+  /**
+   * @return the predicted size of an image of {@code size} after
+   * {@code resize}
+   */
+  private static int[] resizedSize(Resize resize, int[] size) {
+    int width = resize.getWidth();
+    int height = resize.getHeight();
+    if (resize.isCropToFit()) {
+      return new int[] {width, height};
+    }
+    if (height == 0 || (width != 0 && (long) width * size[1] <= (long) height * size[0])) {
+      return new int[] {width, scale(size[1], width, size[0])};
+    }
+    return new int[] {scale(size[0], height, size[1]), height};
+  }
+
+  private static int scale(int length, int numerator, int denominator) {
+    return (int) Math.max(1, Math.round((double) length * numerator / denominator));
+  }
+
+  /**
+   * @return the width and height of {@code image}, or {@code null} if they
+   * cannot be read from its data
+   */
+  private static int[] sizeOf(Image image) {
+    if (image.getBlobKey() != null) {
+      return null;
+    }
+    try {
+      return new int[] {image.getWidth(), image.getHeight()};
+    } catch (IllegalArgumentException e) {
+      return null;
+    } catch (UnsupportedOperationException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return whether the images service would return {@code image} unchanged
+   * for an empty transform.  JPEG images are always sent, since the service
+   * clears their orientation metadata.
+   */
+  private static boolean canSkip(Image image, InputSettings inputSettings,
+      OutputSettings outputSettings) {
+    if (image.getBlobKey() != null || outputSettings.hasQuality()
+        || inputSettings.getOrientationCorrection()
+            != InputSettings.OrientationCorrection.UNCHANGED_ORIENTATION) {
+      return false;
+    }
+    Image.Format format;
+    try {
+      format = image.getFormat();
+    } catch (IllegalArgumentException e) {
+      return false;
+    } catch (UnsupportedOperationException e) {
+      return false;
+    }
+    switch (outputSettings.getOutputEncoding()) {
+      case PNG:
+        return format == Image.Format.PNG;
+      case WEBP:
+        return format == Image.Format.WEBP;
+      default:
+        return false;
+    }
+  }
+
+  private static int serializedSize(Transform transform) {
+    ImagesTransformRequest.Builder request = ImagesTransformRequest.newBuilder();
+    transform.apply(request);
+    return request.buildPartial().getSerializedSize();
+  }
+}
@@ -154,4 +154,10 @@ public interface AsyncMemcacheService extends BaseMemcacheService {
    * @see MemcacheService#getStatistics()
    */
   Future<Stats> getStatistics();
+
+  /**
+   * Returns a new, empty batch that sends the operations queued on it with
+   * as few rpcs as possible, using the error handler of this service.
+   */
+  MemcacheBatch newBatch();
 }
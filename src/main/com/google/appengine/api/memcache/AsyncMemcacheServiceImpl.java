@@ -3,6 +3,7 @@
 package com.google.appengine.api.memcache;
 
 import static com.google.appengine.api.memcache.MemcacheServiceApiHelper.makeAsyncCall;
+import static com.google.appengine.api.memcache.MemcacheServiceApiHelper.wrapAsyncCall;
 
 import com.google.appengine.api.memcache.MemcacheSerialization.ValueAndFlags;
 import com.google.appengine.api.memcache.MemcacheService.CasValues;
@@ -38,6 +39,7 @@ import com.google.protobuf.Message;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -46,8 +48,10 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Java bindings for the AsyncMemcache service.
@@ -58,8 +62,9 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
   static class StatsImpl implements Stats {
     private final long hits, misses, bytesFetched, items, bytesStored;
     private final int maxCachedTime;
+    private final long nearCacheHits, nearCacheMisses, nearCacheItems;
 
-    StatsImpl(MergedNamespaceStats stats) {
+    StatsImpl(MergedNamespaceStats stats, NearCache nearCache) {
       if (stats != null) {
         hits = stats.getHits();
         misses = stats.getMisses();
@@ -71,6 +76,13 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
         hits = misses = bytesFetched = items = bytesStored = 0;
         maxCachedTime = 0;
       }
+      if (nearCache != null) {
+        nearCacheHits = nearCache.getHitCount();
+        nearCacheMisses = nearCache.getMissCount();
+        nearCacheItems = nearCache.getItemCount();
+      } else {
+        nearCacheHits = nearCacheMisses = nearCacheItems = 0;
+      }
     }
 
     @Override
@@ -103,6 +115,21 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       return maxCachedTime;
     }
 
+    @Override
+    public long getNearCacheHitCount() {
+      return nearCacheHits;
+    }
+
+    @Override
+    public long getNearCacheMissCount() {
+      return nearCacheMisses;
+    }
+
+    @Override
+    public long getNearCacheItemCount() {
+      return nearCacheItems;
+    }
+
     @Override
     public String toString() {
       StringBuilder builder = new StringBuilder();
@@ -112,6 +139,9 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       builder.append("Bytes Stored: ").append(bytesStored).append('\n');
       builder.append("Items: ").append(items).append('\n');
       builder.append("Max Cached Time: ").append(maxCachedTime).append('\n');
+      builder.append("Near Cache Hits: ").append(nearCacheHits).append('\n');
+      builder.append("Near Cache Misses: ").append(nearCacheMisses).append('\n');
+      builder.append("Near Cache Items: ").append(nearCacheItems).append('\n');
       return builder.toString();
     }
   }
@@ -164,14 +194,6 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
           }
         };
 
-    private static final Provider<Stats> STATS_PROVIDER = new Provider<Stats>() {
-          final Stats emptyStats =  new AsyncMemcacheServiceImpl.StatsImpl(null);
-
-          @Override public Stats get() {
-            return emptyStats;
-          }
-        };
-
     static Provider<Boolean> falseValue() {
       return FALSE_PROVIDER;
     }
@@ -190,10 +212,6 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     static <K, V> Provider<Map<K, V>> emptyMap() {
       return MAP_PROVIDER;
     }
-
-    static Provider<Stats> emptyStats() {
-      return STATS_PROVIDER;
-    }
   }
 
   private static class VoidFutureWrapper<K> extends FutureWrapper<K, Void> {
@@ -217,6 +235,128 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
+  /**
+   * A future for a result that was available without an rpc.
+   */
+  private static final class ImmediateFuture<T> implements Future<T> {
+    private final T result;
+
+    private ImmediateFuture(T result) {
+      this.result = result;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      return true;
+    }
+
+    @Override
+    public T get() {
+      return result;
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) {
+      return result;
+    }
+  }
+
+  /**
+   * A future for a result computed from data that was available without an
+   * rpc.  The result is computed when it is first read, like the result of an
+   * rpc, so that exceptions are thrown and reported to the error handler from
+   * {@code get()} in the same way.
+   */
+  private static final class DeferredTransformFuture<F, T> extends FutureWrapper<F, T> {
+    private final Transformer<F, T> transformer;
+
+    private DeferredTransformFuture(F from, Transformer<F, T> transformer) {
+      super(new ImmediateFuture<F>(from));
+      this.transformer = transformer;
+    }
+
+    @Override
+    protected T wrap(F from) {
+      return transformer.transform(from);
+    }
+
+    @Override
+    protected Throwable convertException(Throwable cause) {
+      return cause;
+    }
+  }
+
+  /**
+   * A future for the union of the results of a get that was split across
+   * several rpcs and the near cache.
+   */
+  private static final class MergedMapFuture<K, V> implements Future<Map<K, V>> {
+    private final List<Future<Map<K, V>>> futures;
+
+    private MergedMapFuture(List<Future<Map<K, V>>> futures) {
+      this.futures = futures;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      boolean cancelled = false;
+      for (Future<Map<K, V>> future : futures) {
+        cancelled |= future.cancel(mayInterruptIfRunning);
+      }
+      return cancelled;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      for (Future<Map<K, V>> future : futures) {
+        if (future.isCancelled()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      for (Future<Map<K, V>> future : futures) {
+        if (!future.isDone()) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public Map<K, V> get() throws InterruptedException, ExecutionException {
+      Map<K, V> result = new HashMap<K, V>();
+      for (Future<Map<K, V>> future : futures) {
+        result.putAll(future.get());
+      }
+      return result;
+    }
+
+    @Override
+    public Map<K, V> get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      Map<K, V> result = new HashMap<K, V>();
+      for (Future<Map<K, V>> future : futures) {
+        result.putAll(future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+      }
+      return result;
+    }
+  }
+
   private static final class KeyValuePair<K, V> {
     private final K key;
     private final V value;
@@ -231,8 +371,46 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
+  /**
+   * The near cache consulted by gets, or {@code null} if it is disabled.
+   */
+  private final NearCache nearCache;
+
+  private final NearCache.Revalidator revalidator = new NearCache.Revalidator() {
+    @Override
+    public Future<?> revalidate(final String namespace, final ByteString key) {
+      MemcacheGetRequest request = MemcacheGetRequest.newBuilder()
+          .setNameSpace(namespace)
+          .addKey(key)
+          .build();
+      final long generation = nearCache.getGeneration();
+      return makeAsyncCall("Get", request, createRpcResponseHandler(
+          MemcacheGetResponse.getDefaultInstance(),
+          "Memcache near cache: exception revalidating 1 key",
+          new Transformer<MemcacheGetResponse, Void>() {
+            @Override public Void transform(MemcacheGetResponse response) {
+              nearCache.put(namespace, key,
+                  response.getItemCount() == 0 ? null : response.getItem(0), 0, generation);
+              return null;
+            }
+          }), DefaultValueProviders.<Void>nullValue());
+    }
+  };
+
+  /**
+   * The gets in flight that new gets join, or {@code null} if gets are not
+   * shared.
+   */
+  private final InFlightGets inFlightGets;
+
   AsyncMemcacheServiceImpl(String namespace) {
+    this(namespace, NearCache.getInstance(), InFlightGets.getInstance());
+  }
+
+  AsyncMemcacheServiceImpl(String namespace, NearCache nearCache, InFlightGets inFlightGets) {
     super(namespace);
+    this.nearCache = nearCache;
+    this.inFlightGets = inFlightGets;
   }
 
   static <T, V> Map<T, V> makeMap(Collection<T> keys, V value) {
@@ -243,7 +421,7 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     return map;
   }
 
-  private static ByteString makePbKey(Object key) {
+  static ByteString makePbKey(Object key) {
     try {
       return ByteString.copyFrom(MemcacheSerialization.makePbKey(key));
     } catch (IOException ex) {
@@ -259,7 +437,7 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
-  private Object deserializeItem(Object key, MemcacheGetResponse.Item item) {
+  Object deserializeItem(Object key, MemcacheGetResponse.Item item) {
     try {
       return MemcacheSerialization.deserialize(item.getValue().toByteArray(), item.getFlags());
     } catch (ClassNotFoundException ex) {
@@ -271,7 +449,20 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     }
   }
 
-  private <M extends Message, T> RpcResponseHandler<M, T> createRpcResponseHandler(
+  /**
+   * Stops gets from joining rpcs in flight for a key and removes it from the
+   * near cache, ahead of an rpc that modifies it.
+   */
+  void invalidate(String namespace, ByteString pbKey) {
+    if (inFlightGets != null) {
+      inFlightGets.forget(namespace, pbKey);
+    }
+    if (nearCache != null) {
+      nearCache.invalidate(namespace, pbKey);
+    }
+  }
+
+  <M extends Message, T> RpcResponseHandler<M, T> createRpcResponseHandler(
       M response, String errorText, Transformer<M, T> responseTransformer) {
     return new RpcResponseHandler<M, T>(
         response, errorText, responseTransformer, getErrorHandler());
@@ -289,15 +480,69 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   private <T> Future<T> doGet(Object key, boolean forCas, String errorText,
       final Transformer<MemcacheGetResponse, T> responseTransfomer, Provider<T> defaultValue) {
-    MemcacheGetRequest.Builder requestBuilder = MemcacheGetRequest.newBuilder();
-    requestBuilder.addKey(makePbKey(key));
-    requestBuilder.setNameSpace(getEffectiveNamespace());
-    if (forCas) {
-      requestBuilder.setForCas(true);
+    final ByteString pbKey = makePbKey(key);
+    final String namespace = getEffectiveNamespace();
+    final long generation = nearCache == null ? 0 : nearCache.getGeneration();
+    if (nearCache != null && !forCas) {
+      MemcacheGetResponse.Item item = nearCache.get(namespace, pbKey, revalidator);
+      if (item != null) {
+        return new DeferredTransformFuture<MemcacheGetResponse, T>(
+            MemcacheGetResponse.newBuilder().addItem(item).build(), responseTransfomer);
+      }
+    }
+    final boolean shareRpc = inFlightGets != null && !forCas;
+    Future<byte[]> rpc = shareRpc ? inFlightGets.join(namespace, pbKey) : null;
+    if (rpc == null) {
+      MemcacheGetRequest.Builder requestBuilder = MemcacheGetRequest.newBuilder();
+      requestBuilder.addKey(pbKey);
+      requestBuilder.setNameSpace(namespace);
+      if (forCas) {
+        requestBuilder.setForCas(true);
+      }
+      rpc = makeAsyncCall("Get", requestBuilder.build());
+      if (shareRpc) {
+        rpc = inFlightGets.register(namespace, Collections.singleton(pbKey), rpc);
+      }
     }
-    return makeAsyncCall("Get", requestBuilder.build(),
-        createRpcResponseHandler(MemcacheGetResponse.getDefaultInstance(), errorText,
-            responseTransfomer), defaultValue);
+    Transformer<MemcacheGetResponse, T> transformer = new Transformer<MemcacheGetResponse, T>() {
+      @Override public T transform(MemcacheGetResponse response) {
+        if (shareRpc) {
+          response = itemsFor(response, Collections.singleton(pbKey));
+        }
+        response = ChunkedValues.resolve(namespace, response, getErrorHandler());
+        if (nearCache != null && response.getItemCount() > 0) {
+          nearCache.put(namespace, pbKey, response.getItem(0), 0, generation);
+        }
+        return responseTransfomer.transform(response);
+      }
+    };
+    return wrapAsyncCall(rpc, createRpcResponseHandler(MemcacheGetResponse.getDefaultInstance(),
+        errorText, transformer), defaultValue);
+  }
+
+  /**
+   * @return the part of a response to a shared Get rpc, which may include
+   * other keys, that is the response to a get of {@code keys} alone
+   */
+  private static MemcacheGetResponse itemsFor(MemcacheGetResponse response,
+      Set<ByteString> keys) {
+    List<MemcacheGetResponse.Item> items = response.getItemList();
+    int matches = 0;
+    for (MemcacheGetResponse.Item item : items) {
+      if (keys.contains(item.getKey())) {
+        ++matches;
+      }
+    }
+    if (matches == items.size()) {
+      return response;
+    }
+    MemcacheGetResponse.Builder builder = MemcacheGetResponse.newBuilder();
+    for (MemcacheGetResponse.Item item : items) {
+      if (keys.contains(item.getKey())) {
+        builder.addItem(item);
+      }
+    }
+    return builder.build();
   }
 
   @Override
@@ -355,39 +600,198 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       final Transformer<KeyValuePair<K, MemcacheGetResponse.Item>, V> responseTransfomer,
       Provider<Map<K, V>> defaultValue) {
     MemcacheGetRequest.Builder requestBuilder = MemcacheGetRequest.newBuilder();
-    requestBuilder.setNameSpace(getEffectiveNamespace());
-    final Map<ByteString, K> byteStringToKey = new HashMap<ByteString, K>(keys.size(), 1);
+    String namespace = getEffectiveNamespace();
+    requestBuilder.setNameSpace(namespace);
+    long generation = nearCache == null ? 0 : nearCache.getGeneration();
+    boolean shareRpc = inFlightGets != null && !forCas;
+    Map<ByteString, K> byteStringToKey = new HashMap<ByteString, K>(keys.size(), 1);
+    final Map<K, MemcacheGetResponse.Item> nearCacheHits =
+        new HashMap<K, MemcacheGetResponse.Item>();
+    Map<Future<byte[]>, Map<ByteString, K>> joinedRpcs =
+        new HashMap<Future<byte[]>, Map<ByteString, K>>();
     for (K key : keys) {
       ByteString pbKey = makePbKey(key);
+      if (nearCache != null && !forCas) {
+        MemcacheGetResponse.Item item = nearCache.get(namespace, pbKey, revalidator);
+        if (item != null) {
+          nearCacheHits.put(key, item);
+          continue;
+        }
+      }
+      Future<byte[]> joinedRpc = shareRpc ? inFlightGets.join(namespace, pbKey) : null;
+      if (joinedRpc != null) {
+        Map<ByteString, K> joinedKeys = joinedRpcs.get(joinedRpc);
+        if (joinedKeys == null) {
+          joinedKeys = new HashMap<ByteString, K>();
+          joinedRpcs.put(joinedRpc, joinedKeys);
+        }
+        joinedKeys.put(pbKey, key);
+        continue;
+      }
       byteStringToKey.put(pbKey, key);
       requestBuilder.addKey(pbKey);
     }
     if (forCas) {
       requestBuilder.setForCas(forCas);
     }
-    return makeAsyncCall("Get", requestBuilder.build(), createRpcResponseHandler(
-        MemcacheGetResponse.getDefaultInstance(), errorText,
-        new Transformer<MemcacheGetResponse, Map<K, V>>() {
-          @Override
-          public Map<K, V> transform(MemcacheGetResponse response) {
-            Map<K, V> result = new HashMap<K, V>();
-            for (MemcacheGetResponse.Item item : response.getItemList()) {
-              K key = byteStringToKey.get(item.getKey());
-              V obj = responseTransfomer.transform(KeyValuePair.of(key, item));
-              result.put(key, obj);
+    List<Future<Map<K, V>>> results = new ArrayList<Future<Map<K, V>>>(joinedRpcs.size() + 2);
+    if (!nearCacheHits.isEmpty()) {
+      results.add(new DeferredTransformFuture<Map<K, MemcacheGetResponse.Item>, Map<K, V>>(
+          nearCacheHits, new Transformer<Map<K, MemcacheGetResponse.Item>, Map<K, V>>() {
+            @Override
+            public Map<K, V> transform(Map<K, MemcacheGetResponse.Item> items) {
+              Map<K, V> result = new HashMap<K, V>(items.size(), 1);
+              for (Map.Entry<K, MemcacheGetResponse.Item> entry : items.entrySet()) {
+                result.put(entry.getKey(),
+                    responseTransfomer.transform(KeyValuePair.of(entry.getKey(), entry.getValue())));
+              }
+              return result;
             }
-            return result;
+          }));
+    }
+    if (!byteStringToKey.isEmpty() || (nearCacheHits.isEmpty() && joinedRpcs.isEmpty())) {
+      Future<byte[]> rpc = makeAsyncCall("Get", requestBuilder.build());
+      if (shareRpc) {
+        rpc = inFlightGets.register(namespace, byteStringToKey.keySet(), rpc);
+      }
+      joinedRpcs.put(rpc, byteStringToKey);
+    }
+    for (Map.Entry<Future<byte[]>, Map<ByteString, K>> entry : joinedRpcs.entrySet()) {
+      results.add(wrapAsyncCall(entry.getKey(), createRpcResponseHandler(
+          MemcacheGetResponse.getDefaultInstance(), errorText,
+          newGetAllTransformer(namespace, entry.getValue(), responseTransfomer, generation)),
+          defaultValue));
+    }
+    if (results.size() == 1) {
+      return results.get(0);
+    }
+    return new MergedMapFuture<K, V>(results);
+  }
+
+  /**
+   * @return a transformer of the response to a Get rpc into the values of
+   * the keys in {@code byteStringToKey}.  Items for other keys, which a
+   * shared rpc may include, are ignored, and chunked values are reassembled.
+   */
+  private <K, V> Transformer<MemcacheGetResponse, Map<K, V>> newGetAllTransformer(
+      final String namespace, final Map<ByteString, K> byteStringToKey,
+      final Transformer<KeyValuePair<K, MemcacheGetResponse.Item>, V> responseTransfomer,
+      final long generation) {
+    return new Transformer<MemcacheGetResponse, Map<K, V>>() {
+      @Override
+      public Map<K, V> transform(MemcacheGetResponse response) {
+        Map<K, V> result = new HashMap<K, V>();
+        response = ChunkedValues.resolve(namespace, itemsFor(response, byteStringToKey.keySet()),
+            getErrorHandler());
+        for (MemcacheGetResponse.Item item : response.getItemList()) {
+          K key = byteStringToKey.get(item.getKey());
+          V obj = responseTransfomer.transform(KeyValuePair.of(key, item));
+          result.put(key, obj);
+          if (nearCache != null) {
+            nearCache.put(namespace, item.getKey(), item, 0, generation);
           }
-        }), defaultValue);
+        }
+        return result;
+      }
+    };
+  }
+
+  /**
+   * The write-through of a put into the near cache, applied once the put
+   * reports that the value was stored.
+   */
+  private final class NearCacheWrite {
+    private final String namespace;
+    private final MemcacheGetResponse.Item item;
+    private final long expirationMillis;
+    private final long generation;
+
+    NearCacheWrite(String namespace, MemcacheGetResponse.Item item, long expirationMillis,
+        long generation) {
+      this.namespace = namespace;
+      this.item = item;
+      this.expirationMillis = expirationMillis;
+      this.generation = generation;
+    }
+
+    void apply() {
+      nearCache.put(namespace, item.getKey(), item, expirationMillis, generation);
+    }
+  }
+
+  /**
+   * Invalidates the keys of {@code itemBuilders} ahead of the put rpc.
+   *
+   * @return the write-throughs to apply to the items that the put stores, in
+   * the same order as {@code itemBuilders}, or {@code null} if the near cache
+   * is disabled
+   */
+  private List<NearCacheWrite> invalidateForPut(String namespace,
+      List<MemcacheSetRequest.Item.Builder> itemBuilders) {
+    for (MemcacheSetRequest.Item.Builder itemBuilder : itemBuilders) {
+      invalidate(namespace, itemBuilder.getKey());
+    }
+    if (nearCache == null) {
+      return null;
+    }
+    long generation = nearCache.getGeneration();
+    List<NearCacheWrite> writes = new ArrayList<NearCacheWrite>(itemBuilders.size());
+    for (MemcacheSetRequest.Item.Builder itemBuilder : itemBuilders) {
+      MemcacheGetResponse.Item item = MemcacheGetResponse.Item.newBuilder()
+          .setKey(itemBuilder.getKey())
+          .setValue(itemBuilder.getValue())
+          .setFlags(itemBuilder.getFlags())
+          .build();
+      writes.add(new NearCacheWrite(namespace, item, itemBuilder.getExpirationTime() * 1000L,
+          generation));
+    }
+    return writes;
+  }
+
+  /**
+   * Adds an item to a Set request.  If its value is too large for a single
+   * item, it is split into chunks first, which are sent with Set rpcs of their
+   * own, and the item added is their manifest.
+   *
+   * @return the rpcs storing the chunks, or {@code null} if the value was
+   * not split
+   */
+  static ChunkedValues.ChunkWrites addSetItem(String namespace,
+      MemcacheSetRequest.Builder requestBuilder, MemcacheSetRequest.Item.Builder itemBuilder) {
+    ChunkedValues.ChunkWrites chunkWrites = null;
+    if (ChunkedValues.needsChunks(itemBuilder.getValue())) {
+      try {
+        chunkWrites = ChunkedValues.storeChunks(namespace, ChunkedValues.split(itemBuilder));
+      } catch (IOException ex) {
+        throw new IllegalArgumentException("Cannot split value into chunks", ex);
+      }
+    }
+    requestBuilder.addItem(itemBuilder);
+    return chunkWrites;
+  }
+
+  /**
+   * Consumes the status of an item added by {@link #addSetItem}.
+   *
+   * @param chunkWrites the value {@link #addSetItem} returned for the item
+   * @return the status of the item, or {@code ERROR} if it was stored but any
+   * of its chunks was not
+   */
+  static SetStatusCode nextSetStatus(Iterator<SetStatusCode> statuses,
+      ChunkedValues.ChunkWrites chunkWrites) {
+    SetStatusCode status = statuses.next();
+    if (status == SetStatusCode.STORED && chunkWrites != null && !chunkWrites.allStored()) {
+      return SetStatusCode.ERROR;
+    }
+    return status;
   }
 
   /**
    * Note: non-null oldValue implies Compare-and-Swap operation.
    */
-  private Future<Boolean> doPut(final Object key, IdentifiableValue oldValue, Object value,
-      Expiration expires, MemcacheSetRequest.SetPolicy policy) {
-    MemcacheSetRequest.Builder requestBuilder = MemcacheSetRequest.newBuilder();
-    requestBuilder.setNameSpace(getEffectiveNamespace());
+  static MemcacheSetRequest.Item.Builder newSetItemBuilder(Object key,
+      IdentifiableValue oldValue, Object value, Expiration expires,
+      MemcacheSetRequest.SetPolicy policy) {
     MemcacheSetRequest.Item.Builder itemBuilder = MemcacheSetRequest.Item.newBuilder();
     ValueAndFlags vaf = serializeValue(value);
     itemBuilder.setValue(ByteString.copyFrom(vaf.value));
@@ -407,7 +811,24 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       }
       itemBuilder.setCasId(((IdentifiableValueImpl) oldValue).getCasId());
     }
-    requestBuilder.addItem(itemBuilder);
+    return itemBuilder;
+  }
+
+  /**
+   * Note: non-null oldValue implies Compare-and-Swap operation.
+   */
+  private Future<Boolean> doPut(final Object key, IdentifiableValue oldValue, Object value,
+      Expiration expires, MemcacheSetRequest.SetPolicy policy) {
+    MemcacheSetRequest.Builder requestBuilder = MemcacheSetRequest.newBuilder();
+    String namespace = getEffectiveNamespace();
+    requestBuilder.setNameSpace(namespace);
+    MemcacheSetRequest.Item.Builder itemBuilder =
+        newSetItemBuilder(key, oldValue, value, expires, policy);
+    final ChunkedValues.ChunkWrites chunkWrites =
+        addSetItem(namespace, requestBuilder, itemBuilder);
+
+    final List<NearCacheWrite> nearCacheWrites =
+        invalidateForPut(namespace, Collections.singletonList(itemBuilder));
     return makeAsyncCall("Set", requestBuilder.build(), createRpcResponseHandler(
         MemcacheSetResponse.getDefaultInstance(),
         String.format("Memcache put: exception setting 1 key (%s) to '%s'", key, value),
@@ -417,17 +838,21 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
               throw new MemcacheServiceException("Memcache put: Set one item, got "
                   + response.getSetStatusCount() + " response statuses");
             }
-            SetStatusCode status = response.getSetStatus(0);
+            SetStatusCode status =
+                nextSetStatus(response.getSetStatusList().iterator(), chunkWrites);
             if (status == SetStatusCode.ERROR) {
               throw new MemcacheServiceException(
                   "Memcache put: Error setting single item (" + key + ")");
             }
+            if (status == SetStatusCode.STORED && nearCacheWrites != null) {
+              nearCacheWrites.get(0).apply();
+            }
             return status == SetStatusCode.STORED;
           }
         }), DefaultValueProviders.falseValue());
   }
 
-  private static MemcacheSetRequest.SetPolicy convertSetPolicyToPb(SetPolicy policy) {
+  static MemcacheSetRequest.SetPolicy convertSetPolicyToPb(SetPolicy policy) {
     switch (policy) {
       case SET_ALWAYS:
         return MemcacheSetRequest.SetPolicy.SET;
@@ -480,8 +905,13 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
   private <T> Future<Set<T>> doPutAll(Map<T, ?> values, Expiration expires,
       MemcacheSetRequest.SetPolicy policy, String operation) {
     MemcacheSetRequest.Builder requestBuilder = MemcacheSetRequest.newBuilder();
-    requestBuilder.setNameSpace(getEffectiveNamespace());
+    String namespace = getEffectiveNamespace();
+    requestBuilder.setNameSpace(namespace);
     final List<T> requestedKeys = new ArrayList<T>(values.size());
+    final List<ChunkedValues.ChunkWrites> chunkWrites =
+        new ArrayList<ChunkedValues.ChunkWrites>(values.size());
+    List<MemcacheSetRequest.Item.Builder> itemBuilders =
+        new ArrayList<MemcacheSetRequest.Item.Builder>(values.size());
     for (Map.Entry<T, ?> entry : values.entrySet()) {
       MemcacheSetRequest.Item.Builder itemBuilder = MemcacheSetRequest.Item.newBuilder();
       requestedKeys.add(entry.getKey());
@@ -512,28 +942,39 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
       itemBuilder.setValue(ByteString.copyFrom(vaf.value));
       itemBuilder.setFlags(vaf.flags.ordinal());
       itemBuilder.setSetPolicy(policy);
-      requestBuilder.addItem(itemBuilder);
+      chunkWrites.add(addSetItem(namespace, requestBuilder, itemBuilder));
+      itemBuilders.add(itemBuilder);
     }
+    final int itemCount = requestBuilder.getItemCount();
+    final List<NearCacheWrite> nearCacheWrites = invalidateForPut(namespace, itemBuilders);
     return makeAsyncCall("Set", requestBuilder.build(), createRpcResponseHandler(
         MemcacheSetResponse.getDefaultInstance(),
         "Memcache " + operation + ": Unknown exception setting " + values.size() + " keys",
         new Transformer<MemcacheSetResponse, Set<T>>() {
           @Override public Set<T> transform(MemcacheSetResponse response) {
-            if (response.getSetStatusCount() != requestedKeys.size()) {
+            if (response.getSetStatusCount() != itemCount) {
               throw new MemcacheServiceException(String.format(
                   "Memcache put: Set %d items, got %d response statuses",
-                  requestedKeys.size(),
+                  itemCount,
                   response.getSetStatusCount()));
             }
             HashSet<T> result = new HashSet<T>();
             HashSet<T> errors = new HashSet<T>();
             Iterator<SetStatusCode> statusIter = response.getSetStatusList().iterator();
+            Iterator<NearCacheWrite> nearCacheWriteIter =
+                nearCacheWrites == null ? null : nearCacheWrites.iterator();
+            Iterator<ChunkedValues.ChunkWrites> chunkWritesIter = chunkWrites.iterator();
             for (T requestedKey : requestedKeys) {
-              SetStatusCode status = statusIter.next();
+              SetStatusCode status = nextSetStatus(statusIter, chunkWritesIter.next());
+              NearCacheWrite nearCacheWrite =
+                  nearCacheWriteIter == null ? null : nearCacheWriteIter.next();
               if (status == MemcacheSetResponse.SetStatusCode.ERROR) {
                 errors.add(requestedKey);
               } else if (status == MemcacheSetResponse.SetStatusCode.STORED) {
                 result.add(requestedKey);
+                if (nearCacheWrite != null) {
+                  nearCacheWrite.apply();
+                }
               }
             }
             if (!errors.isEmpty()) {
@@ -580,6 +1021,7 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
             .setKey(makePbKey(key))
             .setDeleteTime((int) TimeUnit.SECONDS.convert(millisNoReAdd, TimeUnit.MILLISECONDS)))
         .build();
+    invalidate(request.getNameSpace(), request.getItem(0).getKey());
     return makeAsyncCall("Delete", request, createRpcResponseHandler(
         MemcacheDeleteResponse.getDefaultInstance(),
         "Memcache delete: Unknown exception deleting key: " + key,
@@ -597,14 +1039,17 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   @Override
   public <T> Future<Set<T>> deleteAll(Collection<T> keys, long millisNoReAdd) {
+    String namespace = getEffectiveNamespace();
     MemcacheDeleteRequest.Builder requestBuilder =
-        MemcacheDeleteRequest.newBuilder().setNameSpace(getEffectiveNamespace());
+        MemcacheDeleteRequest.newBuilder().setNameSpace(namespace);
     final List<T> requestedKeys = new ArrayList<T>(keys.size());
     for (T key : keys) {
       requestedKeys.add(key);
+      ByteString pbKey = makePbKey(key);
+      invalidate(namespace, pbKey);
       requestBuilder.addItem(MemcacheDeleteRequest.Item.newBuilder()
                                  .setDeleteTime((int) (millisNoReAdd / 1000))
-                                 .setKey(makePbKey(key)));
+                                 .setKey(pbKey));
     }
     return makeAsyncCall("Delete", requestBuilder.build(), createRpcResponseHandler(
         MemcacheDeleteResponse.getDefaultInstance(),
@@ -624,7 +1069,7 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
         }), DefaultValueProviders.<T>emptySet());
   }
 
-  private static MemcacheIncrementRequest.Builder newIncrementRequestBuilder(
+  static MemcacheIncrementRequest.Builder newIncrementRequestBuilder(
       Object key, long delta, Long initialValue) {
     MemcacheIncrementRequest.Builder requestBuilder = MemcacheIncrementRequest.newBuilder();
     requestBuilder.setKey(makePbKey(key));
@@ -652,6 +1097,7 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
     MemcacheIncrementRequest request = newIncrementRequestBuilder(key, delta, initialValue)
         .setNameSpace(getEffectiveNamespace())
         .build();
+    invalidate(request.getNameSpace(), request.getKey());
     return makeAsyncCall("Increment", request,
         new RpcResponseHandler<MemcacheIncrementResponse, Long>(
             MemcacheIncrementResponse.getDefaultInstance(),
@@ -688,13 +1134,16 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   @Override
   public <T> Future<Map<T, Long>> incrementAll(Map<T, Long> offsets, Long initialValue) {
+    String namespace = getEffectiveNamespace();
     MemcacheBatchIncrementRequest.Builder requestBuilder =
-        MemcacheBatchIncrementRequest.newBuilder().setNameSpace(getEffectiveNamespace());
+        MemcacheBatchIncrementRequest.newBuilder().setNameSpace(namespace);
     final List<T> requestedKeys = new ArrayList<T>(offsets.size());
     for (Map.Entry<T, Long> entry : offsets.entrySet()) {
       requestedKeys.add(entry.getKey());
-      requestBuilder.addItem(
-          newIncrementRequestBuilder(entry.getKey(), entry.getValue(), initialValue));
+      MemcacheIncrementRequest.Builder itemBuilder =
+          newIncrementRequestBuilder(entry.getKey(), entry.getValue(), initialValue);
+      invalidate(namespace, itemBuilder.getKey());
+      requestBuilder.addItem(itemBuilder);
     }
     return makeAsyncCall("BatchIncrement", requestBuilder.build(), createRpcResponseHandler(
         MemcacheBatchIncrementResponse.getDefaultInstance(),
@@ -723,6 +1172,12 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
 
   @Override
   public Future<Void> clearAll() {
+    if (inFlightGets != null) {
+      inFlightGets.forgetAll();
+    }
+    if (nearCache != null) {
+      nearCache.invalidateAll();
+    }
     return makeAsyncCall("FlushAll", MemcacheFlushRequest.getDefaultInstance(),
         createRpcResponseHandler(MemcacheFlushResponse.getDefaultInstance(),
             "Memcache clearAll: exception",
@@ -733,6 +1188,11 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
             }), DefaultValueProviders.<Void>nullValue());
   }
 
+  @Override
+  public MemcacheBatch newBatch() {
+    return new MemcacheBatchImpl(this);
+  }
+
   @Override
   public Future<Stats> getStatistics() {
     return makeAsyncCall("Stats",  MemcacheStatsRequest.getDefaultInstance(),
@@ -740,8 +1200,12 @@ class AsyncMemcacheServiceImpl extends BaseMemcacheServiceImpl implements AsyncM
             "Memcache getStatistics: exception",
             new Transformer<MemcacheStatsResponse, Stats>() {
               @Override public Stats transform(MemcacheStatsResponse response) {
-                return new StatsImpl(response.getStats());
+                return new StatsImpl(response.getStats(), nearCache);
+              }
+            }), new Provider<Stats>() {
+              @Override public Stats get() {
+                return new StatsImpl(null, nearCache);
               }
-            }), DefaultValueProviders.emptyStats());
+            });
   }
 }
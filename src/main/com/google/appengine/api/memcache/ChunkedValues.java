@@ -0,0 +1,402 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.memcache.MemcacheSerialization.Flag;
+import com.google.appengine.api.memcache.MemcacheServiceApiHelper.Provider;
+import com.google.appengine.api.memcache.MemcacheServiceApiHelper.RpcResponseHandler;
+import com.google.appengine.api.memcache.MemcacheServiceApiHelper.Transformer;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetResponse.SetStatusCode;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Stores values that are too large for a single memcache item as several
+ * items.
+ *
+ * The value is split into chunks, each stored under a key of its own that is
+ * unique to the write, and the key of the value is given a manifest, flagged
+ * {@link Flag#CHUNKED}, that records the flags of the value and the length
+ * and CRC32 checksum of every chunk.  The chunks are sent with Set rpcs of
+ * their own, at most {@link #MAX_CHUNK_RPC_BYTES} at a time, ahead of the Set
+ * rpc that carries the manifest; a put reports an error for the key if any
+ * of its chunks is not stored.  Reads fetch the chunks of all the manifests
+ * in a Get response with more Get rpcs, sent together and each fetching at
+ * most {@link #MAX_CHUNK_RPC_BYTES}, whose failures are reported to the
+ * error handler of the service like those of any other rpc.  If any
+ * chunk has been evicted or does not match its checksum the value is treated
+ * as missing.
+ *
+ * Chunks are always stored with the same expiration as their manifest, even
+ * if the manifest itself is not stored because of its set policy; such
+ * chunks are never read and are evicted in time.
+ *
+ */
+final class ChunkedValues {
+  private static final Logger logger = Logger.getLogger(ChunkedValues.class.getName());
+
+  /**
+   * The name of the system property that, when set to {@code true}, makes
+   * puts of values larger than {@link #CHUNK_BYTES} store them in chunks
+   * rather than fail.  Earlier releases cannot read such values, so this must
+   * only be turned on once no version of the application that shares
+   * memcache runs an earlier release.  Chunked values are always read back
+   * correctly, whether or not the property is set.
+   */
+  static final String SYS_PROP = "appengine.memcache.chunkLargeValues";
+
+  private static final boolean ENABLED = Boolean.getBoolean(SYS_PROP);
+
+  /**
+   * The largest value stored as a single item, and the size of the chunks of
+   * larger values.  Leaves room within the 1 MB item limit for the key and
+   * the item overhead.
+   */
+  static final int CHUNK_BYTES = 1024 * 1024 - 1024;
+
+  /**
+   * The largest number of chunk bytes sent in a single Set rpc or fetched by
+   * a single Get rpc, which keeps the rpcs for very large values well within
+   * the size limits of a request and a response.
+   */
+  static final int MAX_CHUNK_RPC_BYTES = 4 * 1024 * 1024;
+
+  /**
+   * The maximum number of chunks fetched by one Get rpc.
+   */
+  private static final int MAX_CHUNK_KEYS_PER_RPC = MAX_CHUNK_RPC_BYTES / CHUNK_BYTES;
+
+  private static final String CHUNK_KEY_PREFIX = "_ah_chunk:";
+  private static final String UTF8_CHARSET = "UTF-8";
+  private static final byte FORMAT_VERSION = 1;
+
+  /**
+   * The parsed contents of a manifest.
+   */
+  private static final class Manifest {
+    final int flags;
+    final List<ByteString> chunkKeys;
+    final int[] chunkLengths;
+    final long[] chunkChecksums;
+
+    Manifest(int flags, int chunkCount) {
+      this.flags = flags;
+      this.chunkKeys = new ArrayList<ByteString>(chunkCount);
+      this.chunkLengths = new int[chunkCount];
+      this.chunkChecksums = new long[chunkCount];
+    }
+  }
+
+  /**
+   * The Set rpcs that store the chunks of a value.
+   */
+  static final class ChunkWrites {
+    private final List<Future<byte[]>> rpcs;
+    private final int chunkCount;
+
+    private ChunkWrites(List<Future<byte[]>> rpcs, int chunkCount) {
+      this.rpcs = rpcs;
+      this.chunkCount = chunkCount;
+    }
+
+    /**
+     * Waits for the rpcs to complete.
+     *
+     * @return whether every chunk was stored.  Failures of the rpcs are
+     * logged and count as chunks not stored.
+     */
+    boolean allStored() {
+      int stored = 0;
+      for (Future<byte[]> rpc : rpcs) {
+        try {
+          for (SetStatusCode status : MemcacheSetResponse.parseFrom(rpc.get()).getSetStatusList()) {
+            if (status == SetStatusCode.STORED) {
+              ++stored;
+            }
+          }
+        } catch (ExecutionException ex) {
+          logger.log(Level.INFO, "Memcache: exception setting the chunks of a large value",
+              ex.getCause());
+          return false;
+        } catch (InvalidProtocolBufferException ex) {
+          logger.log(Level.INFO, "Memcache: could not decode the result of setting chunks", ex);
+          return false;
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          return false;
+        }
+      }
+      return stored == chunkCount;
+    }
+  }
+
+  private ChunkedValues() {
+  }
+
+  /**
+   * @return whether an item with this value must be stored in chunks
+   */
+  static boolean needsChunks(ByteString value) {
+    return ENABLED && value.size() > CHUNK_BYTES;
+  }
+
+  /**
+   * @return whether {@code item} is the manifest of a chunked value
+   */
+  static boolean isManifest(MemcacheGetResponse.Item item) {
+    return item.getFlags() == Flag.CHUNKED.ordinal();
+  }
+
+  /**
+   * Splits the value of an item into chunk items, and replaces the value of
+   * {@code itemBuilder} with the manifest of the chunks.
+   *
+   * @return the chunk items
+   */
+  static List<MemcacheSetRequest.Item.Builder> split(MemcacheSetRequest.Item.Builder itemBuilder)
+      throws IOException {
+    byte[] value = itemBuilder.getValue().toByteArray();
+    int chunkCount = (value.length + CHUNK_BYTES - 1) / CHUNK_BYTES;
+    String writeId = UUID.randomUUID().toString();
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream manifest = new DataOutputStream(baos);
+    manifest.writeByte(FORMAT_VERSION);
+    manifest.writeInt(itemBuilder.getFlags());
+    manifest.writeUTF(writeId);
+    manifest.writeInt(chunkCount);
+
+    List<MemcacheSetRequest.Item.Builder> items =
+        new ArrayList<MemcacheSetRequest.Item.Builder>(chunkCount);
+    for (int i = 0; i < chunkCount; ++i) {
+      int offset = i * CHUNK_BYTES;
+      int length = Math.min(CHUNK_BYTES, value.length - offset);
+      CRC32 checksum = new CRC32();
+      checksum.update(value, offset, length);
+      manifest.writeInt(length);
+      manifest.writeLong(checksum.getValue());
+      items.add(MemcacheSetRequest.Item.newBuilder()
+          .setKey(chunkKey(writeId, i))
+          .setValue(ByteString.copyFrom(value, offset, length))
+          .setFlags(Flag.BYTES.ordinal())
+          .setExpirationTime(itemBuilder.getExpirationTime())
+          .setSetPolicy(MemcacheSetRequest.SetPolicy.SET));
+    }
+    manifest.close();
+
+    itemBuilder.setValue(ByteString.copyFrom(baos.toByteArray()));
+    itemBuilder.setFlags(Flag.CHUNKED.ordinal());
+    return items;
+  }
+
+  /**
+   * Sends Set rpcs for the chunks returned by {@link #split}, each with at
+   * most {@link #MAX_CHUNK_RPC_BYTES} of chunk values.
+   */
+  static ChunkWrites storeChunks(String namespace, List<MemcacheSetRequest.Item.Builder> chunks) {
+    List<Future<byte[]>> rpcs = new ArrayList<Future<byte[]>>();
+    MemcacheSetRequest.Builder request = null;
+    int requestBytes = 0;
+    for (MemcacheSetRequest.Item.Builder chunk : chunks) {
+      int chunkBytes = chunk.getValue().size();
+      if (request != null && requestBytes + chunkBytes > MAX_CHUNK_RPC_BYTES) {
+        rpcs.add(MemcacheServiceApiHelper.makeAsyncCall("Set", request.build()));
+        request = null;
+      }
+      if (request == null) {
+        request = MemcacheSetRequest.newBuilder().setNameSpace(namespace);
+        requestBytes = 0;
+      }
+      request.addItem(chunk);
+      requestBytes += chunkBytes;
+    }
+    if (request != null) {
+      rpcs.add(MemcacheServiceApiHelper.makeAsyncCall("Set", request.build()));
+    }
+    return new ChunkWrites(rpcs, chunks.size());
+  }
+
+  /**
+   * Replaces the manifests in a Get response with the values they describe,
+   * fetching their chunks with Get rpcs of at most
+   * {@link #MAX_CHUNK_RPC_BYTES} each, which are sent together.  Manifests
+   * whose value cannot be reassembled are removed from the response.
+   *
+   * @param errorHandler the error handler of the service that issued the
+   * Get rpc, which failures to fetch the chunks are reported to
+   */
+  static MemcacheGetResponse resolve(String namespace, MemcacheGetResponse response,
+      ErrorHandler errorHandler) {
+    Map<ByteString, Manifest> manifests = null;
+    List<ByteString> chunkKeys = null;
+    for (MemcacheGetResponse.Item item : response.getItemList()) {
+      if (!isManifest(item)) {
+        continue;
+      }
+      if (manifests == null) {
+        manifests = new HashMap<ByteString, Manifest>();
+        chunkKeys = new ArrayList<ByteString>();
+      }
+      Manifest manifest = parseManifest(item.getValue());
+      if (manifest != null) {
+        manifests.put(item.getKey(), manifest);
+        chunkKeys.addAll(manifest.chunkKeys);
+      }
+    }
+    if (manifests == null) {
+      return response;
+    }
+
+    Map<ByteString, ByteString> chunks = fetchChunks(namespace, chunkKeys, errorHandler);
+    MemcacheGetResponse.Builder resolved = MemcacheGetResponse.newBuilder();
+    for (MemcacheGetResponse.Item item : response.getItemList()) {
+      if (!isManifest(item)) {
+        resolved.addItem(item);
+        continue;
+      }
+      Manifest manifest = manifests.get(item.getKey());
+      ByteString value = manifest == null ? null : reassemble(manifest, chunks);
+      if (value != null) {
+        resolved.addItem(item.toBuilder().setValue(value).setFlags(manifest.flags));
+      }
+    }
+    return resolved.build();
+  }
+
+  private static ByteString chunkKey(String writeId, int index) throws IOException {
+    return ByteString.copyFrom((CHUNK_KEY_PREFIX + writeId + ":" + index).getBytes(UTF8_CHARSET));
+  }
+
+  /**
+   * @return the manifest, or {@code null} if it is not valid
+   */
+  private static Manifest parseManifest(ByteString value) {
+    try {
+      DataInputStream in = new DataInputStream(value.newInput());
+      if (in.readByte() != FORMAT_VERSION) {
+        logger.warning("Memcache: unknown chunked value format");
+        return null;
+      }
+      int flags = in.readInt();
+      String writeId = in.readUTF();
+      int chunkCount = in.readInt();
+      if (chunkCount < 0) {
+        throw new IOException("Invalid chunk count: " + chunkCount);
+      }
+      Manifest manifest = new Manifest(flags, chunkCount);
+      for (int i = 0; i < chunkCount; ++i) {
+        manifest.chunkKeys.add(chunkKey(writeId, i));
+        manifest.chunkLengths[i] = in.readInt();
+        manifest.chunkChecksums[i] = in.readLong();
+      }
+      return manifest;
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Memcache: invalid chunked value manifest", ex);
+      return null;
+    }
+  }
+
+  /**
+   * @return the chunks by key, without those that were not found.  Failures
+   * to fetch the chunks are passed to {@code errorHandler}; if it does not
+   * throw, they are treated as if none were found.
+   */
+  private static Map<ByteString, ByteString> fetchChunks(String namespace,
+      List<ByteString> chunkKeys, ErrorHandler errorHandler) {
+    List<Future<Map<ByteString, ByteString>>> rpcs =
+        new ArrayList<Future<Map<ByteString, ByteString>>>();
+    for (int start = 0; start < chunkKeys.size(); start += MAX_CHUNK_KEYS_PER_RPC) {
+      List<ByteString> keys =
+          chunkKeys.subList(start, Math.min(start + MAX_CHUNK_KEYS_PER_RPC, chunkKeys.size()));
+      rpcs.add(startChunkFetch(
+          MemcacheGetRequest.newBuilder().setNameSpace(namespace).addAllKey(keys).build(),
+          errorHandler));
+    }
+    Map<ByteString, ByteString> chunks = new HashMap<ByteString, ByteString>(chunkKeys.size());
+    for (Future<Map<ByteString, ByteString>> rpc : rpcs) {
+      try {
+        chunks.putAll(rpc.get());
+      } catch (ExecutionException ex) {
+        Throwable cause = ex.getCause();
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        errorHandler.handleServiceError(new MemcacheServiceException(
+            "Memcache get: exception getting chunks of large values", cause));
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        errorHandler.handleServiceError(new MemcacheServiceException(
+            "Memcache get: interrupted getting chunks of large values", ex));
+      }
+    }
+    return chunks;
+  }
+
+  private static Future<Map<ByteString, ByteString>> startChunkFetch(MemcacheGetRequest request,
+      ErrorHandler errorHandler) {
+    return MemcacheServiceApiHelper.makeAsyncCall("Get",
+        request, new RpcResponseHandler<MemcacheGetResponse, Map<ByteString, ByteString>>(
+            MemcacheGetResponse.getDefaultInstance(),
+            "Memcache get: exception getting " + request.getKeyCount() + " chunks of large values",
+            new Transformer<MemcacheGetResponse, Map<ByteString, ByteString>>() {
+              @Override
+              public Map<ByteString, ByteString> transform(MemcacheGetResponse response) {
+                Map<ByteString, ByteString> chunks =
+                    new HashMap<ByteString, ByteString>(response.getItemCount());
+                for (MemcacheGetResponse.Item item : response.getItemList()) {
+                  chunks.put(item.getKey(), item.getValue());
+                }
+                return chunks;
+              }
+            }, errorHandler),
+        new Provider<Map<ByteString, ByteString>>() {
+          @Override
+          public Map<ByteString, ByteString> get() {
+            return Collections.emptyMap();
+          }
+        });
+  }
+
+  /**
+   * @return the value, or {@code null} if a chunk is missing or corrupt
+   */
+  private static ByteString reassemble(Manifest manifest, Map<ByteString, ByteString> chunks) {
+    List<ByteString> parts = new ArrayList<ByteString>(manifest.chunkKeys.size());
+    for (int i = 0; i < manifest.chunkKeys.size(); ++i) {
+      ByteString chunk = chunks.get(manifest.chunkKeys.get(i));
+      if (chunk == null || chunk.size() != manifest.chunkLengths[i]) {
+        return null;
+      }
+      CRC32 checksum = new CRC32();
+      checksum.update(chunk.toByteArray());
+      if (checksum.getValue() != manifest.chunkChecksums[i]) {
+        logger.warning("Memcache: checksum mismatch in chunked value");
+        return null;
+      }
+      parts.add(chunk);
+    }
+    return ByteString.copyFrom(parts);
+  }
+}
@@ -0,0 +1,430 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Category;
+import com.google.appengine.api.datastore.Email;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.PhoneNumber;
+import com.google.appengine.api.datastore.PostalAddress;
+import com.google.appengine.api.datastore.Rating;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * A tagged binary encoding for the values most commonly stored in memcache:
+ * boxed primitives, {@code Strings}, {@code Dates}, byte arrays, the
+ * datastore value types, {@link Key Keys}, {@link Entity Entities}, and
+ * {@code ArrayLists}, {@code HashSets}, {@code HashMaps} (and their linked
+ * variants) of these.  Unlike Java serialization it writes no class
+ * descriptors, so the encoded values are a fraction of the size and much
+ * cheaper to decode.
+ *
+ * Every value is written as a one byte tag followed by its contents.  Values
+ * are matched on their exact class and decoded to that same class, so a
+ * value always reads back as it would have from Java serialization.  Values
+ * that contain anything else (including subclasses of the supported classes)
+ * have no compact encoding.
+ *
+ * This class is thread-safe.
+ *
+ */
+final class CompactValueCodec implements ValueCodec {
+  private static final String ASCII_CHARSET = "US-ASCII";
+  private static final String UTF8_CHARSET = "UTF-8";
+
+  private static final byte NULL = 'N';
+  private static final byte STRING = 'S';
+  private static final byte LONG = 'J';
+  private static final byte INTEGER = 'I';
+  private static final byte SHORT = 'H';
+  private static final byte BYTE = 'B';
+  private static final byte BOOLEAN = 'Z';
+  private static final byte DOUBLE = 'D';
+  private static final byte FLOAT = 'F';
+  private static final byte CHARACTER = 'C';
+  private static final byte DATE = 'T';
+  private static final byte BYTES = '#';
+  private static final byte KEY = 'K';
+  private static final byte ENTITY = 'E';
+  private static final byte TEXT = 'x';
+  private static final byte BLOB = 'b';
+  private static final byte SHORT_BLOB = 's';
+  private static final byte LINK = 'l';
+  private static final byte EMAIL = 'e';
+  private static final byte CATEGORY = 'c';
+  private static final byte PHONE_NUMBER = 'p';
+  private static final byte POSTAL_ADDRESS = 'a';
+  private static final byte RATING = 'r';
+  private static final byte GEO_PT = 'g';
+  private static final byte BLOB_KEY = 'k';
+  private static final byte ARRAY_LIST = 'L';
+  private static final byte HASH_SET = 'U';
+  private static final byte LINKED_HASH_SET = 'V';
+  private static final byte HASH_MAP = 'M';
+  private static final byte LINKED_HASH_MAP = 'O';
+
+  static final CompactValueCodec INSTANCE = new CompactValueCodec();
+
+  private CompactValueCodec() {
+  }
+
+  /**
+   * @return the encoded value, or {@code null} if {@code value} (or
+   *    something it contains) has no compact encoding
+   */
+  @Override
+  public byte[] encode(Object value) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    if (!write(value, out)) {
+      return null;
+    }
+    out.close();
+    return baos.toByteArray();
+  }
+
+  /**
+   * Decodes a value produced by {@link #encode}.
+   *
+   * @throws IOException if {@code bytes} is not a valid encoding
+   */
+  @Override
+  public Object decode(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    Object value = read(in);
+    if (in.read() != -1) {
+      throw new IOException("Unexpected data after compact value");
+    }
+    return value;
+  }
+
+  private static boolean write(Object value, DataOutputStream out) throws IOException {
+    if (value == null) {
+      out.writeByte(NULL);
+      return true;
+    }
+    Class<?> type = value.getClass();
+    if (type == String.class) {
+      out.writeByte(STRING);
+      writeString((String) value, out);
+    } else if (type == Long.class) {
+      out.writeByte(LONG);
+      out.writeLong((Long) value);
+    } else if (type == Integer.class) {
+      out.writeByte(INTEGER);
+      out.writeInt((Integer) value);
+    } else if (type == Short.class) {
+      out.writeByte(SHORT);
+      out.writeShort((Short) value);
+    } else if (type == Byte.class) {
+      out.writeByte(BYTE);
+      out.writeByte((Byte) value);
+    } else if (type == Boolean.class) {
+      out.writeByte(BOOLEAN);
+      out.writeBoolean((Boolean) value);
+    } else if (type == Double.class) {
+      out.writeByte(DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (type == Float.class) {
+      out.writeByte(FLOAT);
+      out.writeFloat((Float) value);
+    } else if (type == Character.class) {
+      out.writeByte(CHARACTER);
+      out.writeChar((Character) value);
+    } else if (type == Date.class) {
+      out.writeByte(DATE);
+      out.writeLong(((Date) value).getTime());
+    } else if (type == byte[].class) {
+      out.writeByte(BYTES);
+      writeBytes((byte[]) value, out);
+    } else if (type == Key.class) {
+      if (!((Key) value).isComplete()) {
+        return false;
+      }
+      out.writeByte(KEY);
+      writeKey((Key) value, out);
+    } else if (type == Entity.class) {
+      return writeEntity((Entity) value, out);
+    } else if (type == Text.class) {
+      out.writeByte(TEXT);
+      writeString(((Text) value).getValue(), out);
+    } else if (type == Blob.class) {
+      out.writeByte(BLOB);
+      writeBytes(((Blob) value).getBytes(), out);
+    } else if (type == ShortBlob.class) {
+      out.writeByte(SHORT_BLOB);
+      writeBytes(((ShortBlob) value).getBytes(), out);
+    } else if (type == Link.class) {
+      out.writeByte(LINK);
+      writeString(((Link) value).getValue(), out);
+    } else if (type == Email.class) {
+      out.writeByte(EMAIL);
+      writeString(((Email) value).getEmail(), out);
+    } else if (type == Category.class) {
+      out.writeByte(CATEGORY);
+      writeString(((Category) value).getCategory(), out);
+    } else if (type == PhoneNumber.class) {
+      out.writeByte(PHONE_NUMBER);
+      writeString(((PhoneNumber) value).getNumber(), out);
+    } else if (type == PostalAddress.class) {
+      out.writeByte(POSTAL_ADDRESS);
+      writeString(((PostalAddress) value).getAddress(), out);
+    } else if (type == Rating.class) {
+      out.writeByte(RATING);
+      out.writeInt(((Rating) value).getRating());
+    } else if (type == GeoPt.class) {
+      out.writeByte(GEO_PT);
+      out.writeFloat(((GeoPt) value).getLatitude());
+      out.writeFloat(((GeoPt) value).getLongitude());
+    } else if (type == BlobKey.class) {
+      out.writeByte(BLOB_KEY);
+      writeString(((BlobKey) value).getKeyString(), out);
+    } else if (type == ArrayList.class) {
+      out.writeByte(ARRAY_LIST);
+      return writeElements((Collection<?>) value, out);
+    } else if (type == HashSet.class) {
+      out.writeByte(HASH_SET);
+      return writeElements((Collection<?>) value, out);
+    } else if (type == LinkedHashSet.class) {
+      out.writeByte(LINKED_HASH_SET);
+      return writeElements((Collection<?>) value, out);
+    } else if (type == HashMap.class) {
+      out.writeByte(HASH_MAP);
+      return writeEntries((Map<?, ?>) value, out);
+    } else if (type == LinkedHashMap.class) {
+      out.writeByte(LINKED_HASH_MAP);
+      return writeEntries((Map<?, ?>) value, out);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Writes the key and properties of an entity.  Values that were set with
+   * {@link Entity#setUnindexedProperty} are flagged so that they are restored
+   * the same way; {@code Text} and {@code Blob} values are never indexed and
+   * need no flag.
+   */
+  private static boolean writeEntity(Entity entity, DataOutputStream out) throws IOException {
+    if (!entity.getKey().isComplete()) {
+      return false;
+    }
+    out.writeByte(ENTITY);
+    writeKey(entity.getKey(), out);
+    Map<String, Object> properties = entity.getProperties();
+    out.writeInt(properties.size());
+    for (Map.Entry<String, Object> entry : properties.entrySet()) {
+      Object value = entry.getValue();
+      boolean unindexed = entity.isUnindexedProperty(entry.getKey())
+          && !(value instanceof Text) && !(value instanceof Blob);
+      writeString(entry.getKey(), out);
+      out.writeBoolean(unindexed);
+      if (!write(value, out)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean writeElements(Collection<?> values, DataOutputStream out)
+      throws IOException {
+    out.writeInt(values.size());
+    for (Object value : values) {
+      if (!write(value, out)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean writeEntries(Map<?, ?> map, DataOutputStream out) throws IOException {
+    out.writeInt(map.size());
+    for (Map.Entry<?, ?> entry : map.entrySet()) {
+      if (!write(entry.getKey(), out) || !write(entry.getValue(), out)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeKey(Key key, DataOutputStream out) throws IOException {
+    writeBytes(KeyFactory.keyToString(key).getBytes(ASCII_CHARSET), out);
+  }
+
+  private static void writeString(String value, DataOutputStream out) throws IOException {
+    writeBytes(value == null ? null : value.getBytes(UTF8_CHARSET), out);
+  }
+
+  private static void writeBytes(byte[] bytes, DataOutputStream out) throws IOException {
+    if (bytes == null) {
+      out.writeInt(-1);
+    } else {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static Object read(DataInputStream in) throws IOException {
+    byte tag = in.readByte();
+    switch (tag) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString(in);
+      case LONG:
+        return in.readLong();
+      case INTEGER:
+        return in.readInt();
+      case SHORT:
+        return in.readShort();
+      case BYTE:
+        return in.readByte();
+      case BOOLEAN:
+        return in.readBoolean();
+      case DOUBLE:
+        return in.readDouble();
+      case FLOAT:
+        return in.readFloat();
+      case CHARACTER:
+        return in.readChar();
+      case DATE:
+        return new Date(in.readLong());
+      case BYTES:
+        return readBytes(in);
+      case KEY:
+        return readKey(in);
+      case ENTITY:
+        return readEntity(in);
+      case TEXT:
+        return new Text(readString(in));
+      case BLOB:
+        return new Blob(readBytes(in));
+      case SHORT_BLOB:
+        return new ShortBlob(readBytes(in));
+      case LINK:
+        return new Link(readString(in));
+      case EMAIL:
+        return new Email(readString(in));
+      case CATEGORY:
+        return new Category(readString(in));
+      case PHONE_NUMBER:
+        return new PhoneNumber(readString(in));
+      case POSTAL_ADDRESS:
+        return new PostalAddress(readString(in));
+      case RATING:
+        return new Rating(in.readInt());
+      case GEO_PT:
+        return new GeoPt(in.readFloat(), in.readFloat());
+      case BLOB_KEY:
+        return new BlobKey(readString(in));
+      case ARRAY_LIST: {
+        int size = readSize(in);
+        return readElements(in, size, new ArrayList<Object>(size));
+      }
+      case HASH_SET: {
+        int size = readSize(in);
+        return readElements(in, size, new HashSet<Object>(size * 4 / 3 + 1));
+      }
+      case LINKED_HASH_SET: {
+        int size = readSize(in);
+        return readElements(in, size, new LinkedHashSet<Object>(size * 4 / 3 + 1));
+      }
+      case HASH_MAP: {
+        int size = readSize(in);
+        return readEntries(in, size, new HashMap<Object, Object>(size * 4 / 3 + 1));
+      }
+      case LINKED_HASH_MAP: {
+        int size = readSize(in);
+        return readEntries(in, size, new LinkedHashMap<Object, Object>(size * 4 / 3 + 1));
+      }
+      default:
+        throw new IOException("Unknown compact value tag: " + tag);
+    }
+  }
+
+  private static Entity readEntity(DataInputStream in) throws IOException {
+    Entity entity = new Entity(readKey(in));
+    int size = readSize(in);
+    for (int i = 0; i < size; ++i) {
+      String name = readString(in);
+      boolean unindexed = in.readBoolean();
+      Object value = read(in);
+      if (unindexed) {
+        entity.setUnindexedProperty(name, value);
+      } else {
+        entity.setProperty(name, value);
+      }
+    }
+    return entity;
+  }
+
+  private static Collection<Object> readElements(DataInputStream in, int size,
+      Collection<Object> values) throws IOException {
+    for (int i = 0; i < size; ++i) {
+      values.add(read(in));
+    }
+    return values;
+  }
+
+  private static Map<Object, Object> readEntries(DataInputStream in, int size,
+      Map<Object, Object> map) throws IOException {
+    for (int i = 0; i < size; ++i) {
+      Object key = read(in);
+      map.put(key, read(in));
+    }
+    return map;
+  }
+
+  private static Key readKey(DataInputStream in) throws IOException {
+    try {
+      return KeyFactory.stringToKey(new String(readBytes(in), ASCII_CHARSET));
+    } catch (IllegalArgumentException ex) {
+      throw new IOException("Invalid key in compact value: " + ex.getMessage());
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = readBytes(in);
+    return bytes == null ? null : new String(bytes, UTF8_CHARSET);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static int readSize(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    if (size < 0) {
+      throw new IOException("Invalid size in compact value: " + size);
+    }
+    return size;
+  }
+}
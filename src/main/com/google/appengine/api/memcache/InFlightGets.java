@@ -0,0 +1,142 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.utils.FutureWrapper;
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+/**
+ * The Get rpcs in flight in this instance, by namespace and key, so that
+ * concurrent gets of the same key from {@link AsyncMemcacheServiceImpl} can
+ * share one rpc instead of each issuing their own.
+ *
+ * An rpc stops being shared as soon as any of the callers sharing it
+ * resolves its result, and as soon as this instance modifies one of its keys,
+ * so that a get never returns a value older than the last local write or
+ * than the oldest concurrent get.
+ *
+ * This class is thread-safe.
+ *
+ */
+final class InFlightGets {
+
+  /**
+   * The name of the system property that, when set to {@code true}, makes
+   * concurrent gets of the same key share one rpc.
+   */
+  static final String SYS_PROP = "appengine.memcache.singleFlightGets";
+
+  private static final InFlightGets INSTANCE =
+      Boolean.getBoolean(SYS_PROP) ? new InFlightGets() : null;
+
+  /**
+   * A Get rpc that is shared by all callers that joined it.  Resolving it
+   * stops it from being shared.
+   */
+  private final class SharedRpc extends FutureWrapper<byte[], byte[]> {
+    private final String namespace;
+    private final List<ByteString> keys;
+
+    SharedRpc(Future<byte[]> rpc, String namespace, Collection<ByteString> keys) {
+      super(rpc);
+      this.namespace = namespace;
+      this.keys = new ArrayList<ByteString>(keys);
+    }
+
+    /**
+     * Other callers may still be waiting for the rpc, so it cannot be
+     * cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    protected byte[] wrap(byte[] bytes) {
+      unregister();
+      return bytes;
+    }
+
+    @Override
+    protected byte[] absorbParentException(Throwable cause) throws Throwable {
+      unregister();
+      throw cause;
+    }
+
+    @Override
+    protected Throwable convertException(Throwable cause) {
+      return cause;
+    }
+
+    private void unregister() {
+      for (ByteString key : keys) {
+        rpcs.remove(new NamespacedKey(namespace, key), this);
+      }
+    }
+  }
+
+  private final ConcurrentMap<NamespacedKey, SharedRpc> rpcs =
+      new ConcurrentHashMap<NamespacedKey, SharedRpc>();
+
+  InFlightGets() {
+  }
+
+  /**
+   * @return the in-flight gets of this instance, or {@code null} if gets are
+   * not shared
+   */
+  static InFlightGets getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return an rpc in flight whose response includes {@code key}, or
+   * {@code null} if there is none
+   */
+  Future<byte[]> join(String namespace, ByteString key) {
+    NamespacedKey namespacedKey = new NamespacedKey(namespace, key);
+    SharedRpc rpc = rpcs.get(namespacedKey);
+    if (rpc != null && rpc.isDone()) {
+      rpcs.remove(namespacedKey, rpc);
+      return null;
+    }
+    return rpc;
+  }
+
+  /**
+   * Makes a newly issued rpc available to {@link #join}.
+   *
+   * @return the future through which all callers, including the one that
+   * issued the rpc, must read its response
+   */
+  Future<byte[]> register(String namespace, Collection<ByteString> keys, Future<byte[]> rpc) {
+    SharedRpc sharedRpc = new SharedRpc(rpc, namespace, keys);
+    for (ByteString key : sharedRpc.keys) {
+      rpcs.put(new NamespacedKey(namespace, key), sharedRpc);
+    }
+    return sharedRpc;
+  }
+
+  /**
+   * Stops sharing the rpc in flight for a key, ahead of an rpc that modifies
+   * it.
+   */
+  void forget(String namespace, ByteString key) {
+    rpcs.remove(new NamespacedKey(namespace, key));
+  }
+
+  /**
+   * Stops sharing all rpcs in flight, ahead of an rpc that flushes memcache.
+   */
+  void forgetAll() {
+    rpcs.clear();
+  }
+}
@@ -0,0 +1,73 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+import java.util.concurrent.Future;
+
+/**
+ * Queues memcache operations on any number of keys and namespaces and sends
+ * them together with as few rpcs as possible: one for each kind of operation
+ * in each namespace.  Obtained from {@link AsyncMemcacheService#newBatch()},
+ * whose error handler it uses.
+ *
+ * Every method returns a {@link Future} for the result of its own operation,
+ * with the same value as the corresponding method of
+ * {@link AsyncMemcacheService}.  Nothing is sent until {@link #flush()} is
+ * called, or the result of one of the queued operations is requested, which
+ * flushes the batch.  Operations queued after a flush go into the next
+ * batch.
+ *
+ * The rpcs of a batch are sent concurrently, so the order in which its
+ * operations are applied is undefined; operations that depend on each other,
+ * such as a put and a get of the same key, must be sent in separate
+ * batches.
+ *
+ * A {@code null} namespace stands for the namespace of the service the batch
+ * was obtained from or, if it has none, the namespace set in
+ * {@link com.google.appengine.api.NamespaceManager} when the operation is
+ * queued.
+ *
+ */
+public interface MemcacheBatch {
+
+  /**
+   * @see MemcacheService#get(Object)
+   */
+  Future<Object> get(String namespace, Object key);
+
+  /**
+   * @see MemcacheService#getIdentifiable(Object)
+   */
+  Future<IdentifiableValue> getIdentifiable(String namespace, Object key);
+
+  /**
+   * @see MemcacheService#put(Object, Object, Expiration, SetPolicy)
+   */
+  Future<Boolean> put(String namespace, Object key, Object value, Expiration expires,
+      SetPolicy policy);
+
+  /**
+   * @see MemcacheService#putIfUntouched(Object, IdentifiableValue, Object, Expiration)
+   */
+  Future<Boolean> putIfUntouched(String namespace, Object key, IdentifiableValue oldValue,
+      Object newValue, Expiration expires);
+
+  /**
+   * @see MemcacheService#delete(Object)
+   */
+  Future<Boolean> delete(String namespace, Object key);
+
+  /**
+   * @see MemcacheService#increment(Object, long, Long)
+   */
+  Future<Long> increment(String namespace, Object key, long delta, Long initialValue);
+
+  /**
+   * Sends all operations queued since the last flush.  Returns without
+   * waiting for their results.
+   */
+  void flush();
+}
@@ -0,0 +1,511 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import static com.google.appengine.api.memcache.MemcacheServiceApiHelper.makeAsyncCall;
+
+import com.google.appengine.api.memcache.AsyncMemcacheServiceImpl.IdentifiableValueImpl;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceApiHelper.Provider;
+import com.google.appengine.api.memcache.MemcacheServiceApiHelper.Transformer;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheBatchIncrementRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheBatchIncrementResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheDeleteRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheDeleteResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheDeleteResponse.DeleteStatusCode;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheIncrementResponse.IncrementStatusCode;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetRequest;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetResponse;
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheSetResponse.SetStatusCode;
+import com.google.appengine.api.utils.FutureWrapper;
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Java bindings for a {@link MemcacheBatch} of an
+ * {@link AsyncMemcacheServiceImpl}.
+ *
+ * Operations are grouped by kind and namespace, since each memcache request
+ * carries a single namespace, and every group is sent as one rpc whose
+ * response is shared by the futures of its operations.  Writes invalidate
+ * the near cache and in-flight gets of the service when they are sent, as
+ * they would through the service itself.
+ *
+ * This class is thread-safe.
+ *
+ */
+class MemcacheBatchImpl implements MemcacheBatch {
+
+  private final AsyncMemcacheServiceImpl service;
+
+  private final Map<String, GetGroup> gets = new LinkedHashMap<String, GetGroup>();
+  private final Map<String, GetGroup> casGets = new LinkedHashMap<String, GetGroup>();
+  private final Map<String, SetGroup> sets = new LinkedHashMap<String, SetGroup>();
+  private final Map<String, DeleteGroup> deletes = new LinkedHashMap<String, DeleteGroup>();
+  private final Map<String, IncrementGroup> increments =
+      new LinkedHashMap<String, IncrementGroup>();
+
+  MemcacheBatchImpl(AsyncMemcacheServiceImpl service) {
+    this.service = service;
+  }
+
+  /**
+   * The operations of one kind in one namespace, and the future result of
+   * the rpc that sends them once the batch is flushed.  Resolving it before
+   * then flushes the batch.  If the rpc cannot be started, the group fails
+   * with the exception that was thrown instead.
+   */
+  private abstract class Group<R> implements Future<R> {
+    final String namespace;
+    private Future<R> rpc;
+    private Throwable failure;
+
+    Group(String namespace) {
+      this.namespace = namespace;
+    }
+
+    /**
+     * Issues the rpc for all operations in the group.
+     */
+    abstract Future<R> send();
+
+    private Future<R> rpc() throws ExecutionException {
+      synchronized (MemcacheBatchImpl.this) {
+        if (rpc == null && failure == null) {
+          sendPending();
+        }
+        if (failure != null) {
+          throw new ExecutionException(failure);
+        }
+        return rpc;
+      }
+    }
+
+    /**
+     * The rpc is shared by all operations in the group, so it cannot be
+     * cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return false;
+    }
+
+    @Override
+    public boolean isDone() {
+      synchronized (MemcacheBatchImpl.this) {
+        return failure != null || (rpc != null && rpc.isDone());
+      }
+    }
+
+    @Override
+    public R get() throws InterruptedException, ExecutionException {
+      return rpc().get();
+    }
+
+    @Override
+    public R get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      return rpc().get(timeout, unit);
+    }
+  }
+
+  /**
+   * The result of a single operation, read from the result of its group.
+   */
+  private abstract static class Operation<R, T> extends FutureWrapper<R, T> {
+    Operation(Future<R> group) {
+      super(group);
+    }
+
+    @Override
+    protected Throwable convertException(Throwable cause) {
+      return cause;
+    }
+  }
+
+  private final class GetGroup extends Group<Map<ByteString, MemcacheGetResponse.Item>> {
+    private final boolean forCas;
+    private final MemcacheGetRequest.Builder requestBuilder = MemcacheGetRequest.newBuilder();
+
+    GetGroup(String namespace, boolean forCas) {
+      super(namespace);
+      this.forCas = forCas;
+    }
+
+    void add(ByteString pbKey) {
+      requestBuilder.addKey(pbKey);
+    }
+
+    @Override
+    Future<Map<ByteString, MemcacheGetResponse.Item>> send() {
+      requestBuilder.setNameSpace(namespace);
+      if (forCas) {
+        requestBuilder.setForCas(true);
+      }
+      return makeAsyncCall("Get", requestBuilder.build(), service.createRpcResponseHandler(
+          MemcacheGetResponse.getDefaultInstance(),
+          "Memcache batch: exception getting " + requestBuilder.getKeyCount() + " keys",
+          new Transformer<MemcacheGetResponse, Map<ByteString, MemcacheGetResponse.Item>>() {
+            @Override
+            public Map<ByteString, MemcacheGetResponse.Item> transform(
+                MemcacheGetResponse response) {
+              response = ChunkedValues.resolve(namespace, response, service.getErrorHandler());
+              Map<ByteString, MemcacheGetResponse.Item> items =
+                  new HashMap<ByteString, MemcacheGetResponse.Item>(response.getItemCount());
+              for (MemcacheGetResponse.Item item : response.getItemList()) {
+                items.put(item.getKey(), item);
+              }
+              return items;
+            }
+          }), new Provider<Map<ByteString, MemcacheGetResponse.Item>>() {
+            @Override
+            public Map<ByteString, MemcacheGetResponse.Item> get() {
+              return Collections.emptyMap();
+            }
+          });
+    }
+  }
+
+  private final class SetGroup extends Group<List<SetStatusCode>> {
+    private final MemcacheSetRequest.Builder requestBuilder = MemcacheSetRequest.newBuilder();
+    private final List<MemcacheSetRequest.Item.Builder> itemBuilders =
+        new ArrayList<MemcacheSetRequest.Item.Builder>();
+
+    SetGroup(String namespace) {
+      super(namespace);
+    }
+
+    /**
+     * @return the index of the status of the item in the result of the group
+     */
+    int add(MemcacheSetRequest.Item.Builder itemBuilder) {
+      itemBuilders.add(itemBuilder);
+      return itemBuilders.size() - 1;
+    }
+
+    @Override
+    Future<List<SetStatusCode>> send() {
+      requestBuilder.setNameSpace(namespace);
+      final ChunkedValues.ChunkWrites[] chunkWrites =
+          new ChunkedValues.ChunkWrites[itemBuilders.size()];
+      for (int i = 0; i < chunkWrites.length; ++i) {
+        MemcacheSetRequest.Item.Builder itemBuilder = itemBuilders.get(i);
+        service.invalidate(namespace, itemBuilder.getKey());
+        chunkWrites[i] =
+            AsyncMemcacheServiceImpl.addSetItem(namespace, requestBuilder, itemBuilder);
+      }
+      final int statusCount = requestBuilder.getItemCount();
+      return makeAsyncCall("Set", requestBuilder.build(), service.createRpcResponseHandler(
+          MemcacheSetResponse.getDefaultInstance(),
+          "Memcache batch: exception setting " + chunkWrites.length + " keys",
+          new Transformer<MemcacheSetResponse, List<SetStatusCode>>() {
+            @Override
+            public List<SetStatusCode> transform(MemcacheSetResponse response) {
+              if (response.getSetStatusCount() != statusCount) {
+                throw new MemcacheServiceException(String.format(
+                    "Memcache batch: Set %d items, got %d response statuses",
+                    statusCount, response.getSetStatusCount()));
+              }
+              List<SetStatusCode> statuses = new ArrayList<SetStatusCode>(chunkWrites.length);
+              Iterator<SetStatusCode> statusIter = response.getSetStatusList().iterator();
+              for (ChunkedValues.ChunkWrites itemChunkWrites : chunkWrites) {
+                statuses.add(AsyncMemcacheServiceImpl.nextSetStatus(statusIter, itemChunkWrites));
+              }
+              return statuses;
+            }
+          }), new Provider<List<SetStatusCode>>() {
+            @Override
+            public List<SetStatusCode> get() {
+              return Collections.emptyList();
+            }
+          });
+    }
+  }
+
+  private final class DeleteGroup extends Group<List<DeleteStatusCode>> {
+    private final MemcacheDeleteRequest.Builder requestBuilder =
+        MemcacheDeleteRequest.newBuilder();
+
+    DeleteGroup(String namespace) {
+      super(namespace);
+    }
+
+    /**
+     * @return the index of the status of the item in the result of the group
+     */
+    int add(ByteString pbKey) {
+      requestBuilder.addItem(MemcacheDeleteRequest.Item.newBuilder().setKey(pbKey));
+      return requestBuilder.getItemCount() - 1;
+    }
+
+    @Override
+    Future<List<DeleteStatusCode>> send() {
+      requestBuilder.setNameSpace(namespace);
+      for (MemcacheDeleteRequest.Item item : requestBuilder.getItemList()) {
+        service.invalidate(namespace, item.getKey());
+      }
+      return makeAsyncCall("Delete", requestBuilder.build(), service.createRpcResponseHandler(
+          MemcacheDeleteResponse.getDefaultInstance(),
+          "Memcache batch: exception deleting " + requestBuilder.getItemCount() + " keys",
+          new Transformer<MemcacheDeleteResponse, List<DeleteStatusCode>>() {
+            @Override
+            public List<DeleteStatusCode> transform(MemcacheDeleteResponse response) {
+              return response.getDeleteStatusList();
+            }
+          }), new Provider<List<DeleteStatusCode>>() {
+            @Override
+            public List<DeleteStatusCode> get() {
+              return Collections.emptyList();
+            }
+          });
+    }
+  }
+
+  private final class IncrementGroup extends Group<List<MemcacheIncrementResponse>> {
+    private final MemcacheBatchIncrementRequest.Builder requestBuilder =
+        MemcacheBatchIncrementRequest.newBuilder();
+
+    IncrementGroup(String namespace) {
+      super(namespace);
+    }
+
+    /**
+     * @return the index of the response to the item in the result of the
+     * group
+     */
+    int add(MemcacheIncrementRequest.Builder itemBuilder) {
+      requestBuilder.addItem(itemBuilder);
+      return requestBuilder.getItemCount() - 1;
+    }
+
+    @Override
+    Future<List<MemcacheIncrementResponse>> send() {
+      requestBuilder.setNameSpace(namespace);
+      for (MemcacheIncrementRequest item : requestBuilder.getItemList()) {
+        service.invalidate(namespace, item.getKey());
+      }
+      return makeAsyncCall("BatchIncrement", requestBuilder.build(),
+          service.createRpcResponseHandler(
+              MemcacheBatchIncrementResponse.getDefaultInstance(),
+              "Memcache batch: exception incrementing " + requestBuilder.getItemCount() + " keys",
+              new Transformer<MemcacheBatchIncrementResponse, List<MemcacheIncrementResponse>>() {
+                @Override
+                public List<MemcacheIncrementResponse> transform(
+                    MemcacheBatchIncrementResponse response) {
+                  return response.getItemList();
+                }
+              }), new Provider<List<MemcacheIncrementResponse>>() {
+                @Override
+                public List<MemcacheIncrementResponse> get() {
+                  return Collections.emptyList();
+                }
+              });
+    }
+  }
+
+  private String resolveNamespace(String namespace) {
+    return namespace == null ? service.getEffectiveNamespace() : namespace;
+  }
+
+  private Future<MemcacheGetResponse.Item> queueGet(String namespace, Object key,
+      boolean forCas) {
+    namespace = resolveNamespace(namespace);
+    final ByteString pbKey = AsyncMemcacheServiceImpl.makePbKey(key);
+    Map<String, GetGroup> groups = forCas ? casGets : gets;
+    GetGroup group = groups.get(namespace);
+    if (group == null) {
+      group = new GetGroup(namespace, forCas);
+      groups.put(namespace, group);
+    }
+    group.add(pbKey);
+    return new Operation<Map<ByteString, MemcacheGetResponse.Item>, MemcacheGetResponse.Item>(
+        group) {
+      @Override
+      protected MemcacheGetResponse.Item wrap(Map<ByteString, MemcacheGetResponse.Item> items) {
+        return items == null ? null : items.get(pbKey);
+      }
+    };
+  }
+
+  @Override
+  public synchronized Future<Object> get(String namespace, final Object key) {
+    return new Operation<MemcacheGetResponse.Item, Object>(queueGet(namespace, key, false)) {
+      @Override
+      protected Object wrap(MemcacheGetResponse.Item item) {
+        return item == null ? null : service.deserializeItem(key, item);
+      }
+    };
+  }
+
+  @Override
+  public synchronized Future<IdentifiableValue> getIdentifiable(String namespace,
+      final Object key) {
+    return new Operation<MemcacheGetResponse.Item, IdentifiableValue>(
+        queueGet(namespace, key, true)) {
+      @Override
+      protected IdentifiableValue wrap(MemcacheGetResponse.Item item) {
+        if (item == null) {
+          return null;
+        }
+        return new IdentifiableValueImpl(service.deserializeItem(key, item), item.getCasId());
+      }
+    };
+  }
+
+  private Future<Boolean> queueSet(String namespace, final Object key,
+      MemcacheSetRequest.Item.Builder itemBuilder) {
+    namespace = resolveNamespace(namespace);
+    SetGroup group = sets.get(namespace);
+    if (group == null) {
+      group = new SetGroup(namespace);
+      sets.put(namespace, group);
+    }
+    final int index = group.add(itemBuilder);
+    return new Operation<List<SetStatusCode>, Boolean>(group) {
+      @Override
+      protected Boolean wrap(List<SetStatusCode> statuses) {
+        if (statuses == null || index >= statuses.size()) {
+          return false;
+        }
+        SetStatusCode status = statuses.get(index);
+        if (status == SetStatusCode.ERROR) {
+          throw new MemcacheServiceException(
+              "Memcache batch: Error setting item (" + key + ")");
+        }
+        return status == SetStatusCode.STORED;
+      }
+    };
+  }
+
+  @Override
+  public synchronized Future<Boolean> put(String namespace, Object key, Object value,
+      Expiration expires, SetPolicy policy) {
+    return queueSet(namespace, key, AsyncMemcacheServiceImpl.newSetItemBuilder(key, null, value,
+        expires, AsyncMemcacheServiceImpl.convertSetPolicyToPb(policy)));
+  }
+
+  @Override
+  public synchronized Future<Boolean> putIfUntouched(String namespace, Object key,
+      IdentifiableValue oldValue, Object newValue, Expiration expires) {
+    return queueSet(namespace, key, AsyncMemcacheServiceImpl.newSetItemBuilder(key, oldValue,
+        newValue, expires, MemcacheSetRequest.SetPolicy.CAS));
+  }
+
+  @Override
+  public synchronized Future<Boolean> delete(String namespace, Object key) {
+    namespace = resolveNamespace(namespace);
+    DeleteGroup group = deletes.get(namespace);
+    if (group == null) {
+      group = new DeleteGroup(namespace);
+      deletes.put(namespace, group);
+    }
+    final int index = group.add(AsyncMemcacheServiceImpl.makePbKey(key));
+    return new Operation<List<DeleteStatusCode>, Boolean>(group) {
+      @Override
+      protected Boolean wrap(List<DeleteStatusCode> statuses) {
+        return statuses != null && index < statuses.size()
+            && statuses.get(index) == DeleteStatusCode.DELETED;
+      }
+    };
+  }
+
+  @Override
+  public synchronized Future<Long> increment(String namespace, Object key, long delta,
+      Long initialValue) {
+    namespace = resolveNamespace(namespace);
+    IncrementGroup group = increments.get(namespace);
+    if (group == null) {
+      group = new IncrementGroup(namespace);
+      increments.put(namespace, group);
+    }
+    final int index = group.add(
+        AsyncMemcacheServiceImpl.newIncrementRequestBuilder(key, delta, initialValue));
+    return new Operation<List<MemcacheIncrementResponse>, Long>(group) {
+      @Override
+      protected Long wrap(List<MemcacheIncrementResponse> items) {
+        if (items == null || index >= items.size()) {
+          return null;
+        }
+        MemcacheIncrementResponse item = items.get(index);
+        if (item.getIncrementStatus().equals(IncrementStatusCode.OK) && item.hasNewValue()) {
+          return item.getNewValue();
+        }
+        return null;
+      }
+    };
+  }
+
+  @Override
+  public synchronized void flush() {
+    Throwable failure = sendPending();
+    if (failure instanceof Error) {
+      throw (Error) failure;
+    } else if (failure != null) {
+      throw (RuntimeException) failure;
+    }
+  }
+
+  /**
+   * Sends every pending group.  A group whose rpc cannot be started fails
+   * with the exception that was thrown, and the remaining groups are still
+   * sent.
+   *
+   * @return The first exception thrown while sending, or {@code null} if
+   * every rpc was started.
+   */
+  private synchronized Throwable sendPending() {
+    List<Group<?>> pending = new ArrayList<Group<?>>();
+    pending.addAll(gets.values());
+    pending.addAll(casGets.values());
+    pending.addAll(sets.values());
+    pending.addAll(deletes.values());
+    pending.addAll(increments.values());
+    gets.clear();
+    casGets.clear();
+    sets.clear();
+    deletes.clear();
+    increments.clear();
+    Throwable firstFailure = null;
+    for (Group<?> group : pending) {
+      Throwable failure = send(group);
+      if (firstFailure == null) {
+        firstFailure = failure;
+      }
+    }
+    return firstFailure;
+  }
+
+  private static <R> Throwable send(Group<R> group) {
+    try {
+      group.rpc = group.send();
+      return null;
+    } catch (RuntimeException e) {
+      group.failure = e;
+      return e;
+    } catch (Error e) {
+      group.failure = e;
+      return e;
+    }
+  }
+}
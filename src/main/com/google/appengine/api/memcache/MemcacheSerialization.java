@@ -2,16 +2,25 @@
 
 package com.google.appengine.api.memcache;
 
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
 import com.google.common.util.Base64;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,7 +45,26 @@ public class MemcacheSerialization {
     LONG,
     BOOLEAN,
     BYTE,
-    SHORT;
+    SHORT,
+    /**
+     * A value in the format of {@link CompactValueCodec}.
+     */
+    COMPACT,
+    /**
+     * A value in the format of {@link CompactValueCodec}, compressed with
+     * deflate.
+     */
+    COMPACT_DEFLATED,
+    /**
+     * A Java serialized object, compressed with deflate.
+     */
+    OBJECT_DEFLATED,
+    /**
+     * The manifest of a value stored in several items by
+     * {@link ChunkedValues}, which the value must be reassembled from before
+     * it is deserialized.
+     */
+    CHUNKED;
 
     private static final Flag[] VALUES = Flag.values();
 
@@ -73,15 +101,88 @@ public class MemcacheSerialization {
   private static final String MYCLASSNAME = MemcacheSerialization.class.getName();
 
   /**
-   * The SHA1 checksum engine, cached for reuse.  We did test the hashing time
-   * was negligible (17us/kb, linear); we don't "need" crypto-secure, but it's
-   * a good way to minimize collisions.
+   * The name of the system property that, when set to {@code true}, makes
+   * {@link #makePbKey} hash keys of common types (datastore {@link Key Keys},
+   * long {@code String Strings}, floating point numbers and {@code Lists} of
+   * these and the basic types) from a compact encoding instead of their Java
+   * serialization.  This changes the memcache keys that such objects map to,
+   * so all versions of an application that share memcache must agree on it.
+   */
+  static final String COMPACT_KEYS_SYS_PROP = "appengine.memcache.compactKeys";
+
+  private static final boolean COMPACT_KEYS = Boolean.getBoolean(COMPACT_KEYS_SYS_PROP);
+
+  /**
+   * The name of the system property that, when set to {@code true}, makes
+   * {@link #serialize} store objects that a registered {@link ValueCodec}
+   * supports in its format rather than with Java serialization, and compress
+   * objects whose encoding is larger than {@link #COMPRESSION_THRESHOLD_BYTES}.
+   * Values written this way use flags that earlier releases cannot read, so
+   * this must only be turned on once no version of the application that
+   * shares memcache runs an earlier release.  Such values are always read
+   * back correctly, whether or not the property is set.
+   */
+  static final String COMPACT_VALUES_SYS_PROP = "appengine.memcache.compactValues";
+
+  private static final boolean COMPACT_VALUES = Boolean.getBoolean(COMPACT_VALUES_SYS_PROP);
+
+  /**
+   * Encoded objects larger than this are compressed, if
+   * {@link #COMPACT_VALUES_SYS_PROP} is set and compression makes them
+   * smaller.
+   */
+  static final int COMPRESSION_THRESHOLD_BYTES = 4096;
+
+  /**
+   * A {@link ValueCodec} and the flags its values are stored with.
+   */
+  private static final class RegisteredCodec {
+    final Flag flag;
+    final Flag deflatedFlag;
+    final ValueCodec codec;
+
+    RegisteredCodec(Flag flag, Flag deflatedFlag, ValueCodec codec) {
+      this.flag = flag;
+      this.deflatedFlag = deflatedFlag;
+      this.codec = codec;
+    }
+  }
+
+  /**
+   * The registered codecs, in the order {@link #serialize} tries them.
    */
-  private static final MessageDigest SHA1;
+  private static final List<RegisteredCodec> CODECS = new CopyOnWriteArrayList<RegisteredCodec>();
+
+  /**
+   * The registered codecs by the flags of the values they decode.
+   */
+  private static final Map<Flag, RegisteredCodec> CODECS_BY_FLAG =
+      new ConcurrentHashMap<Flag, RegisteredCodec>();
+
+  static {
+    registerCodec(Flag.COMPACT, Flag.COMPACT_DEFLATED, CompactValueCodec.INSTANCE);
+  }
+
+  /**
+   * The SHA1 checksum engines, one per thread so that hashing keys does not
+   * contend on a lock.  We did test the hashing time was negligible
+   * (17us/kb, linear); we don't "need" crypto-secure, but it's a good way to
+   * minimize collisions.
+   */
+  private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      return newSha1();
+    }
+  };
 
   static {
+    SHA1.get();
+  }
+
+  private static MessageDigest newSha1() {
     try {
-      SHA1 = MessageDigest.getInstance("SHA-1");
+      return MessageDigest.getInstance("SHA-1");
     } catch (NoSuchAlgorithmException ex) {
       Logger.getLogger(MYCLASSNAME).log(Level.SEVERE,
           "Can't load SHA-1 MessageDigest!", ex);
@@ -92,6 +193,54 @@ public class MemcacheSerialization {
   private MemcacheSerialization() {
   }
 
+  /**
+   * Registers a codec for objects that are not of the basic types.  Values
+   * with either of its flags are always decoded with it; objects are only
+   * encoded with it if {@link #COMPACT_VALUES_SYS_PROP} is set, by the first
+   * registered codec that supports them.  Each flag must be reserved for the
+   * codec in {@link Flag}, after all the existing values, and never reused,
+   * since values stored under it outlive the code that wrote them.
+   *
+   * @param flag the flag of values encoded by {@code codec}
+   * @param deflatedFlag the flag of values encoded by {@code codec} and then
+   *    compressed with deflate, or {@code null} if they are never compressed
+   * @throws IllegalArgumentException if a flag is already in use
+   */
+  static synchronized void registerCodec(Flag flag, Flag deflatedFlag, ValueCodec codec) {
+    if (!isAvailable(flag) || deflatedFlag == flag
+        || (deflatedFlag != null && !isAvailable(deflatedFlag))) {
+      throw new IllegalArgumentException("Flags already in use: " + flag + ", " + deflatedFlag);
+    }
+    RegisteredCodec registered = new RegisteredCodec(flag, deflatedFlag, codec);
+    CODECS_BY_FLAG.put(flag, registered);
+    if (deflatedFlag != null) {
+      CODECS_BY_FLAG.put(deflatedFlag, registered);
+    }
+    CODECS.add(registered);
+  }
+
+  /**
+   * @return whether {@code flag} is neither one of the flags that
+   *    {@link #deserialize} handles itself nor registered to a codec
+   */
+  private static boolean isAvailable(Flag flag) {
+    switch (flag) {
+      case BYTES:
+      case UTF8:
+      case OBJECT:
+      case INTEGER:
+      case LONG:
+      case BOOLEAN:
+      case BYTE:
+      case SHORT:
+      case OBJECT_DEFLATED:
+      case CHUNKED:
+        return false;
+      default:
+        return !CODECS_BY_FLAG.containsKey(flag);
+    }
+  }
+
   /**
    * Deserialize the object, according to its flags.  This would have private
    * visibility, but is also used by LocalMemcacheService for the increment
@@ -156,10 +305,19 @@ public class MemcacheSerialization {
         objIn.close();
         return response;
 
+      case OBJECT_DEFLATED:
+        return deserialize(inflate(value), Flag.OBJECT.ordinal());
+
+      case CHUNKED:
+        throw new IOException("Cannot deserialize the manifest of a chunked value");
+
       default:
-        assert false;
+        RegisteredCodec registered = CODECS_BY_FLAG.get(flagval);
+        if (registered == null) {
+          throw new IOException("No codec for values flagged " + flagval);
+        }
+        return registered.codec.decode(flagval == registered.deflatedFlag ? inflate(value) : value);
     }
-    return null;
   }
 
   /**
@@ -188,16 +346,84 @@ public class MemcacheSerialization {
       return (((Boolean) key) ? "true" : "false").getBytes(UTF8_CHARSET);
 
     } else {
-      ValueAndFlags vaf = serialize(key);
-      byte sha1hash[];
-      synchronized (SHA1) {
-        SHA1.update(vaf.value);
-        sha1hash = SHA1.digest();
+      byte[] bytes = COMPACT_KEYS ? compactEncode(key) : null;
+      if (bytes == null) {
+        bytes = serialize(key).value;
       }
+      byte sha1hash[] = SHA1.get().digest(bytes);
       return Base64.encode(sha1hash).getBytes(UTF8_CHARSET);
     }
   }
 
+  /**
+   * Encodes a key for hashing without going through Java serialization.
+   * Every value is written as a one byte tag followed by its contents, and
+   * none of the tags is the first byte of a Java serialization stream, so the
+   * two encodings never produce the same bytes.
+   *
+   * @return the encoded key, or {@code null} if {@code key} (or one of its
+   *    elements) is of a type that has no compact encoding
+   */
+  private static byte[] compactEncode(Object key) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    if (!writeCompact(key, out)) {
+      return null;
+    }
+    out.close();
+    return baos.toByteArray();
+  }
+
+  private static boolean writeCompact(Object value, DataOutputStream out) throws IOException {
+    if (value == null) {
+      out.writeByte('N');
+    } else if (value instanceof String) {
+      out.writeByte('S');
+      writeBytes(((String) value).getBytes(UTF8_CHARSET), out);
+    } else if (value instanceof Long) {
+      out.writeByte('J');
+      out.writeLong((Long) value);
+    } else if (value instanceof Integer) {
+      out.writeByte('I');
+      out.writeInt((Integer) value);
+    } else if (value instanceof Short) {
+      out.writeByte('H');
+      out.writeShort((Short) value);
+    } else if (value instanceof Byte) {
+      out.writeByte('B');
+      out.writeByte((Byte) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte('Z');
+      out.writeBoolean((Boolean) value);
+    } else if (value instanceof Double) {
+      out.writeByte('D');
+      out.writeDouble((Double) value);
+    } else if (value instanceof Float) {
+      out.writeByte('F');
+      out.writeFloat((Float) value);
+    } else if (value instanceof Key && ((Key) value).isComplete()) {
+      out.writeByte('K');
+      writeBytes(KeyFactory.keyToString((Key) value).getBytes(ASCII_CHARSET), out);
+    } else if (value instanceof List<?>) {
+      List<?> list = (List<?>) value;
+      out.writeByte('[');
+      out.writeInt(list.size());
+      for (Object element : list) {
+        if (!writeCompact(element, out)) {
+          return false;
+        }
+      }
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private static void writeBytes(byte[] bytes, DataOutputStream out) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
   /**
    * @param value
    * @return the ValueAndFlags containing a serialized representation of the
@@ -209,6 +435,7 @@ public class MemcacheSerialization {
       throws IOException {
     Flag flags;
     byte[] bytes;
+    ValueAndFlags encoded;
 
     if (value == null) {
       bytes = new byte[0];
@@ -240,6 +467,9 @@ public class MemcacheSerialization {
       flags = Flag.UTF8;
       bytes = ((String) value).getBytes(UTF8_CHARSET);
 
+    } else if (COMPACT_VALUES && (encoded = encodeWithCodec(value)) != null) {
+      return encoded;
+
     } else if (value instanceof Serializable) {
       flags = Flag.OBJECT;
       ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -247,6 +477,11 @@ public class MemcacheSerialization {
       objOut.writeObject(value);
       objOut.close();
       bytes = baos.toByteArray();
+      byte[] deflated = COMPACT_VALUES ? deflateIfSmaller(bytes) : null;
+      if (deflated != null) {
+        flags = Flag.OBJECT_DEFLATED;
+        bytes = deflated;
+      }
 
     } else {
       throw new IllegalArgumentException("can't accept " + value.getClass()
@@ -254,4 +489,51 @@ public class MemcacheSerialization {
     }
     return new ValueAndFlags(bytes, flags);
   }
+
+  /**
+   * @return {@code value} encoded by the first registered codec that
+   *    supports it, or {@code null} if none does
+   */
+  private static ValueAndFlags encodeWithCodec(Object value) throws IOException {
+    for (RegisteredCodec registered : CODECS) {
+      byte[] bytes = registered.codec.encode(value);
+      if (bytes == null) {
+        continue;
+      }
+      byte[] deflated = registered.deflatedFlag == null ? null : deflateIfSmaller(bytes);
+      if (deflated != null) {
+        return new ValueAndFlags(deflated, registered.deflatedFlag);
+      }
+      return new ValueAndFlags(bytes, registered.flag);
+    }
+    return null;
+  }
+
+  /**
+   * @return {@code bytes} compressed with deflate, or {@code null} if
+   *    {@code bytes} is too small to be worth compressing or does not get
+   *    any smaller
+   */
+  private static byte[] deflateIfSmaller(byte[] bytes) throws IOException {
+    if (bytes.length <= COMPRESSION_THRESHOLD_BYTES) {
+      return null;
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 2);
+    DeflaterOutputStream deflaterOut = new DeflaterOutputStream(baos);
+    deflaterOut.write(bytes);
+    deflaterOut.close();
+    return baos.size() < bytes.length ? baos.toByteArray() : null;
+  }
+
+  private static byte[] inflate(byte[] bytes) throws IOException {
+    InflaterInputStream inflaterIn = new InflaterInputStream(new ByteArrayInputStream(bytes));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length * 2);
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = inflaterIn.read(buffer)) != -1) {
+      baos.write(buffer, 0, n);
+    }
+    inflaterIn.close();
+    return baos.toByteArray();
+  }
 }
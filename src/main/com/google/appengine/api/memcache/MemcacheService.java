@@ -108,6 +108,18 @@ public interface MemcacheService extends BaseMemcacheService {
     }
   }
 
+  /**
+   * Computes the value of a key that is not in the cache, for
+   * {@link MemcacheService#getOrCompute}.
+   */
+  interface ValueComputer {
+    /**
+     * @param key the key whose value is not in the cache
+     * @return the value to store under {@code key}, which may be {@code null}
+     */
+    Object compute(Object key);
+  }
+
   /**
    * @deprecated use {@link MemcacheServiceFactory#getMemcacheService(String)}
    * instead.
@@ -212,6 +224,31 @@ public interface MemcacheService extends BaseMemcacheService {
    */
   <T> Map<T, Object> getAll(Collection<T> keys);
 
+  /**
+   * Fetches a previously-stored value or, if {@code key} is not in the cache,
+   * computes the value with {@code computer} and stores it with
+   * {@link #put(Object, Object, Expiration)}.
+   * <p>
+   * Concurrent calls for the same key and namespace made in this instance
+   * compute the value only once: one of them runs {@code computer}, and the
+   * others wait for it and return the value it computed.  Calls made in other
+   * instances are not coordinated with these.
+   *
+   * @param key the key object used to store the cache entry
+   * @param computer computes the value if {@code key} is not in the cache
+   * @param expires an {@link Expiration} object to set time-based expiration
+   *    of a computed value.  {@code null} may be used indicate no specific
+   *    expiration.
+   * @return the value object previously stored, or the computed value
+   * @throws IllegalArgumentException if {@code key} or the computed value is
+   *    not {@link Serializable} and is not {@code null}
+   * @throws InvalidValueException for any error in reconstituting the cache
+   *    value
+   * @throws RuntimeException if {@code computer} throws it, in every call
+   *    that was waiting for the value
+   */
+  Object getOrCompute(Object key, ValueComputer computer, Expiration expires);
+
   /**
    * Store a new value into the cache, using {@code key}, but subject to the
    * {@code policy} regarding existing entries.
@@ -81,8 +81,26 @@ class MemcacheServiceApiHelper {
    * use this helper function if you need non-standard exception handling.
    */
   static <M extends Message, T> Future<T> makeAsyncCall(String methodName, Message request,
+      RpcResponseHandler<M, T> responseHandler, Provider<T> defaultValue) {
+    return wrapAsyncCall(makeAsyncCall(methodName, request), responseHandler, defaultValue);
+  }
+
+  /**
+   * Issue an async rpc against the memcache package with the given request,
+   * without any exception handling.  The response must be read through
+   * {@link #wrapAsyncCall}.
+   */
+  static Future<byte[]> makeAsyncCall(String methodName, Message request) {
+    return ApiProxy.makeAsyncCall(PACKAGE, methodName, request.toByteArray());
+  }
+
+  /**
+   * Apply standard exception handling to an async rpc that was issued with
+   * {@link #makeAsyncCall(String, Message)}.  The same rpc may be wrapped
+   * any number of times, each with its own handler.
+   */
+  static <M extends Message, T> Future<T> wrapAsyncCall(Future<byte[]> asyncResp,
       final RpcResponseHandler<M, T> responseHandler, final Provider<T> defaultValue) {
-    Future<byte[]> asyncResp = ApiProxy.makeAsyncCall(PACKAGE, methodName, request.toByteArray());
     return new FutureWrapper<byte[], T>(asyncResp) {
 
       @Override
@@ -3,10 +3,16 @@
 package com.google.appengine.api.memcache;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * Java bindings for the Memcache service.
@@ -14,6 +20,26 @@ import java.util.concurrent.Future;
  */
 class MemcacheServiceImpl implements MemcacheService {
 
+  /**
+   * The {@link #getOrCompute} computations running in this instance, so that
+   * concurrent calls for the same key wait for the first one.
+   */
+  private static final ConcurrentMap<NamespacedKey, FutureTask<Object>> computations =
+      new ConcurrentHashMap<NamespacedKey, FutureTask<Object>>();
+
+  /**
+   * The keys of the {@link #computations} run by the current thread, so that
+   * a computer that calls {@link #getOrCompute} for its own key computes the
+   * value again instead of waiting for itself.
+   */
+  private static final ThreadLocal<Set<NamespacedKey>> computingKeys =
+      new ThreadLocal<Set<NamespacedKey>>() {
+        @Override
+        protected Set<NamespacedKey> initialValue() {
+          return new HashSet<NamespacedKey>();
+        }
+      };
+
   private final AsyncMemcacheServiceImpl async;
 
   MemcacheServiceImpl(String namespace) {
@@ -62,6 +88,43 @@ class MemcacheServiceImpl implements MemcacheService {
     return quietGet(async.getAll(keys));
   }
 
+  @Override
+  public Object getOrCompute(final Object key, final ValueComputer computer,
+      final Expiration expires) {
+    Map<Object, Object> values = getAll(Collections.singleton(key));
+    if (values.containsKey(key)) {
+      return values.get(key);
+    }
+    NamespacedKey computationKey = new NamespacedKey(
+        async.getEffectiveNamespace(), AsyncMemcacheServiceImpl.makePbKey(key));
+    Set<NamespacedKey> keysComputedByThisThread = computingKeys.get();
+    if (keysComputedByThisThread.contains(computationKey)) {
+      Object value = computer.compute(key);
+      put(key, value, expires);
+      return value;
+    }
+    FutureTask<Object> computation = new FutureTask<Object>(new Callable<Object>() {
+      @Override
+      public Object call() {
+        Object value = computer.compute(key);
+        put(key, value, expires);
+        return value;
+      }
+    });
+    FutureTask<Object> existing = computations.putIfAbsent(computationKey, computation);
+    if (existing != null) {
+      return quietGet(existing);
+    }
+    keysComputedByThisThread.add(computationKey);
+    try {
+      computation.run();
+    } finally {
+      keysComputedByThisThread.remove(computationKey);
+      computations.remove(computationKey, computation);
+    }
+    return quietGet(computation);
+  }
+
   @Override
   public boolean put(Object key, Object value, Expiration expires, SetPolicy policy) {
     return quietGet(async.put(key, value, expires, policy));
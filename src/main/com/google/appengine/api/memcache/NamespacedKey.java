@@ -0,0 +1,33 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A memcache key as sent to the service, qualified by its namespace.
+ *
+ */
+final class NamespacedKey {
+  private final String namespace;
+  private final ByteString key;
+
+  NamespacedKey(String namespace, ByteString key) {
+    this.namespace = namespace;
+    this.key = key;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof NamespacedKey)) {
+      return false;
+    }
+    NamespacedKey other = (NamespacedKey) obj;
+    return key.equals(other.key) && namespace.equals(other.namespace);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * namespace.hashCode() + key.hashCode();
+  }
+}
@@ -0,0 +1,321 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import com.google.appengine.api.memcache.MemcacheServicePb.MemcacheGetResponse;
+import com.google.protobuf.ByteString;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A size and time bounded cache of memcache items, shared by all
+ * {@link AsyncMemcacheServiceImpl AsyncMemcacheServices} of this instance,
+ * that saves the Get rpc for keys that are read over and over again.
+ *
+ * Items are cached in their serialized form, exactly as returned by the
+ * memcache service, so every hit deserializes a fresh copy of the value.
+ * An item is cached for at most {@link #TTL_MILLIS_SYS_PROP} milliseconds,
+ * and never past the {@link Expiration} it was put with by this instance.
+ * Values too large for a single memcache item are not cached.
+ * Entries are removed when this instance puts, deletes or increments the
+ * corresponding key.  Writes made by other instances are only seen once the
+ * entry expires, so the time-to-live bounds how stale a value can be.
+ *
+ * If {@link #STALE_MILLIS_SYS_PROP} is set, an entry that has outlived its
+ * time-to-live is still returned for that many more milliseconds while it is
+ * fetched again in the background.  The result of that fetch replaces the
+ * entry on the next lookup of the key after it completes.
+ *
+ * This class is thread-safe.
+ *
+ */
+final class NearCache {
+  private static final Logger logger = Logger.getLogger(NearCache.class.getName());
+
+  /**
+   * The name of the system property that holds the maximum number of items in
+   * the near cache.  The near cache is disabled unless this is set to a
+   * positive number.
+   */
+  static final String SIZE_SYS_PROP = "appengine.memcache.nearCacheSize";
+
+  /**
+   * The name of the system property that holds the number of milliseconds an
+   * item is cached for.
+   */
+  static final String TTL_MILLIS_SYS_PROP = "appengine.memcache.nearCacheTtlMillis";
+
+  /**
+   * The name of the system property that holds the number of milliseconds an
+   * item that has outlived its time-to-live is still returned for while it is
+   * revalidated.  Defaults to 0, which disables stale-while-revalidate.
+   */
+  static final String STALE_MILLIS_SYS_PROP = "appengine.memcache.nearCacheStaleMillis";
+
+  static final long DEFAULT_TTL_MILLIS = 1000;
+
+  private static final NearCache INSTANCE = createFromSystemProperties();
+
+  /**
+   * Fetches a key again when its entry has gone stale.
+   */
+  interface Revalidator {
+    /**
+     * Issues a Get rpc for {@code key} whose result, once the returned future
+     * is resolved, is stored with {@link NearCache#put}.
+     */
+    Future<?> revalidate(String namespace, ByteString key);
+  }
+
+  /**
+   * A cached item.  The mutable fields are guarded by the lock on
+   * {@link NearCache#entries}.
+   */
+  private static final class CachedItem {
+    final MemcacheGetResponse.Item item;
+    final long freshUntil;
+    final long staleUntil;
+    boolean revalidating;
+    Future<?> revalidation;
+
+    CachedItem(MemcacheGetResponse.Item item, long freshUntil, long staleUntil) {
+      this.item = item;
+      this.freshUntil = freshUntil;
+      this.staleUntil = staleUntil;
+    }
+  }
+
+  private final Map<NamespacedKey, CachedItem> entries;
+  private final long ttlMillis;
+  private final long staleMillis;
+
+  /**
+   * Incremented on every invalidation so that results of rpcs that were in
+   * flight during an invalidation are not added to the cache.
+   */
+  private final AtomicLong generation = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong staleHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  NearCache(final int maxItems, long ttlMillis, long staleMillis) {
+    if (maxItems <= 0) {
+      throw new IllegalArgumentException("maxItems must be greater than 0");
+    }
+    if (ttlMillis <= 0) {
+      throw new IllegalArgumentException("ttlMillis must be greater than 0");
+    }
+    if (staleMillis < 0) {
+      throw new IllegalArgumentException("staleMillis must not be negative");
+    }
+    this.entries = new LinkedHashMap<NamespacedKey, CachedItem>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<NamespacedKey, CachedItem> eldest) {
+        return size() > maxItems;
+      }
+    };
+    this.ttlMillis = ttlMillis;
+    this.staleMillis = staleMillis;
+  }
+
+  private static NearCache createFromSystemProperties() {
+    int maxItems = Integer.getInteger(SIZE_SYS_PROP, 0);
+    if (maxItems <= 0) {
+      return null;
+    }
+    try {
+      return new NearCache(maxItems, Long.getLong(TTL_MILLIS_SYS_PROP, DEFAULT_TTL_MILLIS),
+          Long.getLong(STALE_MILLIS_SYS_PROP, 0));
+    } catch (IllegalArgumentException ex) {
+      logger.log(Level.WARNING, "Memcache near cache disabled: " + ex.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return the near cache of this instance, or {@code null} if it is
+   * disabled
+   */
+  static NearCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Looks up a key.  If the entry is stale and no revalidation is in flight,
+   * {@code revalidator} is asked to fetch the key again.
+   *
+   * @return the cached item, or {@code null} if the key is not cached
+   */
+  MemcacheGetResponse.Item get(String namespace, ByteString key, Revalidator revalidator) {
+    NamespacedKey cacheKey = new NamespacedKey(namespace, key);
+    Future<?> completedRevalidation = null;
+    CachedItem entry;
+    synchronized (entries) {
+      entry = entries.get(cacheKey);
+      if (entry != null && entry.revalidation != null && entry.revalidation.isDone()) {
+        completedRevalidation = entry.revalidation;
+        entry.revalidation = null;
+        entry.revalidating = false;
+      }
+    }
+    if (completedRevalidation != null) {
+      resolve(completedRevalidation);
+      synchronized (entries) {
+        entry = entries.get(cacheKey);
+      }
+    }
+
+    long now = System.currentTimeMillis();
+    if (entry == null || now >= entry.staleUntil) {
+      if (entry != null) {
+        synchronized (entries) {
+          if (entries.get(cacheKey) == entry) {
+            entries.remove(cacheKey);
+          }
+        }
+      }
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    if (now < entry.freshUntil) {
+      return entry.item;
+    }
+
+    staleHits.incrementAndGet();
+    boolean revalidate = false;
+    synchronized (entries) {
+      if (!entry.revalidating) {
+        entry.revalidating = true;
+        revalidate = true;
+      }
+    }
+    if (revalidate) {
+      Future<?> revalidation = revalidator.revalidate(namespace, key);
+      synchronized (entries) {
+        entry.revalidation = revalidation;
+      }
+    }
+    return entry.item;
+  }
+
+  /**
+   * Resolves a revalidation future so that its result is stored.  Failures
+   * have already been reported to the error handler of the service that
+   * issued the rpc, if it did not throw them.
+   */
+  private static void resolve(Future<?> revalidation) {
+    try {
+      revalidation.get();
+    } catch (ExecutionException ex) {
+      logger.log(Level.FINE, "Memcache near cache: revalidation failed", ex.getCause());
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the current generation, to be passed to {@link #put} with the
+   * result of an rpc issued after this call
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Stores the current value of a key, unless the cache was invalidated after
+   * {@code generation} was read.
+   *
+   * @param item The item, or {@code null} if the key has no value.
+   * @param expirationMillis The time at which the item expires from memcache,
+   * in milliseconds since the epoch, or 0 if unknown or never.
+   * @param generation The value {@link #getGeneration} returned before the
+   * rpc that produced {@code item} was issued.
+   */
+  void put(String namespace, ByteString key, MemcacheGetResponse.Item item,
+      long expirationMillis, long generation) {
+    NamespacedKey cacheKey = new NamespacedKey(namespace, key);
+    CachedItem entry = null;
+    if (item != null && !ChunkedValues.isManifest(item)
+        && item.getValue().size() <= ChunkedValues.CHUNK_BYTES) {
+      long now = System.currentTimeMillis();
+      long freshUntil = now + ttlMillis;
+      long staleUntil = freshUntil + staleMillis;
+      if (expirationMillis > 0) {
+        freshUntil = Math.min(freshUntil, expirationMillis);
+        staleUntil = Math.min(staleUntil, expirationMillis);
+      }
+      if (now < staleUntil) {
+        entry = new CachedItem(item, freshUntil, staleUntil);
+      }
+    }
+    synchronized (entries) {
+      if (this.generation.get() != generation) {
+        return;
+      }
+      if (entry != null) {
+        entries.put(cacheKey, entry);
+      } else {
+        entries.remove(cacheKey);
+      }
+    }
+  }
+
+  /**
+   * Removes a key, ahead of an rpc that modifies it.
+   */
+  void invalidate(String namespace, ByteString key) {
+    NamespacedKey cacheKey = new NamespacedKey(namespace, key);
+    synchronized (entries) {
+      generation.incrementAndGet();
+      entries.remove(cacheKey);
+    }
+  }
+
+  /**
+   * Removes all keys, ahead of an rpc that flushes memcache.
+   */
+  void invalidateAll() {
+    synchronized (entries) {
+      generation.incrementAndGet();
+      entries.clear();
+    }
+  }
+
+  /**
+   * @return the number of lookups that found an entry, including stale ones
+   */
+  long getHitCount() {
+    return hits.get();
+  }
+
+  /**
+   * @return the number of lookups that found a stale entry
+   */
+  long getStaleHitCount() {
+    return staleHits.get();
+  }
+
+  /**
+   * @return the number of lookups that did not find an entry
+   */
+  long getMissCount() {
+    return misses.get();
+  }
+
+  /**
+   * @return the number of entries currently cached
+   */
+  long getItemCount() {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+}
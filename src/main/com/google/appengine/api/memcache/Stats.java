@@ -37,4 +37,24 @@ public interface Stats {
    * Milliseconds since last access of least-recently-used live entry.
    */
   int getMaxTimeWithoutAccess();
+
+  /**
+   * The counter of {@link MemcacheService#get(Object)},
+   * {@link MemcacheService#getAll(java.util.Collection)} and
+   * {@link MemcacheService#contains(Object)} lookups answered by the near
+   * cache of this instance without an rpc, including stale entries returned
+   * while they were revalidated.  Always 0 if the near cache is disabled.
+   */
+  long getNearCacheHitCount();
+
+  /**
+   * The counter of lookups that the near cache of this instance could not
+   * answer.  Always 0 if the near cache is disabled.
+   */
+  long getNearCacheMissCount();
+
+  /**
+   * Number of entries currently in the near cache of this instance.
+   */
+  long getNearCacheItemCount();
 }
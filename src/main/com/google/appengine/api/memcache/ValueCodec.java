@@ -0,0 +1,29 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.api.memcache;
+
+import java.io.IOException;
+
+/**
+ * An encoding of memcache values other than the basic types, registered with
+ * {@link MemcacheSerialization#registerCodec} under the
+ * {@link MemcacheSerialization.Flag flags} that its values are stored with.
+ *
+ * Implementations must be thread-safe.
+ *
+ */
+interface ValueCodec {
+
+  /**
+   * @return the encoded value, or {@code null} if {@code value} has no
+   *    encoding in this codec
+   */
+  byte[] encode(Object value) throws IOException;
+
+  /**
+   * Decodes a value produced by {@link #encode}.
+   *
+   * @throws IOException if {@code bytes} is not a valid encoding
+   */
+  Object decode(byte[] bytes) throws IOException, ClassNotFoundException;
+}
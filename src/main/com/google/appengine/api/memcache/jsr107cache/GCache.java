@@ -7,21 +7,41 @@ import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.memcache.Expiration;
 import com.google.appengine.api.memcache.Stats;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.sf.jsr107cache.Cache;
 import net.sf.jsr107cache.CacheEntry;
+import net.sf.jsr107cache.CacheException;
 import net.sf.jsr107cache.CacheListener;
+import net.sf.jsr107cache.CacheLoader;
 import net.sf.jsr107cache.CacheStatistics;
 
 /**
  * JCache Cache implementation using Memcache.
  *
+ * Gets of keys that are not in memcache load them with the
+ * {@link CacheLoader} given by {@link GCacheFactory#CACHE_LOADER}, if any, and
+ * store the loaded values.  Concurrent loads of the same key through this
+ * cache call the loader only once.  Listeners are notified of the puts,
+ * removals, loads and clears made through this cache, but not of changes made
+ * by other caches or instances, nor of evictions by memcache.  Hit, miss and
+ * latency statistics are kept locally by this cache.
+ *
  */
 public class GCache implements Cache {
 
@@ -30,6 +50,15 @@ public class GCache implements Cache {
   private final Expiration expiration;
   private final MemcacheService.SetPolicy setPolicy;
   private final boolean throwOnPutFailure;
+  private final CacheLoader loader;
+  private final Counters counters = new Counters();
+
+  /**
+   * The loads running in this cache, by key, so that concurrent gets of the
+   * same key wait for the first load instead of starting their own.
+   */
+  private final ConcurrentMap<Object, FutureTask<Map<Object, Object>>> loads =
+      new ConcurrentHashMap<Object, FutureTask<Map<Object, Object>>>();
 
   /**
    * Creates a JCache implementation over the provided service with the given
@@ -37,7 +66,7 @@ public class GCache implements Cache {
    * @param properties Properties for this cache.
    */
   public GCache(Map properties) {
-    listeners = new LinkedList<CacheListener>();
+    listeners = new CopyOnWriteArrayList<CacheListener>();
     if (properties != null) {
       Object expirationProperty = properties.get(
           GCacheFactory.EXPIRATION_DELTA);
@@ -83,9 +112,16 @@ public class GCache implements Cache {
       } else {
         throwOnPutFailure = false;
       }
+      Object loaderProperty = properties.get(GCacheFactory.CACHE_LOADER);
+      if (loaderProperty instanceof CacheLoader) {
+        loader = (CacheLoader) loaderProperty;
+      } else {
+        loader = null;
+      }
     } else {
       expiration = null;
       throwOnPutFailure = false;
+      loader = null;
       setPolicy = MemcacheService.SetPolicy.SET_ALWAYS;
       this.service = MemcacheServiceFactory.getMemcacheService();
     }
@@ -95,12 +131,38 @@ public class GCache implements Cache {
     listeners.add(cacheListener);
   }
 
+  /**
+   * Memcache evicts expired entries by itself, so this does nothing.
+   */
   public void evict() {
   }
 
+  /**
+   * Gets the values of {@code collection} with a single memcache call, and
+   * loads those that are missing with a single call to the
+   * {@link CacheLoader}, if any.
+   */
   @SuppressWarnings("unchecked")
-  public Map getAll(Collection collection) {
-    return service.getAll(collection);
+  public Map getAll(Collection collection) throws CacheException {
+    long start = System.nanoTime();
+    Map<Object, Object> values = service.getAll(collection);
+    counters.recordLookup(values.size(), collection.size() - values.size(),
+        System.nanoTime() - start);
+    if (loader != null && values.size() < collection.size()) {
+      List<Object> missing = new ArrayList<Object>();
+      for (Object key : collection) {
+        if (!values.containsKey(key)) {
+          missing.add(key);
+        }
+      }
+      values = new HashMap<Object, Object>(values);
+      for (Map.Entry<Object, Object> entry : loadMissing(missing).entrySet()) {
+        if (entry.getValue() != null) {
+          values.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    return values;
   }
 
   public CacheEntry getCacheEntry(Object o) {
@@ -112,25 +174,44 @@ public class GCache implements Cache {
   }
 
   public CacheStatistics getCacheStatistics() {
-    return new GCacheStats(service.getStatistics());
+    return new GCacheStats(counters, service.getStatistics());
   }
 
   /**
-   * Not supported.
+   * Loads {@code o} with the {@link CacheLoader} if it is not in the cache.
+   * Unlike JCache suggests, the load completes before this method returns.
    */
-  public void load(Object o) {
-    throw new UnsupportedOperationException();
+  public void load(Object o) throws CacheException {
+    loadAll(Collections.singleton(o));
   }
 
   /**
-   * Not supported.
+   * Loads the keys of {@code collection} that are not in the cache with a
+   * single call to the {@link CacheLoader}.  Unlike JCache suggests, the load
+   * completes before this method returns.
    */
-  public void loadAll(Collection collection) {
-    throw new UnsupportedOperationException();
+  @SuppressWarnings("unchecked")
+  public void loadAll(Collection collection) throws CacheException {
+    if (loader == null) {
+      throw new CacheException("No CacheLoader configured");
+    }
+    Map<Object, Object> values = service.getAll(collection);
+    List<Object> missing = new ArrayList<Object>();
+    for (Object key : (Collection<Object>) collection) {
+      if (!values.containsKey(key)) {
+        missing.add(key);
+      }
+    }
+    if (!missing.isEmpty()) {
+      loadMissing(missing);
+    }
   }
 
+  /**
+   * Gets the value of {@code o} without loading it if it is missing.
+   */
   public Object peek(Object o) {
-    return get(o);
+    return lookup(o);
   }
 
   public void removeListener(CacheListener cacheListener) {
@@ -157,42 +238,52 @@ public class GCache implements Cache {
   }
 
   public Object get(Object key) {
-    return service.get(key);
+    Object value = lookup(key);
+    if (value == null && loader != null) {
+      value = loadMissing(Collections.singletonList(key)).get(key);
+    }
+    return value;
   }
 
   public Object put(Object key, Object value) {
-    for (CacheListener listener : listeners) {
-      listener.onPut(value);
-    }
     boolean added = service.put(key, value, expiration, setPolicy);
-    if (!added && throwOnPutFailure) {
+    if (added) {
+      for (CacheListener listener : listeners) {
+        listener.onPut(key);
+      }
+    } else if (throwOnPutFailure) {
       throw new GCacheException("Policy prevented put operation");
     }
     return null;
   }
 
   public Object remove(Object key) {
+    Object value = service.get(key);
+    service.delete(key);
     for (CacheListener listener : listeners) {
       listener.onRemove(key);
     }
-    Object value = service.get(key);
-    service.delete(key);
     return value;
   }
 
   @SuppressWarnings("unchecked")
   public void putAll(Map m) {
     Set added = service.putAll(m, expiration, setPolicy);
+    for (Object key : added) {
+      for (CacheListener listener : listeners) {
+        listener.onPut(key);
+      }
+    }
     if (throwOnPutFailure && added.size() < m.size()) {
       throw new GCacheException("Policy prevented some put operations");
     }
   }
 
   public void clear() {
+    service.clearAll();
     for (CacheListener listener : listeners) {
       listener.onClear();
     }
-    service.clearAll();
   }
 
   /**
@@ -217,31 +308,201 @@ public class GCache implements Cache {
   }
 
   /**
-   * Implementation of the JCache {@link CacheStatistics} using memcache
-   * provided statistics.
+   * Gets a value from memcache and records the lookup.
+   */
+  private Object lookup(Object key) {
+    long start = System.nanoTime();
+    Object value = service.get(key);
+    if (value != null) {
+      counters.recordLookup(1, 0, System.nanoTime() - start);
+    } else {
+      counters.recordLookup(0, 1, System.nanoTime() - start);
+    }
+    return value;
+  }
+
+  /**
+   * Loads keys that were not found in memcache, waiting for the loads of
+   * this cache that are already running for some of them and loading the
+   * others with a single call to the loader.
+   *
+   * @return the loaded values by key, {@code null} for the keys the loader
+   * did not find
+   */
+  private Map<Object, Object> loadMissing(Collection<?> keys) {
+    final List<Object> ownKeys = new ArrayList<Object>(keys.size());
+    FutureTask<Map<Object, Object>> ownLoad = new FutureTask<Map<Object, Object>>(
+        new Callable<Map<Object, Object>>() {
+          @Override
+          public Map<Object, Object> call() {
+            return loadAndPut(ownKeys);
+          }
+        });
+    Map<Object, FutureTask<Map<Object, Object>>> joinedLoads =
+        new LinkedHashMap<Object, FutureTask<Map<Object, Object>>>();
+    for (Object key : keys) {
+      FutureTask<Map<Object, Object>> existing = loads.putIfAbsent(key, ownLoad);
+      if (existing == null) {
+        ownKeys.add(key);
+      } else {
+        joinedLoads.put(key, existing);
+      }
+    }
+
+    Map<Object, Object> values = new HashMap<Object, Object>();
+    if (!ownKeys.isEmpty()) {
+      try {
+        ownLoad.run();
+      } finally {
+        for (Object key : ownKeys) {
+          loads.remove(key, ownLoad);
+        }
+      }
+      values.putAll(getLoaded(ownLoad));
+    }
+    for (Map.Entry<Object, FutureTask<Map<Object, Object>>> entry : joinedLoads.entrySet()) {
+      values.put(entry.getKey(), getLoaded(entry.getValue()).get(entry.getKey()));
+    }
+    return values;
+  }
+
+  /**
+   * Calls the loader and stores the values it found.
+   */
+  @SuppressWarnings("unchecked")
+  private Map<Object, Object> loadAndPut(List<Object> keys) {
+    long start = System.nanoTime();
+    Map<Object, Object> loaded;
+    if (keys.size() == 1) {
+      Object key = keys.get(0);
+      loaded = Collections.singletonMap(key, loader.load(key));
+    } else {
+      loaded = loader.loadAll(keys);
+      if (loaded == null) {
+        loaded = Collections.emptyMap();
+      }
+    }
+    counters.recordLoad(keys.size(), System.nanoTime() - start);
+
+    Map<Object, Object> found = new HashMap<Object, Object>();
+    for (Map.Entry<Object, Object> entry : loaded.entrySet()) {
+      if (entry.getValue() != null) {
+        found.put(entry.getKey(), entry.getValue());
+      }
+    }
+    if (!found.isEmpty()) {
+      service.putAll(found, expiration, setPolicy);
+      for (Object key : found.keySet()) {
+        for (CacheListener listener : listeners) {
+          listener.onLoad(key);
+        }
+      }
+    }
+    return loaded;
+  }
+
+  private static Map<Object, Object> getLoaded(FutureTask<Map<Object, Object>> load) {
+    try {
+      return load.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new GCacheException("Interrupted while waiting for a load", ex);
+    } catch (ExecutionException ex) {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new GCacheException("CacheLoader failed", cause);
+      }
+    }
+  }
+
+  /**
+   * The statistics this cache keeps about its own use.
    */
-  private static class GCacheStats implements CacheStatistics {
+  private static class Counters {
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong lookups = new AtomicLong();
+    final AtomicLong lookupNanos = new AtomicLong();
+    final AtomicLong loads = new AtomicLong();
+    final AtomicLong loadedKeys = new AtomicLong();
+    final AtomicLong loadNanos = new AtomicLong();
+
+    void recordLookup(int hitCount, int missCount, long nanos) {
+      hits.addAndGet(hitCount);
+      misses.addAndGet(missCount);
+      lookups.incrementAndGet();
+      lookupNanos.addAndGet(nanos);
+    }
 
-    private Stats stats;
+    void recordLoad(int keyCount, long nanos) {
+      loads.incrementAndGet();
+      loadedKeys.addAndGet(keyCount);
+      loadNanos.addAndGet(nanos);
+    }
+
+    void clear() {
+      hits.set(0);
+      misses.set(0);
+      lookups.set(0);
+      lookupNanos.set(0);
+      loads.set(0);
+      loadedKeys.set(0);
+      loadNanos.set(0);
+    }
+  }
+
+  /**
+   * Implementation of the JCache {@link CacheStatistics}.  Hits, misses and
+   * latencies are those of this cache, counted since it was created or its
+   * statistics were last cleared; the object count is that of memcache.
+   */
+  public static class GCacheStats implements CacheStatistics {
+
+    private final Counters counters;
+    private final Stats stats;
+    private final long hits;
+    private final long misses;
+    private final long lookups;
+    private final long lookupNanos;
+    private final long loads;
+    private final long loadedKeys;
+    private final long loadNanos;
 
     /**
-     * Creates a statistics snapshot using the provided stats.
-     * @param stats Statistics to use.
+     * Creates a statistics snapshot of the provided counters and stats.
+     * @param counters Counters of the cache, cleared by
+     * {@link #clearStatistics}.
+     * @param stats Memcache statistics to use.
      */
-    private GCacheStats(Stats stats) {
+    private GCacheStats(Counters counters, Stats stats) {
+      this.counters = counters;
       this.stats = stats;
+      this.hits = counters.hits.get();
+      this.misses = counters.misses.get();
+      this.lookups = counters.lookups.get();
+      this.lookupNanos = counters.lookupNanos.get();
+      this.loads = counters.loads.get();
+      this.loadedKeys = counters.loadedKeys.get();
+      this.loadNanos = counters.loadNanos.get();
     }
 
+    /**
+     * Resets the statistics of the cache.  This snapshot is not changed.
+     */
     public void clearStatistics() {
-      throw new UnsupportedOperationException();
+      counters.clear();
     }
 
     public int getCacheHits() {
-      return (int) stats.getHitCount();
+      return (int) hits;
     }
 
     public int getCacheMisses() {
-      return (int) stats.getMissCount();
+      return (int) misses;
     }
 
     public int getObjectCount() {
@@ -249,11 +510,49 @@ public class GCache implements Cache {
     }
 
     public int getStatisticsAccuracy() {
-      throw new UnsupportedOperationException();
+      return STATISTICS_ACCURACY_BEST_EFFORT;
+    }
+
+    /**
+     * @return the number of calls to the {@link CacheLoader}
+     */
+    public long getLoadCount() {
+      return loads;
+    }
+
+    /**
+     * @return the number of keys passed to the {@link CacheLoader}
+     */
+    public long getLoadedKeyCount() {
+      return loadedKeys;
+    }
+
+    /**
+     * @return the average time memcache lookups took, in milliseconds, or 0
+     * if there were none
+     */
+    public double getAverageLookupMillis() {
+      return lookups == 0 ? 0 : lookupNanos / 1e6 / lookups;
+    }
+
+    /**
+     * @return the average time calls to the {@link CacheLoader} took, in
+     * milliseconds, or 0 if there were none
+     */
+    public double getAverageLoadMillis() {
+      return loads == 0 ? 0 : loadNanos / 1e6 / loads;
     }
 
     public String toString() {
-      return stats.toString();
+      StringBuilder builder = new StringBuilder();
+      builder.append("Cache Hits: ").append(hits).append('\n');
+      builder.append("Cache Misses: ").append(misses).append('\n');
+      builder.append("Average Lookup Millis: ").append(getAverageLookupMillis()).append('\n');
+      builder.append("Loads: ").append(loads).append('\n');
+      builder.append("Loaded Keys: ").append(loadedKeys).append('\n');
+      builder.append("Average Load Millis: ").append(getAverageLoadMillis()).append('\n');
+      builder.append(stats);
+      return builder.toString();
     }
   }
 }
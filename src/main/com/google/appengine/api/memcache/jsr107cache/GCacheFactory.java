@@ -66,6 +66,14 @@ public class GCacheFactory implements CacheFactory {
    */
   public static final String THROW_ON_PUT_FAILURE = PREFIX + "THROW_ON_PUT_FAILURE";
 
+  /**
+   * Property key for a {@link net.sf.jsr107cache.CacheLoader} that loads the
+   * values of keys that are not in the cache.  If not specified, gets of such
+   * keys return {@code null} and {@code load} and {@code loadAll} throw a
+   * {@link net.sf.jsr107cache.CacheException}.
+   */
+  public static final String CACHE_LOADER = PREFIX + "CACHE_LOADER";
+
   /**
    * Creates a cache instance using the memcache service.
    * @param map A map of properties.
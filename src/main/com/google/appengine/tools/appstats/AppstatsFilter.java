@@ -112,6 +112,15 @@ public class AppstatsFilter implements Filter {
       throws IOException, ServletException {
     Environment environment = getCurrentEvnvironment();
     Long id = writer.begin(delegate, environment, (HttpServletRequest) request);
+    if (id == null) {
+      environment.getAttributes().put(Recorder.UNSAMPLED_KEY, Boolean.TRUE);
+      try {
+        filters.doFilter(request, response);
+      } finally {
+        environment.getAttributes().remove(Recorder.UNSAMPLED_KEY);
+      }
+      return;
+    }
     final HttpServletResponse innerResponse = (HttpServletResponse) response;
     final Integer[] responseCode = {null};
 
@@ -164,10 +173,7 @@ public class AppstatsFilter implements Filter {
   @Override
   public synchronized void init(FilterConfig config) {
     if (writer == null) {
-      Recorder.RecordWriter newWriter =
-        new MemcacheWriter(
-            new Recorder.Clock(),
-            MemcacheServiceFactory.getMemcacheService(MemcacheWriter.STATS_NAMESPACE));
+      MemcacheWriter newWriter = createWriter(config);
       delegate = ApiProxy.getDelegate();
 
       recorder = new Recorder(delegate, newWriter);
@@ -227,9 +233,40 @@ public class AppstatsFilter implements Filter {
     return ApiProxy.getCurrentEnvironment();
   }
 
+  static MemcacheWriter createWriter(FilterConfig config) {
+    Recorder.Clock clock = new Recorder.Clock();
+    MemcacheWriter writer;
+    if (config.getInitParameter("recentRequestBufferSize") != null) {
+      writer = new BufferedMemcacheWriter(clock,
+          MemcacheServiceFactory.getMemcacheService(MemcacheWriter.STATS_NAMESPACE),
+          MemcacheServiceFactory.getAsyncMemcacheService(MemcacheWriter.STATS_NAMESPACE),
+          getPositiveInt(config, "recentRequestBufferSize", 1),
+          getPositiveInt(config, "persistBatchSize", 10),
+          getPositiveInt(config, "persistIntervalMillis", 10000));
+    } else {
+      writer = new MemcacheWriter(clock,
+          MemcacheServiceFactory.getMemcacheService(MemcacheWriter.STATS_NAMESPACE));
+    }
+    String samplingRate = config.getInitParameter("samplingRate");
+    if (samplingRate != null) {
+      writer.setSamplingRate(Double.parseDouble(samplingRate));
+    }
+    writer.setMaxRequestsPerSecond(getPositiveInt(
+        config, "maxRecordedRequestsPerSecond", Integer.MAX_VALUE));
+    if (Boolean.parseBoolean(config.getInitParameter("latencyHistograms"))) {
+      writer.setLatencyStats(new LatencyStats(clock,
+          MemcacheServiceFactory.getMemcacheService(MemcacheWriter.STATS_NAMESPACE)));
+    }
+    return writer;
+  }
+
   static void configureRecorder(FilterConfig config, Recorder recorder) {
     recorder.setMaxLinesOfStackTrace(getPositiveInt(
         config, "maxLinesOfStackTrace", Integer.MAX_VALUE));
+    recorder.setStackTraceSamplingInterval(getPositiveInt(
+        config, "stackTraceSamplingInterval", 1));
+    recorder.setMaxStackTracesPerSecond(getPositiveInt(
+        config, "maxStackTracesPerSecond", Integer.MAX_VALUE));
     if (config.getInitParameter("payloadRenderer") != null) {
       try {
         recorder.setPayloadRenderer(
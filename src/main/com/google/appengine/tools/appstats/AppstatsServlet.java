@@ -47,19 +47,38 @@ public class AppstatsServlet extends HttpServlet {
 
   private boolean requireAdminAuthentication = true;
   private final MemcacheWriter memcache;
+  private final boolean preferFilterWriter;
   private final Renderer renderer;
   Clock clock = new Clock();
 
   AppstatsServlet(MemcacheWriter writer, Renderer renderer) {
+    this(writer, renderer, false);
+  }
+
+  private AppstatsServlet(MemcacheWriter writer, Renderer renderer, boolean preferFilterWriter) {
     this.memcache = writer;
     this.renderer = renderer;
+    this.preferFilterWriter = preferFilterWriter;
   }
 
   public AppstatsServlet() {
     this(
         new MemcacheWriter(
             new Clock(), MemcacheServiceFactory.getMemcacheService(MemcacheWriter.STATS_NAMESPACE)),
-        new Renderer());
+        new Renderer(), true);
+  }
+
+  /**
+   * @return the writer of the {@link AppstatsFilter} of this instance, if any,
+   * so that requests it has not persisted yet are found, or else the writer
+   * of this servlet
+   */
+  private MemcacheWriter getWriter() {
+    Recorder.RecordWriter filterWriter = AppstatsFilter.writer;
+    if (preferFilterWriter && filterWriter instanceof MemcacheWriter) {
+      return (MemcacheWriter) filterWriter;
+    }
+    return memcache;
   }
 
   @Override
@@ -106,7 +125,7 @@ public class AppstatsServlet extends HttpServlet {
       RequestStatProto data;
       try {
         long asTimeStamp = Long.parseLong(req.getParameter("time"));
-        data = memcache.getFull(asTimeStamp);
+        data = getWriter().getFull(asTimeStamp);
       } catch (NumberFormatException e) {
         data = null;
       }
@@ -116,12 +135,24 @@ public class AppstatsServlet extends HttpServlet {
       }
 
       authenticateAndServeDetails(data, req, resp);
+    } else if (path.equals("/latency")) {
+
+      if (!requireAdminAuthentication(UserServiceFactory.getUserService(), req, resp)) {
+        return;
+      }
+      LatencyStats latencyStats = getWriter().getLatencyStats();
+      if (latencyStats == null) {
+        latencyStats = new LatencyStats(clock,
+            MemcacheServiceFactory.getMemcacheService(MemcacheWriter.STATS_NAMESPACE));
+      }
+      resp.setContentType("application/json");
+      renderer.renderLatencyStatsAsJson(resp.getWriter(), latencyStats.getWindows());
     } else if (path.equals("/stats")) {
 
       if (!requireAdminAuthentication(UserServiceFactory.getUserService(), req, resp)) {
         return;
       }
-      renderer.renderSummaries(resp.getWriter(), memcache.getSummaries());
+      renderer.renderSummaries(resp.getWriter(), getWriter().getSummaries());
     } else {
 
       resp.sendRedirect(req.getServletPath() + "/stats");
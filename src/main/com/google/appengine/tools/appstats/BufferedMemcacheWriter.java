@@ -0,0 +1,167 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.appstats;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.tools.appstats.Recorder.Clock;
+import com.google.appengine.tools.appstats.StatsProtos.RequestStatProto;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A {@link MemcacheWriter} that keeps committed requests in memory and
+ * persists them to memcache in batches.
+ *
+ * Committing a request only adds its stats to a lock-free ring buffer of the
+ * most recent requests of this instance and to a queue of requests waiting to
+ * be persisted.  Once {@code batchSize} requests are waiting, or
+ * {@code flushIntervalMillis} have passed since the last batch, the request
+ * that commits next serializes the whole queue and writes it with a single
+ * asynchronous memcache call that it does not wait for.  App Engine does not
+ * let frontend instances run threads that outlive a request, so the work is
+ * batched on request threads rather than moved to a background thread.
+ *
+ * Reads look in the ring buffer first, so the most recent requests of this
+ * instance are shown even before they are persisted.  Requests still waiting
+ * when the instance shuts down are lost.
+ *
+ */
+class BufferedMemcacheWriter extends MemcacheWriter {
+
+  private final AsyncMemcacheService asyncStatsMemcache;
+  private final Clock clock;
+  private final int batchSize;
+  private final long flushIntervalMillis;
+
+  private final AtomicReferenceArray<RequestStatProto> recent;
+  private final AtomicLong recentCount = new AtomicLong();
+
+  private final Queue<RequestStatProto> pending = new ConcurrentLinkedQueue<RequestStatProto>();
+  private final AtomicInteger pendingCount = new AtomicInteger();
+  private final AtomicBoolean flushing = new AtomicBoolean();
+  private volatile long lastFlush;
+
+  /**
+   * @param service the memcache service the stats are read from
+   * @param asyncService the memcache service the stats are written to, in
+   * the same namespace as {@code service}
+   * @param bufferSize the number of recent requests kept in memory
+   * @param batchSize the number of requests persisted together
+   * @param flushIntervalMillis the longest time a request waits to be
+   * persisted, as long as other requests are committed
+   */
+  public BufferedMemcacheWriter(Clock clock, MemcacheService service,
+      AsyncMemcacheService asyncService, int bufferSize, int batchSize,
+      long flushIntervalMillis) {
+    super(clock, service);
+    if (asyncService == null) {
+      throw new NullPointerException("Async memcache service not found");
+    }
+    if (bufferSize <= 0 || batchSize <= 0) {
+      throw new IllegalArgumentException("bufferSize and batchSize must be positive");
+    }
+    this.asyncStatsMemcache = asyncService;
+    this.clock = clock;
+    this.batchSize = batchSize;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.recent = new AtomicReferenceArray<RequestStatProto>(bufferSize);
+    this.lastFlush = clock.currentTimeMillis();
+  }
+
+  @Override
+  void persist(RequestStatProto stats) {
+    long index = recentCount.getAndIncrement();
+    recent.set((int) (index % recent.length()), stats);
+
+    pending.add(stats);
+    long now = clock.currentTimeMillis();
+    if (pendingCount.incrementAndGet() >= batchSize || now - lastFlush >= flushIntervalMillis) {
+      flush(now);
+    }
+  }
+
+  /**
+   * Persists all waiting requests, unless another thread already is.
+   */
+  private void flush(long now) {
+    if (!flushing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      lastFlush = now;
+      Map<Object, Object> values = new HashMap<Object, Object>();
+      RequestStatProto stats;
+      while ((stats = pending.poll()) != null) {
+        pendingCount.decrementAndGet();
+        try {
+          addCacheValues(stats, values);
+        } catch (MemcacheServiceException e) {
+          log.warning("Dropping stats of request at " + stats.getStartTimestampMilliseconds()
+              + ": " + e.getMessage());
+        }
+      }
+      if (!values.isEmpty()) {
+        asyncStatsMemcache.putAll(values, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+      }
+    } finally {
+      flushing.set(false);
+    }
+  }
+
+  /**
+   * @return the requests in the ring buffer, most recent first
+   */
+  private List<RequestStatProto> getRecent() {
+    long count = recentCount.get();
+    int size = (int) Math.min(count, recent.length());
+    List<RequestStatProto> result = new ArrayList<RequestStatProto>(size);
+    for (long index = count - 1; index >= count - size; index--) {
+      RequestStatProto stats = recent.get((int) (index % recent.length()));
+      if (stats != null) {
+        result.add(stats);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public List<RequestStatProto> getSummaries() {
+    List<RequestStatProto> result = new ArrayList<RequestStatProto>();
+    Set<Long> timestamps = new HashSet<Long>();
+    for (RequestStatProto stats : getRecent()) {
+      if (timestamps.add(stats.getStartTimestampMilliseconds())) {
+        result.add(summarize(stats));
+      }
+    }
+    for (RequestStatProto summary : super.getSummaries()) {
+      if (timestamps.add(summary.getStartTimestampMilliseconds())) {
+        result.add(summary);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public RequestStatProto getFull(long timestamp) {
+    for (RequestStatProto stats : getRecent()) {
+      if (stats.getStartTimestampMilliseconds() == timestamp) {
+        return stats;
+      }
+    }
+    return super.getFull(timestamp);
+  }
+}
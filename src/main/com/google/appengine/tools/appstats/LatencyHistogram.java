@@ -0,0 +1,187 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.appstats;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, such as latencies in milliseconds,
+ * with a bounded relative error.
+ *
+ * Values below {@link #EXACT_LIMIT} are counted exactly.  Larger values are
+ * counted in buckets that split every power of two into
+ * {@link #SUB_BUCKETS} equal parts, so percentiles are accurate to within
+ * about 6% whatever the magnitude of the values, in the spirit of
+ * HdrHistogram.  Values beyond the largest bucket are counted in it.
+ * Histograms of the same values recorded in different places can be merged
+ * with {@link #add}.
+ *
+ * Recording is lock-free and this class is thread-safe, but reads that race
+ * with recording may see some of the counts of a value and not others.
+ *
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int EXACT_LIMIT = 2 * SUB_BUCKETS;
+
+  /**
+   * The bit length of the largest value with a bucket of its own, about 35
+   * years in milliseconds.
+   */
+  private static final int MAX_BIT_LENGTH = 40;
+
+  private static final int BUCKET_COUNT =
+      EXACT_LIMIT + (MAX_BIT_LENGTH - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+  private static final byte FORMAT_VERSION = 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records one occurrence of {@code value}.  Negative values are recorded
+   * as 0.
+   */
+  void record(long value) {
+    value = Math.max(0, value);
+    counts.incrementAndGet(bucketOf(value));
+    totalCount.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax = max.get();
+    while (value > currentMax && !max.compareAndSet(currentMax, value)) {
+      currentMax = max.get();
+    }
+  }
+
+  /**
+   * Adds all values recorded in {@code other} to this histogram.
+   */
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long count = other.counts.get(i);
+      if (count != 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+    totalCount.addAndGet(other.totalCount.get());
+    sum.addAndGet(other.sum.get());
+    long otherMax = other.max.get();
+    long currentMax = max.get();
+    while (otherMax > currentMax && !max.compareAndSet(currentMax, otherMax)) {
+      currentMax = max.get();
+    }
+  }
+
+  long getCount() {
+    return totalCount.get();
+  }
+
+  long getMax() {
+    return max.get();
+  }
+
+  /**
+   * @return the mean of the recorded values, or 0 if there are none
+   */
+  double getMean() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the largest value in the bucket that contains the given
+   * percentile of the recorded values, but no more than the largest recorded
+   * value, or 0 if there are none
+   */
+  long getPercentile(double percentile) {
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestValueOf(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  private static int bucketOf(long value) {
+    if (value < EXACT_LIMIT) {
+      return (int) value;
+    }
+    int bitLength = Math.min(64 - Long.numberOfLeadingZeros(value), MAX_BIT_LENGTH);
+    int shift = bitLength - SUB_BUCKET_BITS - 1;
+    int subBucket = (int) Math.min(value >> shift, EXACT_LIMIT - 1) - SUB_BUCKETS;
+    return EXACT_LIMIT + (bitLength - SUB_BUCKET_BITS - 2) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long highestValueOf(int bucket) {
+    if (bucket < EXACT_LIMIT) {
+      return bucket;
+    }
+    int bitLength = (bucket - EXACT_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 2;
+    int subBucket = (bucket - EXACT_LIMIT) % SUB_BUCKETS;
+    int shift = bitLength - SUB_BUCKET_BITS - 1;
+    return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+
+  /**
+   * Writes the non-empty buckets of this histogram.
+   */
+  void writeTo(DataOutputStream out) throws IOException {
+    int nonEmpty = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      if (counts.get(i) != 0) {
+        nonEmpty++;
+      }
+    }
+    out.writeByte(FORMAT_VERSION);
+    out.writeLong(sum.get());
+    out.writeLong(max.get());
+    out.writeInt(nonEmpty);
+    for (int i = 0; i < BUCKET_COUNT && nonEmpty > 0; i++) {
+      long count = counts.get(i);
+      if (count != 0) {
+        out.writeShort(i);
+        out.writeLong(count);
+        nonEmpty--;
+      }
+    }
+  }
+
+  /**
+   * Reads a histogram written by {@link #writeTo}.
+   */
+  static LatencyHistogram readFrom(DataInputStream in) throws IOException {
+    if (in.readByte() != FORMAT_VERSION) {
+      throw new IOException("Unknown histogram format");
+    }
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.sum.set(in.readLong());
+    histogram.max.set(in.readLong());
+    int nonEmpty = in.readInt();
+    for (int i = 0; i < nonEmpty; i++) {
+      int bucket = in.readShort();
+      long count = in.readLong();
+      if (bucket < 0 || bucket >= BUCKET_COUNT || count < 0) {
+        throw new IOException("Invalid histogram bucket " + bucket);
+      }
+      histogram.counts.addAndGet(bucket, count);
+      histogram.totalCount.addAndGet(count);
+    }
+    return histogram;
+  }
+}
@@ -0,0 +1,327 @@
+// Copyright 2011 Google Inc. All Rights Reserved.
+
+package com.google.appengine.tools.appstats;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheServiceException;
+import com.google.appengine.tools.appstats.Recorder.Clock;
+import com.google.appengine.tools.appstats.StatsProtos.IndividualRpcStatsProto;
+import com.google.appengine.tools.appstats.StatsProtos.RequestStatProto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Aggregates the latencies of recorded requests into histograms per service
+ * call and per URL pattern, over time windows of {@link #WINDOW_MILLIS}.
+ *
+ * The current window is kept in process.  When a request is recorded in a
+ * new window, the previous one is merged into the window stored in memcache
+ * by all instances, so that reads see the distributions across all traffic.
+ * Windows are kept in memcache for twice {@link #WINDOW_COUNT} windows.
+ *
+ * This class is thread-safe.  Requests recorded while their window is being
+ * flushed may be left out of it.
+ *
+ */
+class LatencyStats {
+
+  static final long WINDOW_MILLIS = 60 * 1000;
+
+  /**
+   * The number of windows returned by {@link #getWindows()}.
+   */
+  static final int WINDOW_COUNT = 60;
+
+  private static final String KEY_PREFIX = "__appstats__:latency:";
+
+  private static final int EXPIRATION_SECONDS = (int) (2 * WINDOW_COUNT * WINDOW_MILLIS / 1000);
+
+  private static final int MAX_FLUSH_ATTEMPTS = 3;
+
+  private static final byte FORMAT_VERSION = 1;
+
+  private static final Logger log = Logger.getLogger(LatencyStats.class.getName());
+
+  /**
+   * The distributions of one time window.
+   */
+  static class Window {
+    final long start;
+    final AtomicLong requestCount = new AtomicLong();
+    final AtomicLong apiMcycles = new AtomicLong();
+
+    /**
+     * Latencies in milliseconds, by service call name.
+     */
+    final ConcurrentMap<String, LatencyHistogram> rpcLatencies =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * Request latencies in milliseconds, by URL pattern.
+     */
+    final ConcurrentMap<String, LatencyHistogram> requestLatencies =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * The number of rpcs made by each request, by URL pattern.
+     */
+    final ConcurrentMap<String, LatencyHistogram> rpcsPerRequest =
+        new ConcurrentHashMap<String, LatencyHistogram>();
+
+    Window(long start) {
+      this.start = start;
+    }
+
+    void record(RequestStatProto stats) {
+      requestCount.incrementAndGet();
+      String urlPattern = urlPatternOf(stats.getHttpPath());
+      histogram(requestLatencies, urlPattern).record(stats.getDurationMilliseconds());
+      histogram(rpcsPerRequest, urlPattern).record(stats.getIndividualStatsCount());
+      long mcycles = 0;
+      for (IndividualRpcStatsProto rpc : stats.getIndividualStatsList()) {
+        histogram(rpcLatencies, rpc.getServiceCallName()).record(rpc.getDurationMilliseconds());
+        mcycles += rpc.getApiMcycles();
+      }
+      apiMcycles.addAndGet(mcycles);
+    }
+
+    void add(Window other) {
+      requestCount.addAndGet(other.requestCount.get());
+      apiMcycles.addAndGet(other.apiMcycles.get());
+      addAll(rpcLatencies, other.rpcLatencies);
+      addAll(requestLatencies, other.requestLatencies);
+      addAll(rpcsPerRequest, other.rpcsPerRequest);
+    }
+
+    byte[] toByteArray() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(FORMAT_VERSION);
+      out.writeLong(start);
+      out.writeLong(requestCount.get());
+      out.writeLong(apiMcycles.get());
+      writeHistograms(out, rpcLatencies);
+      writeHistograms(out, requestLatencies);
+      writeHistograms(out, rpcsPerRequest);
+      out.close();
+      return bytes.toByteArray();
+    }
+
+    static Window fromByteArray(byte[] bytes) throws IOException {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+      if (in.readByte() != FORMAT_VERSION) {
+        throw new IOException("Unknown latency window format");
+      }
+      Window window = new Window(in.readLong());
+      window.requestCount.set(in.readLong());
+      window.apiMcycles.set(in.readLong());
+      readHistograms(in, window.rpcLatencies);
+      readHistograms(in, window.requestLatencies);
+      readHistograms(in, window.rpcsPerRequest);
+      return window;
+    }
+  }
+
+  private final Clock clock;
+  private final MemcacheService statsMemcache;
+  private final AtomicReference<Window> current;
+
+  LatencyStats(Clock clock, MemcacheService service) {
+    if (service == null) {
+      throw new NullPointerException("Memcache service not found");
+    }
+    this.clock = clock;
+    this.statsMemcache = service;
+    this.current =
+        new AtomicReference<Window>(new Window(windowStartOf(clock.currentTimeMillis())));
+  }
+
+  /**
+   * Adds a committed request to the current window, flushing the previous
+   * window first if the request is the first of a new one.
+   */
+  void record(RequestStatProto stats) {
+    long start = windowStartOf(clock.currentTimeMillis());
+    Window window = current.get();
+    while (window.start < start) {
+      if (current.compareAndSet(window, new Window(start))) {
+        flush(window);
+      }
+      window = current.get();
+    }
+    window.record(stats);
+  }
+
+  /**
+   * @return the last {@link #WINDOW_COUNT} windows that have any requests,
+   * most recent first, as merged across all instances and including the
+   * requests of the current window of this instance that are not flushed yet
+   */
+  List<Window> getWindows() {
+    Window currentWindow = current.get();
+    long latestStart = windowStartOf(clock.currentTimeMillis());
+    List<Object> keys = new ArrayList<Object>(WINDOW_COUNT);
+    for (int i = 0; i < WINDOW_COUNT; i++) {
+      keys.add(keyOf(latestStart - i * WINDOW_MILLIS));
+    }
+    Map<Object, Object> values = statsMemcache.getAll(keys);
+
+    List<Window> windows = new ArrayList<Window>();
+    for (int i = 0; i < WINDOW_COUNT; i++) {
+      long start = latestStart - i * WINDOW_MILLIS;
+      Window window = decode(values.get(keys.get(i)));
+      if (start == currentWindow.start) {
+        if (window == null) {
+          window = new Window(start);
+        }
+        window.add(currentWindow);
+      }
+      if (window != null && window.requestCount.get() > 0) {
+        windows.add(window);
+      }
+    }
+    return windows;
+  }
+
+  /**
+   * Merges a window into the window with the same start in memcache.
+   */
+  private void flush(Window window) {
+    if (window.requestCount.get() == 0) {
+      return;
+    }
+    String key = keyOf(window.start);
+    Expiration expiration = Expiration.byDeltaSeconds(EXPIRATION_SECONDS);
+    try {
+      for (int attempt = 0; attempt < MAX_FLUSH_ATTEMPTS; attempt++) {
+        IdentifiableValue stored = statsMemcache.getIdentifiable(key);
+        Window storedWindow = stored == null ? null : decode(stored.getValue());
+        if (storedWindow == null) {
+          if (statsMemcache.put(key, window.toByteArray(), expiration,
+              MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+            return;
+          }
+          if (stored == null) {
+            continue;
+          }
+          storedWindow = new Window(window.start);
+        }
+        storedWindow.add(window);
+        if (statsMemcache.putIfUntouched(key, stored, storedWindow.toByteArray(), expiration)) {
+          return;
+        }
+      }
+      log.info("Dropping latency stats of window " + window.start + " after concurrent updates");
+    } catch (IOException e) {
+      log.log(Level.WARNING, "Cannot serialize latency stats", e);
+    } catch (MemcacheServiceException e) {
+      log.log(Level.INFO, "Cannot store latency stats", e);
+    }
+  }
+
+  /**
+   * @return the window stored in {@code value}, or {@code null} if there is
+   * none or it cannot be read
+   */
+  private static Window decode(Object value) {
+    if (!(value instanceof byte[])) {
+      return null;
+    }
+    try {
+      return Window.fromByteArray((byte[]) value);
+    } catch (IOException e) {
+      log.warning("Memcache store for latency stats is corrupted: " + e.getMessage());
+      return null;
+    }
+  }
+
+  private static long windowStartOf(long timestamp) {
+    return timestamp - timestamp % WINDOW_MILLIS;
+  }
+
+  private static String keyOf(long windowStart) {
+    return KEY_PREFIX + windowStart;
+  }
+
+  /**
+   * @return {@code path} with every segment that contains a digit replaced by
+   * {@code *}, so that paths that only differ in ids are aggregated together
+   */
+  static String urlPatternOf(String path) {
+    if (path == null || path.length() == 0) {
+      return "/";
+    }
+    String[] segments = path.split("/", -1);
+    StringBuilder pattern = new StringBuilder(path.length());
+    for (int i = 0; i < segments.length; i++) {
+      if (i > 0) {
+        pattern.append('/');
+      }
+      pattern.append(containsDigit(segments[i]) ? "*" : segments[i]);
+    }
+    return pattern.toString();
+  }
+
+  private static boolean containsDigit(String segment) {
+    for (int i = 0; i < segment.length(); i++) {
+      if (Character.isDigit(segment.charAt(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static LatencyHistogram histogram(ConcurrentMap<String, LatencyHistogram> histograms,
+      String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    if (histogram == null) {
+      LatencyHistogram newHistogram = new LatencyHistogram();
+      histogram = histograms.putIfAbsent(name, newHistogram);
+      if (histogram == null) {
+        histogram = newHistogram;
+      }
+    }
+    return histogram;
+  }
+
+  private static void addAll(ConcurrentMap<String, LatencyHistogram> to,
+      Map<String, LatencyHistogram> from) {
+    for (Map.Entry<String, LatencyHistogram> entry : from.entrySet()) {
+      histogram(to, entry.getKey()).add(entry.getValue());
+    }
+  }
+
+  private static void writeHistograms(DataOutputStream out,
+      Map<String, LatencyHistogram> histograms) throws IOException {
+    Map<String, LatencyHistogram> snapshot = new HashMap<String, LatencyHistogram>(histograms);
+    out.writeInt(snapshot.size());
+    for (Map.Entry<String, LatencyHistogram> entry : snapshot.entrySet()) {
+      out.writeUTF(entry.getKey());
+      entry.getValue().writeTo(out);
+    }
+  }
+
+  private static void readHistograms(DataInputStream in,
+      Map<String, LatencyHistogram> histograms) throws IOException {
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      histograms.put(in.readUTF(), LatencyHistogram.readFrom(in));
+    }
+  }
+}
@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.logging.Logger;
 
 import javax.servlet.http.HttpServletRequest;
@@ -47,7 +48,7 @@ class MemcacheWriter implements Recorder.RecordWriter {
 
   static final int MAX_SIZE = 1000000;
 
-  private static final int EXPIRATION_SECONDS = 36 * 3600;
+  static final int EXPIRATION_SECONDS = 36 * 3600;
 
   public static final String STATS_NAMESPACE = "__appstats__";
 
@@ -64,6 +65,14 @@ class MemcacheWriter implements Recorder.RecordWriter {
 
   private final MemcacheService statsMemcache;
 
+  private final Random random = new Random();
+  private double samplingRate = 1.0;
+  private int maxRequestsPerSecond = Integer.MAX_VALUE;
+  private final Object rateLock = new Object();
+  private long rateSecond;
+  private int requestsInRateSecond;
+  private volatile LatencyStats latencyStats;
+
   public MemcacheWriter(Clock clock, MemcacheService service) {
     this.clock = clock;
     this.keyInCache = getClass().getName() + ".CACHED_STATS";
@@ -73,10 +82,76 @@ class MemcacheWriter implements Recorder.RecordWriter {
     }
   }
 
+  /**
+   * Sets the fraction of requests that are recorded, between 0 and 1.
+   */
+  public void setSamplingRate(double samplingRate) {
+    if (samplingRate < 0 || samplingRate > 1) {
+      throw new IllegalArgumentException("samplingRate must be between 0 and 1");
+    }
+    this.samplingRate = samplingRate;
+  }
+
+  /**
+   * Sets the maximum number of requests recorded per second by this writer.
+   */
+  public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+    this.maxRequestsPerSecond = maxRequestsPerSecond;
+  }
+
+  /**
+   * Sets the aggregator that committed requests are added to, or
+   * {@code null} to not aggregate them.
+   */
+  void setLatencyStats(LatencyStats latencyStats) {
+    this.latencyStats = latencyStats;
+  }
+
+  /**
+   * @return the aggregator that committed requests are added to, or
+   * {@code null} if they are not aggregated
+   */
+  LatencyStats getLatencyStats() {
+    return latencyStats;
+  }
+
+  /**
+   * Decides whether a request that began at {@code now} is recorded, given
+   * the sampling rate and rate limit.
+   */
+  private boolean shouldRecord(long now) {
+    if (samplingRate < 1.0 && random.nextDouble() >= samplingRate) {
+      return false;
+    }
+    if (maxRequestsPerSecond < Integer.MAX_VALUE) {
+      long second = now / 1000;
+      synchronized (rateLock) {
+        if (second != rateSecond) {
+          rateSecond = second;
+          requestsInRateSecond = 0;
+        }
+        if (requestsInRateSecond >= maxRequestsPerSecond) {
+          return false;
+        }
+        requestsInRateSecond++;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * @return {@code null} if the request is not sampled, in which case nothing
+   * is recorded for it
+   */
   @Override
   public final Long begin(
       Delegate<?> wrappedDelegate, Environment environment, HttpServletRequest request) {
     long beganAt = clock.currentTimeMillis();
+    if (!shouldRecord(beganAt)) {
+      return null;
+    }
 
     RequestStatProto.Builder builder = RequestStatProto.newBuilder();
     builder.setStartTimestampMilliseconds(beganAt);
@@ -136,7 +211,12 @@ class MemcacheWriter implements Recorder.RecordWriter {
 
     environment.getAttributes().remove(keyInCache);
 
-    persist(builder.build());
+    RequestStatProto stats = builder.build();
+    LatencyStats latencyStats = this.latencyStats;
+    if (latencyStats != null) {
+      latencyStats.record(stats);
+    }
+    persist(stats);
     return true;
   }
 
@@ -200,18 +280,36 @@ class MemcacheWriter implements Recorder.RecordWriter {
     }
   }
 
-  private void persist(RequestStatProto stats) {
+  /**
+   * Stores the stats of a committed request.  Called on the request thread.
+   */
+  void persist(RequestStatProto stats) {
+    Map<Object, Object> values = new HashMap<Object, Object>();
+    addCacheValues(stats, values);
+    statsMemcache.putAll(values, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+  }
+
+  /**
+   * Adds the memcache entries that store {@code stats} to {@code values}.
+   */
+  void addCacheValues(RequestStatProto stats, Map<Object, Object> values) {
+    String prefix = makeKeyPrefix(stats.getStartTimestampMilliseconds());
+    values.put(prefix + PART_SUFFIX, serialize(summarize(stats)));
+    values.put(prefix + FULL_SUFFIX, serialize(stats));
+  }
+
+  /**
+   * @return {@code stats} without the fields that are only shown in the
+   * details of a request
+   */
+  static RequestStatProto summarize(RequestStatProto stats) {
     RequestStatProto.Builder summary = RequestStatProto.newBuilder().mergeFrom(stats);
     for (FieldDescriptor field : RequestStatProto.getDescriptor().getFields()) {
       if (field.getNumber() > FIRST_FIELD_NUMBER_FOR_DETAILS) {
         summary.clearField(field);
       }
     }
-    Map<Object, Object> values = new HashMap<Object, Object>();
-    String prefix = makeKeyPrefix(stats.getStartTimestampMilliseconds());
-    values.put(prefix + PART_SUFFIX, serialize(summary.build()));
-    values.put(prefix + FULL_SUFFIX, serialize(stats));
-    statsMemcache.putAll(values, Expiration.byDeltaSeconds(EXPIRATION_SECONDS));
+    return summary.build();
   }
 
   byte[] serialize(RequestStatProto proto) {
@@ -15,15 +15,14 @@ import com.google.apphosting.api.ApiProxy.Environment;
 import com.google.apphosting.api.ApiProxy.LogRecord;
 import com.google.common.collect.Sets;
 
-import java.io.PrintWriter;
-import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.List;
 
 import javax.servlet.http.HttpServletRequest;
@@ -65,6 +64,12 @@ class Recorder implements Delegate {
    */
   static final String KEY = Recorder.class.getName();
 
+  /**
+   * The attribute that marks a request that is not sampled. Calls made by
+   * such a request go straight to the wrapped delegate.
+   */
+  static final String UNSAMPLED_KEY = Recorder.class.getName() + ".unsampled";
+
   private static final PayloadRenderer DEFAULT_RENDERER = new NullPayloadRenderer();
 
   /**
@@ -148,37 +153,55 @@ class Recorder implements Delegate {
     }
   }
 
-  private static final Pattern STACK_PATTERN = Pattern.compile(
-  "\\s*at\\s([^\\(]+)[^:]+:([^\\)]+)\\)\\s*");
+  /**
+   * The maximum number of distinct stack frames kept by
+   * {@link #toStackFrameProto}.  Frames beyond that are converted every time.
+   */
+  private static final int MAX_INTERNED_STACK_FRAMES = 10000;
+
+  /**
+   * Stack frames already converted to protos, so that the frames that all
+   * rpcs share are converted once and stored once.
+   */
+  private static final ConcurrentMap<StackTraceElement, StackFrameProto> INTERNED_STACK_FRAMES =
+      new ConcurrentHashMap<StackTraceElement, StackFrameProto>();
 
   private static void createStackTrace(
     int numLinesToIgnore, IndividualRpcStatsProto.Builder stats, int maxNumLines) {
-    StringWriter stack = new StringWriter();
-    new Exception().printStackTrace(new PrintWriter(stack));
-    Matcher matcher = STACK_PATTERN.matcher(stack.toString());
-    while (matcher.find() && stats.getCallStackCount() < maxNumLines) {
-      if (numLinesToIgnore > 0) {
-        numLinesToIgnore--;
-        continue;
-      }
-      String classAndMethod = matcher.group(1);
-      int lastDot = classAndMethod.lastIndexOf('.');
-      String lineNumber = matcher.group(2);
+    StackTraceElement[] frames = new Throwable().getStackTrace();
+    for (int i = numLinesToIgnore;
+        i < frames.length && stats.getCallStackCount() < maxNumLines; i++) {
+      stats.addCallStack(toStackFrameProto(frames[i]));
+    }
+  }
+
+  private static StackFrameProto toStackFrameProto(StackTraceElement frame) {
+    StackFrameProto proto = INTERNED_STACK_FRAMES.get(frame);
+    if (proto == null) {
       StackFrameProto.Builder builder = StackFrameProto.newBuilder();
-      builder.setClassOrFileName(classAndMethod.substring(0, lastDot));
-      builder.setFunctionName(classAndMethod.substring(lastDot + 1));
-      try {
-        builder.setLineNumber(Integer.parseInt(lineNumber));
-      } catch (NumberFormatException e) {
+      builder.setClassOrFileName(frame.getClassName());
+      builder.setFunctionName(frame.getMethodName());
+      if (frame.getLineNumber() >= 0) {
+        builder.setLineNumber(frame.getLineNumber());
+      }
+      proto = builder.build();
+      if (INTERNED_STACK_FRAMES.size() < MAX_INTERNED_STACK_FRAMES) {
+        INTERNED_STACK_FRAMES.putIfAbsent(frame, proto);
       }
-      stats.addCallStack(builder);
     }
+    return proto;
   }
 
   private final Clock clock;
   private final Delegate wrappedDelegate;
   private final RecordWriter writer;
   private int maxLinesOfStackTrace = Integer.MAX_VALUE;
+  private int stackTraceSamplingInterval = 1;
+  private int maxStackTracesPerSecond = Integer.MAX_VALUE;
+  private final AtomicLong rpcCount = new AtomicLong();
+  private final Object stackTraceRateLock = new Object();
+  private long stackTraceRateSecond;
+  private int stackTracesInRateSecond;
   private PayloadRenderer payloadRenderer = DEFAULT_RENDERER;
   private UnprocessedFutureStrategy unprocessedFutureStrategy =
       UnprocessedFutureStrategy.DO_NOTHING;
@@ -229,6 +252,22 @@ class Recorder implements Delegate {
     this.maxLinesOfStackTrace = maxLinesOfStackTrace;
   }
 
+  /**
+   * Sets the interval at which stack traces are recorded: one in every
+   * {@code stackTraceSamplingInterval} rpcs records its stack trace.
+   */
+  public void setStackTraceSamplingInterval(int stackTraceSamplingInterval) {
+    this.stackTraceSamplingInterval = stackTraceSamplingInterval;
+  }
+
+  /**
+   * Sets the maximum number of stack traces recorded per second, across all
+   * requests.
+   */
+  public void setMaxStackTracesPerSecond(int maxStackTracesPerSecond) {
+    this.maxStackTracesPerSecond = maxStackTracesPerSecond;
+  }
+
   /**
    * Determines how request/response data should be rendered.
    */
@@ -240,10 +279,55 @@ class Recorder implements Delegate {
     return maxLinesOfStackTrace;
   }
 
+  int getStackTraceSamplingInterval() {
+    return stackTraceSamplingInterval;
+  }
+
+  int getMaxStackTracesPerSecond() {
+    return maxStackTracesPerSecond;
+  }
+
   PayloadRenderer getPayloadRenderer() {
     return payloadRenderer;
   }
 
+  /**
+   * Decides whether the stack trace of an rpc started at {@code now} is
+   * recorded, given the sampling interval and rate limit.
+   */
+  private boolean shouldRecordStackTrace(long now) {
+    if (maxLinesOfStackTrace <= 0) {
+      return false;
+    }
+    if (stackTraceSamplingInterval > 1
+        && rpcCount.getAndIncrement() % stackTraceSamplingInterval != 0) {
+      return false;
+    }
+    if (maxStackTracesPerSecond < Integer.MAX_VALUE) {
+      long second = now / 1000;
+      synchronized (stackTraceRateLock) {
+        if (second != stackTraceRateSecond) {
+          stackTraceRateSecond = second;
+          stackTracesInRateSecond = 0;
+        }
+        if (stackTracesInRateSecond >= maxStackTracesPerSecond) {
+          return false;
+        }
+        stackTracesInRateSecond++;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return whether {@code environment} belongs to a request that is not
+   * recorded
+   */
+  private static boolean isUnsampled(Environment environment) {
+    return environment != null && environment.getAttributes() != null
+        && environment.getAttributes().containsKey(UNSAMPLED_KEY);
+  }
+
   /**
    * Create a new recording protobuf that is initialized with any data that
    * can be provided before the rpc is executed.
@@ -262,7 +346,9 @@ class Recorder implements Delegate {
         payloadRenderer.renderPayload(
             intermediary.getPackageName(), intermediary.getMethodName(), request, true));
     stats.setStartOffsetMilliseconds(clock.currentTimeMillis());
-    createStackTrace(2, stats, maxLinesOfStackTrace);
+    if (shouldRecordStackTrace(stats.getStartOffsetMilliseconds())) {
+      createStackTrace(2, stats, maxLinesOfStackTrace);
+    }
 
     ApiStats apiStats = getApiStats(environment);
     intermediary.setApiMcyclesOrNull((apiStats == null) ? null : apiStats.getApiTimeInMegaCycles());
@@ -276,6 +362,10 @@ class Recorder implements Delegate {
                                       String methodName,
                                       byte[] request,
                                       ApiConfig apiConfig) {
+    if (isUnsampled(environment)) {
+      return wrappedDelegate.makeAsyncCall(
+          environment, packageName, methodName, request, apiConfig);
+    }
 
     long preNow = clock.currentTimeMillis();
     RecordingData intermediary = new RecordingData(packageName, methodName);
@@ -294,6 +384,9 @@ class Recorder implements Delegate {
   public byte[] makeSyncCall(
       Environment environment, String packageName, String methodName, byte[] request)
       throws ApiProxyException {
+    if (isUnsampled(environment)) {
+      return wrappedDelegate.makeSyncCall(environment, packageName, methodName, request);
+    }
 
     long preNow = clock.currentTimeMillis();
     RecordingData intermediary = new RecordingData(packageName, methodName);
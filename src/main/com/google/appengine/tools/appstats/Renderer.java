@@ -17,6 +17,7 @@ import java.text.ParseException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.logging.Logger;
 
 /**
@@ -120,4 +121,70 @@ class Renderer {
       return false;
     }
   }
+
+  /**
+   * Renders the latency distributions of each window, most recent first, and
+   * of all windows together.
+   */
+  public boolean renderLatencyStatsAsJson(Writer out, List<LatencyStats.Window> windows) {
+    JSONObject json = new JSONObject();
+    try {
+      json.put("format", "appstats-latency");
+      json.put("window_milliseconds", LatencyStats.WINDOW_MILLIS);
+      LatencyStats.Window total = new LatencyStats.Window(0);
+      JSONArray windowsArray = new JSONArray();
+      for (LatencyStats.Window window : windows) {
+        JSONObject windowJson = latencyWindowToJson(window);
+        windowJson.put("start", window.start);
+        windowsArray.put(windowJson);
+        total.add(window);
+      }
+      json.put("windows", windowsArray);
+      json.put("total", latencyWindowToJson(total));
+      json.write(out);
+      return true;
+    } catch (JSONException e) {
+      log.fine("Unable to create JSON (" + e.getMessage() + ")");
+      return false;
+    }
+  }
+
+  private static JSONObject latencyWindowToJson(LatencyStats.Window window)
+      throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("requests", window.requestCount.get());
+    json.put("api_total", StatsUtil.megaCyclesToMilliseconds(window.apiMcycles.get()));
+    JSONArray rpcs = new JSONArray();
+    for (Map.Entry<String, LatencyHistogram> entry :
+        new TreeMap<String, LatencyHistogram>(window.rpcLatencies).entrySet()) {
+      JSONObject rpcJson = histogramToJson(entry.getValue());
+      rpcJson.put("name", entry.getKey());
+      rpcs.put(rpcJson);
+    }
+    json.put("rpcs", rpcs);
+    JSONArray urls = new JSONArray();
+    for (Map.Entry<String, LatencyHistogram> entry :
+        new TreeMap<String, LatencyHistogram>(window.requestLatencies).entrySet()) {
+      JSONObject urlJson = histogramToJson(entry.getValue());
+      urlJson.put("pattern", entry.getKey());
+      LatencyHistogram rpcsPerRequest = window.rpcsPerRequest.get(entry.getKey());
+      if (rpcsPerRequest != null) {
+        urlJson.put("rpcs_per_request", histogramToJson(rpcsPerRequest));
+      }
+      urls.put(urlJson);
+    }
+    json.put("urls", urls);
+    return json;
+  }
+
+  private static JSONObject histogramToJson(LatencyHistogram histogram) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("count", histogram.getCount());
+    json.put("mean", histogram.getMean());
+    json.put("p50", histogram.getPercentile(50));
+    json.put("p90", histogram.getPercentile(90));
+    json.put("p99", histogram.getPercentile(99));
+    json.put("max", histogram.getMax());
+    return json;
+  }
 }